@@ -0,0 +1,68 @@
+package jlox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Interpreter.visitCallExpr on a Lox function, a method, a class and a
+// native function, including the evaluation of the callee and arguments.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallBenchmark {
+  private static final String DECLARATIONS =
+      "fun add(a, b) { return a + b; }\n" +
+      "class Point {\n" +
+      "  init(x, y) { this.x = x; this.y = y; }\n" +
+      "  sum() { return this.x + this.y; }\n" +
+      "}\n" +
+      "var point = Point(1, 2);\n";
+
+  private Interpreter interpreter;
+  private Expr.Call function;
+  private Expr.Call method;
+  private Expr.Call constructor;
+  private Expr.Call natively;
+
+  @Setup
+  public void setup() {
+    interpreter = new Interpreter();
+    Programs.run(interpreter, DECLARATIONS);
+    function = (Expr.Call)Programs.expression("add(1, 2)");
+    method = (Expr.Call)Programs.expression("point.sum()");
+    constructor = (Expr.Call)Programs.expression("Point(1, 2)");
+    natively = (Expr.Call)Programs.expression("clock()");
+  }
+
+  @Benchmark
+  public Object callFunction() {
+    return interpreter.visitCallExpr(function);
+  }
+
+  @Benchmark
+  public Object callMethod() {
+    return interpreter.visitCallExpr(method);
+  }
+
+  @Benchmark
+  public Object callClass() {
+    return interpreter.visitCallExpr(constructor);
+  }
+
+  @Benchmark
+  public Object callNative() {
+    return interpreter.visitCallExpr(natively);
+  }
+}
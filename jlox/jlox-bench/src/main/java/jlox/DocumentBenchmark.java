@@ -0,0 +1,66 @@
+package jlox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One-line edits in the middle of a Document of generated functions, four
+// lines each: one that keeps the line count, and one that inserts a line
+// and takes it out again, which moves every declaration below.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentBenchmark {
+  @Param({"50000"})
+  public int lines;
+
+  private Document document;
+  private int line;
+  private String text;
+
+  @Setup
+  public void setup() {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < lines / 4; i++) {
+      source.append("fun f").append(i).append("(a) {\n")
+          .append("  var b = a + ").append(i).append(";\n")
+          .append("  return b * 2;\n")
+          .append("}\n");
+    }
+    document = new Document(new Interpreter(), source.toString());
+    if (document.hasErrors()) {
+      throw new IllegalStateException("Benchmark document has errors.");
+    }
+    // The first body line of a function in the middle.
+    int function = lines / 8;
+    line = function * 4 + 2;
+    text = "  var b = a + " + function + ";";
+  }
+
+  @Benchmark
+  public List<Stmt> editLine() {
+    String replaced = text;
+    text = text.contains("+") ? "  var b = a - 1;" : "  var b = a + 1;";
+    return document.edit(line, 0, line, replaced.length(), text);
+  }
+
+  @Benchmark
+  public List<Stmt> insertAndRemoveLine() {
+    document.edit(line, 0, line, 0, "  print a;\n");
+    return document.edit(line, 0, line + 1, 0, "");
+  }
+}
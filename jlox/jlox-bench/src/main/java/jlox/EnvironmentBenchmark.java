@@ -0,0 +1,56 @@
+package jlox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Looking up and assigning a local through Environment.getAt and assignAt,
+// a given number of scopes out.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+  private static final int SCOPES = 8;
+  private static final int LOCALS = 4;
+
+  @Param({"0", "1", "4"})
+  public int distance;
+
+  private Environment environment;
+  private final Double value = 1.0;
+
+  @Setup
+  public void setup() {
+    environment = null;
+    for (int i = 0; i < SCOPES; i++) {
+      environment = environment == null
+          ? new Environment() : new Environment(environment);
+      for (int j = 0; j < LOCALS; j++) {
+        environment.define((double)j);
+      }
+    }
+  }
+
+  @Benchmark
+  public Object getAt() {
+    return environment.getAt(distance, LOCALS - 1);
+  }
+
+  @Benchmark
+  public void assignAt() {
+    environment.assignAt(distance, LOCALS - 1, value);
+  }
+}
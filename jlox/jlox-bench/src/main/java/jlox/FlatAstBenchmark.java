@@ -0,0 +1,114 @@
+package jlox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Compares the object AST with the flat AST: time to resolve a program of
+// generated functions, and time to run a call-heavy program, in each
+// form. The heap each form of the generated program retains is printed
+// once from setup.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlatAstBenchmark {
+  private static final String RUN_PROGRAM =
+      "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }\n" +
+      "var sum = 0;\n" +
+      "for (var i = 0; i < 200000; i = i + 1) { sum = sum + i * 2 - i / 2; }\n" +
+      "fib(22);\n";
+
+  @Param({"20000"})
+  public int functions;
+
+  private List<Stmt> statements;
+  private FlatAst ast;
+  private int program;
+
+  private List<Stmt> runStatements;
+  private FlatAst runAst;
+  private int runProgram;
+
+  @Setup
+  public void setup() {
+    String source = generate(functions);
+    List<Token> tokens = Programs.scan(source);
+
+    long before = usedMemory();
+    statements = new Parser(tokens).parseFromFile();
+    long objectBytes = usedMemory() - before;
+
+    before = usedMemory();
+    ast = new FlatAst();
+    program = new FlatAstWriter(ast).writeStmts(statements);
+    ast.trimToSize();
+    long flatBytes = usedMemory() - before;
+
+    System.out.printf("%nfootprint: object %.1f MB, flat %.1f MB (%d ints, %d constants)%n",
+        objectBytes / 1e6, flatBytes / 1e6, ast.size(), ast.constantCount());
+
+    runStatements = Programs.parse(RUN_PROGRAM);
+    runAst = new FlatAst();
+    runProgram = new FlatAstWriter(runAst).writeStmts(runStatements);
+    new FlatResolver(runAst).resolveList(runProgram);
+  }
+
+  @Benchmark
+  public Interpreter resolveObject() {
+    Interpreter interpreter = new Interpreter();
+    new Resolver(interpreter).resolve(statements);
+    return interpreter;
+  }
+
+  @Benchmark
+  public FlatAst resolveFlat() {
+    new FlatResolver(ast).resolveList(program);
+    return ast;
+  }
+
+  @Benchmark
+  public Interpreter executeObject() {
+    Interpreter interpreter = new Interpreter();
+    new Resolver(interpreter).resolve(runStatements);
+    interpreter.interpret(runStatements);
+    return interpreter;
+  }
+
+  @Benchmark
+  public FlatAst executeFlat() {
+    new FlatInterpreter(runAst).interpretList(runProgram);
+    return runAst;
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static String generate(int functions) {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < functions; i++) {
+      source.append("fun f").append(i).append("(a, b) {\n")
+          .append("  var c = a * 2 + b;\n")
+          .append("  if (c > 10) { c = c - a / 3; } else { c = -c; }\n")
+          .append("  return c + f").append(i).append(";\n")
+          .append("}\n");
+    }
+    return source.toString();
+  }
+}
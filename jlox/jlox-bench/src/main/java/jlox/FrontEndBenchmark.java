@@ -0,0 +1,53 @@
+package jlox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Scanning, parsing and resolving the program in program.lox, each on its
+// own.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+  private List<Token> tokens;
+  private List<Stmt> statements;
+
+  @Setup
+  public void setup() {
+    tokens = Programs.scan(Programs.PROGRAM);
+    statements = Programs.parse(Programs.PROGRAM);
+  }
+
+  @Benchmark
+  public List<Token> scanTokens() {
+    return new Scanner(Programs.PROGRAM).scanTokens();
+  }
+
+  @Benchmark
+  public List<Stmt> parseFromFile() {
+    return new Parser(tokens).parseFromFile();
+  }
+
+  // Into a fresh interpreter each time, as the resolution of a tree is
+  // kept in the interpreter.
+  @Benchmark
+  public Interpreter resolve() {
+    Interpreter interpreter = new Interpreter();
+    new Resolver(interpreter).resolve(statements);
+    return interpreter;
+  }
+}
@@ -0,0 +1,80 @@
+package jlox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Property access on an instance of a class two subclasses deep, and
+// method lookup along its superclass chain.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstanceBenchmark {
+  private static final String CLASSES =
+      "class Shape {\n" +
+      "  init(name) { this.name = name; }\n" +
+      "  describe() { return this.name; }\n" +
+      "}\n" +
+      "class Rectangle < Shape {\n" +
+      "  init(width, height) {\n" +
+      "    super.init(\"rectangle\");\n" +
+      "    this.width = width;\n" +
+      "    this.height = height;\n" +
+      "  }\n" +
+      "  area() { return this.width * this.height; }\n" +
+      "}\n" +
+      "class Square < Rectangle {\n" +
+      "  init(side) { super.init(side, side); }\n" +
+      "}\n" +
+      "var square = Square(3);\n";
+
+  private LoxClass klass;
+  private LoxInstance instance;
+  private final Double value = 4.0;
+
+  @Setup
+  public void setup() {
+    Interpreter interpreter = new Interpreter();
+    Programs.run(interpreter, CLASSES);
+    klass = (LoxClass)interpreter.globals.get("Square");
+    instance = (LoxInstance)interpreter.globals.get("square");
+  }
+
+  @Benchmark
+  public Object getField() {
+    return instance.get("width", 0);
+  }
+
+  // Found on the superclass, and bound to the instance.
+  @Benchmark
+  public Object getMethod() {
+    return instance.get("area", 0);
+  }
+
+  @Benchmark
+  public void setField() {
+    instance.set("width", value);
+  }
+
+  @Benchmark
+  public LoxFunction findInheritedMethod() {
+    return klass.findMethod("area");
+  }
+
+  @Benchmark
+  public LoxFunction findMethodTwoLevelsUp() {
+    return klass.findMethod("describe");
+  }
+}
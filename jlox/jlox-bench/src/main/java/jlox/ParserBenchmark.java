@@ -0,0 +1,84 @@
+package jlox;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parser throughput on generated, expression-heavy source: var
+// declarations initialized with random trees of binary, logical and
+// ternary operators.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+  private static final String[] OPERATORS = {
+    "+", "-", "*", "/", "<", ">=", "==", "!=", "and", "or"
+  };
+
+  @Param({"20000"})
+  public int statements;
+
+  private List<Token> tokens;
+
+  @Setup
+  public void setup() {
+    tokens = Programs.scan(generate(statements, new Random(42)));
+  }
+
+  @Benchmark
+  public List<Stmt> parseFromFile() {
+    return new Parser(tokens).parseFromFile();
+  }
+
+  private static String generate(int statements, Random random) {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < statements; i++) {
+      source.append("var v").append(i).append(" = ");
+      expression(source, random, 4);
+      source.append(";\n");
+    }
+    return source.toString();
+  }
+
+  private static void expression(StringBuilder source, Random random, int depth) {
+    if (depth == 0) {
+      switch (random.nextInt(4)) {
+        case 0: source.append(random.nextInt(100)); break;
+        case 1: source.append("\"s\""); break;
+        case 2: source.append("a.b(c, 1)"); break;
+        default: source.append("-x"); break;
+      }
+      return;
+    }
+
+    if (random.nextInt(5) == 0) {
+      source.append("(");
+      expression(source, random, depth - 1);
+      source.append(" ? ");
+      expression(source, random, depth - 1);
+      source.append(" : ");
+      expression(source, random, depth - 1);
+      source.append(")");
+      return;
+    }
+
+    expression(source, random, depth - 1);
+    source.append(" ").append(OPERATORS[random.nextInt(OPERATORS.length)]).append(" ");
+    expression(source, random, depth - 1);
+  }
+}
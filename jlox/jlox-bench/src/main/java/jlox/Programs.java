@@ -0,0 +1,58 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Sources the benchmarks run on, and the steps of Lox.runFromFile they
+// need to prepare them.
+class Programs {
+  // A representative program, from program.lox.
+  static final String PROGRAM = load("program.lox");
+
+  private static String load(String name) {
+    try (InputStream in = Programs.class.getResourceAsStream(name)) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  static List<Token> scan(String source) {
+    Scanner scanner = new Scanner(source);
+    List<Token> tokens = scanner.scanTokens();
+    Lox.useLines(scanner.getLines());
+    return tokens;
+  }
+
+  static List<Stmt> parse(String source) {
+    List<Stmt> statements = new Parser(scan(source)).parseFromFile();
+    check(source);
+    return statements;
+  }
+
+  // Parses, resolves and runs a program in the interpreter, leaving its
+  // globals defined.
+  static void run(Interpreter interpreter, String source) {
+    List<Stmt> statements = parse(source);
+    new Resolver(interpreter).resolve(statements);
+    check(source);
+    interpreter.interpret(statements);
+    check(source);
+  }
+
+  // Parses an expression as an expression statement. It is not resolved,
+  // so the variables in it are looked up as globals.
+  static Expr expression(String source) {
+    List<Stmt> statements = parse(source + ";");
+    return ((Stmt.Expression)statements.get(0)).expression;
+  }
+
+  private static void check(String source) {
+    if (Lox.hadError) {
+      throw new IllegalStateException("Benchmark source has errors:\n" + source);
+    }
+  }
+}
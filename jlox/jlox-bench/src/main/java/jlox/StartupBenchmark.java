@@ -0,0 +1,91 @@
+package jlox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole runs of jlox in a new JVM, as from the command line: a one-line
+// script and the program in program.lox, each by default, on a --cache
+// hit and with --cold-start. Short scripts are where startup costs show,
+// so this is the benchmark for anything on the path from main to the
+// first statement.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupBenchmark {
+  private static final String HELLO = "print \"hello\";\n";
+
+  @Param({"hello", "program"})
+  public String script;
+
+  @Param({"default", "cache", "cold-start"})
+  public String mode;
+
+  private Path directory;
+  private ProcessBuilder builder;
+
+  @Setup
+  public void setup() throws IOException, InterruptedException {
+    directory = Files.createTempDirectory("jlox-startup");
+    Path file = directory.resolve(script + ".lox");
+    Files.write(file, (script.equals("hello") ? HELLO : Programs.PROGRAM)
+        .getBytes(StandardCharsets.UTF_8));
+
+    List<String> command = new ArrayList<>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" +
+        File.separator + "java");
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("jlox.Lox");
+    if (!mode.equals("default")) command.add("--" + mode);
+    command.add(file.toString());
+
+    builder = new ProcessBuilder(command)
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+        .redirectError(ProcessBuilder.Redirect.INHERIT);
+    builder.environment().put("JLOX_CACHE_DIR",
+        directory.resolve("cache").toString());
+
+    // Fills the cache, so every measured --cache run is a hit.
+    run();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public int run() throws IOException, InterruptedException {
+    int status = builder.start().waitFor();
+    if (status != 0) {
+      throw new IllegalStateException("jlox exited with " + status + ".");
+    }
+    return status;
+  }
+}
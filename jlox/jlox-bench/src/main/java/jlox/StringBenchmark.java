@@ -0,0 +1,54 @@
+package jlox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// String concatenation and equality through Interpreter.visitBinaryExpr,
+// on strings of a given length held in globals, so the optimizer has
+// nothing to fold.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringBenchmark {
+  @Param({"8", "256"})
+  public int length;
+
+  private Interpreter interpreter;
+  private Expr.Binary concatenate;
+  private Expr.Binary equal;
+
+  @Setup
+  public void setup() {
+    interpreter = new Interpreter();
+    interpreter.globals.put("left", "l".repeat(length));
+    interpreter.globals.put("right", "r".repeat(length));
+    // Equal, but not the same string.
+    interpreter.globals.put("copy", new String("l".repeat(length)));
+    concatenate = (Expr.Binary)Programs.expression("left + right");
+    equal = (Expr.Binary)Programs.expression("left == copy");
+  }
+
+  @Benchmark
+  public Object concatenate() {
+    return interpreter.visitBinaryExpr(concatenate);
+  }
+
+  @Benchmark
+  public Object equal() {
+    return interpreter.visitBinaryExpr(equal);
+  }
+}
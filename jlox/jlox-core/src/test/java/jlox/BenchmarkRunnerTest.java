@@ -0,0 +1,53 @@
+package jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A program that fails must not be measured as if it had run: its timing
+// would only cover the statements before the error.
+class BenchmarkRunnerTest {
+  @TempDir
+  Path directory;
+
+  @Test
+  void runScriptReportsRuntimeErrors() {
+    assertTrue(Lox.runScript("print 1;"));
+    assertFalse(Lox.runScript("print 1; nil();"));
+    assertFalse(Lox.runScript("print ;"));
+    assertTrue(Lox.runScript("print 2;"));
+  }
+
+  @Test
+  void failingProgramIsReportedAsFailed() throws Exception {
+    Path program = directory.resolve("fails.lox");
+    Files.write(program, "print 1;\nnil();\nprint 2;\n".getBytes(StandardCharsets.UTF_8));
+
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.add("-cp");
+    command.add(Paths.get(Lox.class.getProtectionDomain().getCodeSource()
+        .getLocation().toURI()).toString());
+    command.add("jlox.BenchmarkRunner");
+    command.add("--warmup=0");
+    command.add("--iterations=1");
+    command.add(program.toString());
+
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    String output = new String(process.getInputStream().readAllBytes(),
+        StandardCharsets.UTF_8);
+    assertEquals(70, process.waitFor(), output);
+    assertTrue(output.contains(program + " failed."), output);
+    assertFalse(output.contains("ms median"), output);
+  }
+}
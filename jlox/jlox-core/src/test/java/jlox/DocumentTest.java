@@ -0,0 +1,159 @@
+package jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class DocumentTest {
+  private static final String SOURCE =
+      "fun first(a) {\n" +
+      "  return a;\n" +
+      "}\n" +
+      "fun second(b) {\n" +
+      "  return b;\n" +
+      "}\n" +
+      "fun third(c) {\n" +
+      "  return c;\n" +
+      "}\n";
+
+  @Test
+  void editReanalyzesOnlyTheDeclarationsItTouches() {
+    Document document = new Document(new Interpreter(), SOURCE);
+    List<Stmt> before = document.statements();
+
+    List<Stmt> analyzed = document.edit(5, 9, 5, 10, "b + 1");
+
+    List<Stmt> after = document.statements();
+    assertFalse(document.hasErrors());
+    assertEquals(1, analyzed.size());
+    assertSame(before.get(0), after.get(0));
+    assertNotSame(before.get(1), after.get(1));
+    assertSame(analyzed.get(0), after.get(1));
+    assertSame(before.get(2), after.get(2));
+    assertEquals(document.text(), SOURCE.replace("return b;", "return b + 1;"));
+  }
+
+  @Test
+  void declarationsBelowAnEditMoveWithIt() {
+    Document document = new Document(new Interpreter(), SOURCE);
+    Stmt.Function third = (Stmt.Function)document.statements().get(2);
+    assertEquals(7, Position.line(third.position));
+
+    document.edit(1, 0, 1, 0, "var x = 1;\nvar y = 2;\n");
+
+    assertSame(third, document.statements().get(4));
+    assertEquals(9, Position.line(third.position));
+  }
+
+  @Test
+  void editDropsTheResolutionOfReplacedDeclarations() {
+    Interpreter interpreter = new Interpreter();
+    Document document = new Document(interpreter, SOURCE);
+    Expr read = returned(document.statements().get(1));
+    assertTrue(interpreter.isResolvedLocal(read));
+
+    document.edit(5, 9, 5, 10, "b");
+
+    assertFalse(interpreter.isResolvedLocal(read));
+    assertTrue(interpreter.isResolvedLocal(returned(document.statements().get(1))));
+  }
+
+  @Test
+  void replacedDeclarationsGiveBackTheirFiles() {
+    Document document = new Document(new Interpreter(), SOURCE);
+    Stmt.Function replaced = (Stmt.Function)document.statements().get(0);
+
+    document.edit(1, 4, 1, 9, "renamed");
+    document.edit(1, 0, 1, 0, "\n\n");
+
+    Stmt.Function renamed = (Stmt.Function)document.statements().get(0);
+    assertEquals(Position.file(replaced.position), Position.file(renamed.position));
+    assertEquals(3, Position.line(renamed.position));
+  }
+
+  // File IDs index the Document's line offsets. Edits that keep the
+  // number of declarations must keep reusing the same IDs, or the table
+  // grows with every edit.
+  @Test
+  void editingInALoopKeepsTheFileTableSize() {
+    Document document = new Document(new Interpreter(), SOURCE);
+    int files = maxFile(document);
+
+    for (int i = 0; i < 20_000; i++) {
+      document.edit(5, 9, 5, 10, i % 2 == 0 ? "c" : "b");
+      document.edit(1, 0, 1, 0, "var x = 1;\n");
+      document.edit(1, 0, 2, 0, "");
+    }
+
+    assertEquals(files, maxFile(document));
+    assertEquals(7, Position.line(((Stmt.Function)document.statements().get(2)).position));
+  }
+
+  @Test
+  void documentsKeepTheirOwnLineOffsets() {
+    Document first = new Document(new Interpreter(), SOURCE);
+    Document second = new Document(new Interpreter(), SOURCE);
+    Stmt.Function firstThird = (Stmt.Function)first.statements().get(2);
+    Stmt.Function secondThird = (Stmt.Function)second.statements().get(2);
+
+    second.edit(1, 0, 1, 0, "var x = 1;\nvar y = 2;\n");
+    assertEquals(9, Position.line(secondThird.position));
+
+    first.edit(5, 9, 5, 10, "b");
+    assertEquals(7, Position.line(firstThird.position));
+  }
+
+  @Test
+  void appendAnalyzesOnlyTheAppendedText() {
+    Document document = new Document(new Interpreter(), SOURCE);
+    List<Stmt> before = document.statements();
+
+    List<Stmt> appended = document.append("var x = third(1);\nprint x;\n");
+
+    assertEquals(2, appended.size());
+    assertEquals(before, document.statements().subList(0, 3));
+    assertEquals(appended, document.statements().subList(3, 5));
+  }
+
+  // Each declaration is parsed as its own Position file.
+  @Test
+  void documentsHoldMoreDeclarationsThanSixteenBitFileIds() {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < 70_000; i++) {
+      source.append("var v").append(i).append(" = ").append(i).append(";\n");
+    }
+
+    Document document = new Document(new Interpreter(), source.toString());
+
+    List<Stmt> statements = document.statements();
+    assertEquals(70_000, statements.size());
+    assertEquals(70_000, Position.line(((Stmt.Var)statements.get(69_999)).position));
+  }
+
+  @Test
+  void isCompleteWaitsForOpenBracketsStringsAndComments() {
+    assertTrue(Document.isComplete("fun f() { return 1; }"));
+    assertFalse(Document.isComplete("fun f() {"));
+    assertFalse(Document.isComplete("print \"open"));
+    assertFalse(Document.isComplete("/* open"));
+  }
+
+  private static int maxFile(Document document) {
+    int max = 0;
+    for (Stmt statement : document.statements()) {
+      max = Math.max(max, Position.file(((Stmt.Function)statement).position));
+    }
+    return max;
+  }
+
+  private static Expr returned(Stmt function) {
+    Stmt.Jump jump = (Stmt.Jump)((Stmt.Function)function).body.get(0);
+    return jump.value;
+  }
+}
@@ -0,0 +1,77 @@
+package jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+// Runs each script in equivalence/ as jlox does from the command line, and
+// checks that the optimized runs print what -O0 prints, errors included.
+// The scripts are programs the passes could get wrong: division by zero,
+// operators on mixed types, and loop-invariant expressions that throw.
+// --lazy, which resolves function bodies on first call, must print the
+// same too.
+class OptimizationTest {
+  @TempDir
+  Path cache;
+
+  static Stream<Path> scripts() throws IOException, URISyntaxException {
+    Path directory = Paths.get(OptimizationTest.class.getResource("equivalence").toURI());
+    List<Path> scripts = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      files.filter(file -> file.toString().endsWith(".lox")).sorted().forEach(scripts::add);
+    }
+    return scripts.stream();
+  }
+
+  @ParameterizedTest
+  @MethodSource("scripts")
+  void optimizedRunsPrintWhatUnoptimizedRunsPrint(Path script) throws Exception {
+    String expected = run(script, "-O0");
+
+    assertEquals(expected, run(script, "-O1"), "-O1");
+    assertEquals(expected, run(script, "-O2"), "-O2");
+    assertEquals(expected, run(script, "-O2", "--flat"), "-O2 --flat");
+    // A miss, and then a hit on what it stored.
+    assertEquals(expected, run(script, "-O2", "--cache"), "-O2, cache miss");
+    assertEquals(expected, run(script, "-O2", "--cache"), "-O2, cache hit");
+    assertEquals(expected, run(script, "--lazy"), "--lazy");
+  }
+
+  // Returns what a run printed, and its exit status: 65 after a compile
+  // error, 70 after a runtime error.
+  private String run(Path script, String... options) throws Exception {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.add("-cp");
+    command.add(Paths.get(Lox.class.getProtectionDomain().getCodeSource()
+        .getLocation().toURI()).toString());
+    command.add("jlox.Lox");
+    command.addAll(Arrays.asList(options));
+    command.add(script.toString());
+
+    ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+    builder.environment().put("JLOX_CACHE_DIR", cache.toString());
+    Process process = builder.start();
+    String output = new String(process.getInputStream().readAllBytes(),
+        StandardCharsets.UTF_8);
+    int status = process.waitFor();
+    // Anything else is the JVM failing to start jlox, which would
+    // print the same for every option.
+    assertTrue(status == 0 || status == 65 || status == 70, output);
+    return output + "exit " + status + "\n";
+  }
+}
@@ -0,0 +1,167 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+// Counts the objects Lox programs allocate, for --alloc-profile: instances,
+// closures, bound methods, environments and concatenated strings, each
+// attributed to the source position that made it. Calls account for the
+// environment the callee runs in, and classes for the instance and the
+// bound initializer.
+//
+// Bytes are shallow estimates for a 64-bit JVM with compressed oops, not
+// measurements, so they rank sites rather than add up to the heap. With
+// --alloc-profile=N about one allocation in N is recorded, at random
+// intervals so loops can't alias with the sampling, and the totals are
+// scaled by N.
+class AllocationProfiler {
+  // The running profiler, or null. Allocation sites check it, so with
+  // profiling off they pay for a field read.
+  static AllocationProfiler active = null;
+
+  enum Kind {
+    // LoxInstance and its HashMap, before any field is set.
+    INSTANCE("instance", 72),
+    CLOSURE("closure", 32),
+    BOUND_METHOD("bound method", 32),
+    // Environment, its ArrayList and the array of ten the first define
+    // makes.
+    ENVIRONMENT("environment", 104),
+    // String and its byte array, without the characters.
+    STRING("string", 40);
+
+    final String label;
+    final long bytes;
+
+    Kind(String label, long bytes) {
+      this.label = label;
+      this.bytes = bytes;
+    }
+  }
+
+  // A line of the report: what one site allocated of one kind.
+  private static class Site {
+    final Kind kind;
+    final long position;
+    final long objects;
+    final long bytes;
+
+    Site(Kind kind, long position, long objects, long bytes) {
+      this.kind = kind;
+      this.position = position;
+      this.objects = objects;
+      this.bytes = bytes;
+    }
+  }
+
+  private static final int TOP = 20;
+
+  private final int every;
+  private final SplittableRandom random = new SplittableRandom();
+  private int countdown;
+  // Per kind, per position, the sampled count and bytes.
+  private final Map<Kind, Map<Long, long[]>> sites = new EnumMap<>(Kind.class);
+
+  private AllocationProfiler(int every) {
+    this.every = every;
+    this.countdown = next();
+    for (Kind kind : Kind.values()) sites.put(kind, new HashMap<>());
+  }
+
+  // Records one allocation in every, until the process exits.
+  static void start(int every) {
+    AllocationProfiler profiler = new AllocationProfiler(every);
+    Runtime.getRuntime().addShutdownHook(
+        new Thread(profiler::stop, "jlox-alloc-profiler-report"));
+    active = profiler;
+  }
+
+  void record(Kind kind, long position) {
+    record(kind, position, kind.bytes);
+  }
+
+  void string(String string, long position) {
+    // Latin-1 characters take a byte, padded to the 8-byte alignment.
+    record(Kind.STRING, position, Kind.STRING.bytes + ((string.length() + 7) & ~7));
+  }
+
+  // What a call allocates before its body runs.
+  void call(LoxCallable callee, long position) {
+    if (callee instanceof LoxClass) {
+      record(Kind.INSTANCE, position);
+      if (((LoxClass)callee).findMethod("init") != null) {
+        record(Kind.BOUND_METHOD, position);
+        record(Kind.ENVIRONMENT, position);
+        record(Kind.ENVIRONMENT, position);
+      }
+    } else if (callee instanceof LoxFunction) {
+      record(Kind.ENVIRONMENT, position);
+    }
+  }
+
+  // What binding a method allocates: the function and the environment
+  // holding "this".
+  void bind(long position) {
+    record(Kind.BOUND_METHOD, position);
+    record(Kind.ENVIRONMENT, position);
+  }
+
+  private void record(Kind kind, long position, long bytes) {
+    if (--countdown > 0) return;
+    countdown = next();
+
+    long[] counts = sites.get(kind).computeIfAbsent(position, key -> new long[2]);
+    counts[0]++;
+    counts[1] += bytes;
+  }
+
+  // Uniform in [1, 2 * every - 1], so every on average.
+  private int next() {
+    return every == 1 ? 1 : 1 + random.nextInt(2 * every - 1);
+  }
+
+  private void stop() {
+    active = null;
+
+    List<Site> rows = new ArrayList<>();
+    long objects = 0;
+    long bytes = 0;
+    System.err.println(every == 1
+        ? "Allocations:"
+        : "Allocations, sampled 1 in " + every + ":");
+    System.err.println(String.format("%-14s %12s %14s", "kind", "objects", "bytes"));
+    for (Kind kind : Kind.values()) {
+      long kindObjects = 0;
+      long kindBytes = 0;
+      for (Map.Entry<Long, long[]> entry : sites.get(kind).entrySet()) {
+        long[] counts = entry.getValue();
+        kindObjects += counts[0] * every;
+        kindBytes += counts[1] * every;
+        rows.add(new Site(kind, entry.getKey(), counts[0] * every, counts[1] * every));
+      }
+      objects += kindObjects;
+      bytes += kindBytes;
+      System.err.println(String.format("%-14s %12d %14d",
+          kind.label, kindObjects, kindBytes));
+    }
+    System.err.println(String.format("%-14s %12d %14d", "total", objects, bytes));
+
+    rows.sort((a, b) -> Long.compare(b.bytes, a.bytes));
+    System.err.println();
+    System.err.println(String.format("%-14s %-14s %12s %14s",
+        "site", "kind", "objects", "bytes"));
+    for (Site row : rows.subList(0, Math.min(TOP, rows.size()))) {
+      System.err.println(String.format("%-14s %-14s %12d %14d",
+          location(row.position), row.kind.label, row.objects, row.bytes));
+    }
+  }
+
+  private static String location(long position) {
+    if (position == Position.NONE) return "unknown";
+    return "line " + Position.line(position) + ":" + Position.column(position);
+  }
+}
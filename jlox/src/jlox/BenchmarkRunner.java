@@ -0,0 +1,277 @@
+package jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Runs Lox programs end to end in this process, each for some warmup runs
+// and then a number of measured runs, and reports the median time and
+// bytes allocated per run:
+//
+//   java -cp out jlox.BenchmarkRunner [--warmup=N] [--iterations=N]
+//       [--baseline=FILE [--save] [--threshold=PERCENT]] [jlox options]
+//       program.lox|directory...
+//
+// Directories stand for the .lox files in them, such as the corpus in
+// jlox-bench/corpus. With --save the results are written to the baseline
+// file. Otherwise they are compared with it, and the runner exits with
+// status 1 if a program got slower or allocates more than the threshold
+// (default 10%) allows. Other options are passed on to jlox, so
+// --cache measures runs loaded from the program cache.
+//
+// Each run is checked to print what the first did. Bytes allocated are
+// counted on this thread only, so those of --pipeline's scanner thread
+// are missed.
+public class BenchmarkRunner {
+  private static class Result {
+    final long medianNanos;
+    final long minNanos;
+    final long allocatedBytes;
+
+    Result(long medianNanos, long minNanos, long allocatedBytes) {
+      this.medianNanos = medianNanos;
+      this.minNanos = minNanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+  }
+
+  private static final Pattern PROGRAM =
+      Pattern.compile("\"([^\"]+)\"\\s*:\\s*\\{([^{}]*)\\}");
+  private static final Pattern FIELD =
+      Pattern.compile("\"(\\w+)\"\\s*:\\s*(-?\\d+)");
+
+  private final PrintStream out = System.out;
+  private final com.sun.management.ThreadMXBean threads;
+  private int warmup = 3;
+  private int iterations = 10;
+  private double threshold = 10;
+
+  private BenchmarkRunner() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean &&
+        ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()) {
+      threads = (com.sun.management.ThreadMXBean)bean;
+      threads.setThreadAllocatedMemoryEnabled(true);
+    } else {
+      threads = null;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    BenchmarkRunner runner = new BenchmarkRunner();
+    Path baseline = null;
+    boolean save = false;
+    List<String> options = new ArrayList<>();
+    List<Path> programs = new ArrayList<>();
+
+    for (String arg : args) {
+      if (arg.startsWith("--warmup=")) {
+        runner.warmup = parseCount(arg.substring("--warmup=".length()), 0);
+      } else if (arg.startsWith("--iterations=")) {
+        runner.iterations = parseCount(arg.substring("--iterations=".length()), 1);
+      } else if (arg.startsWith("--threshold=")) {
+        runner.threshold = parseCount(arg.substring("--threshold=".length()), 0);
+      } else if (arg.startsWith("--baseline=")) {
+        baseline = Paths.get(arg.substring("--baseline=".length()));
+      } else if (arg.equals("--save")) {
+        save = true;
+      } else if (arg.startsWith("-")) {
+        options.add(arg);
+      } else {
+        addPrograms(Paths.get(arg), programs);
+      }
+    }
+    if (programs.isEmpty() || (save && baseline == null)) usage();
+    if (Lox.parseArguments(options.toArray(new String[0])) != null) usage();
+
+    Map<String, Result> results = new LinkedHashMap<>();
+    for (Path program : programs) {
+      String name = program.getFileName().toString().replaceFirst("\\.lox$", "");
+      Result result = runner.measure(program);
+      if (result == null) System.exit(70);
+      results.put(name, result);
+      runner.out.println(String.format("%-20s %10.3f ms median %10.3f ms min %14d bytes",
+          name, result.medianNanos / 1e6, result.minNanos / 1e6,
+          result.allocatedBytes));
+    }
+
+    if (baseline == null) return;
+    if (save) {
+      Files.write(baseline, toJson(options, runner, results)
+          .getBytes(StandardCharsets.UTF_8));
+      runner.out.println("Saved baseline to " + baseline + ".");
+    } else if (!runner.compare(results, readJson(baseline))) {
+      System.exit(1);
+    }
+  }
+
+  private static void usage() {
+    System.out.println("Usage: jlox.BenchmarkRunner [--warmup=N] [--iterations=N]" +
+        " [--baseline=FILE [--save] [--threshold=PERCENT]] [jlox options]" +
+        " program.lox|directory...");
+    System.exit(64);
+  }
+
+  private static int parseCount(String text, int min) {
+    try {
+      int count = Integer.parseInt(text);
+      if (count >= min) return count;
+    } catch (NumberFormatException e) {
+      // Fall through to the usage.
+    }
+    usage();
+    return 0;
+  }
+
+  private static void addPrograms(Path path, List<Path> programs)
+      throws IOException {
+    if (!Files.isDirectory(path)) {
+      programs.add(path);
+      return;
+    }
+
+    List<Path> found = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*.lox")) {
+      for (Path program : stream) found.add(program);
+    }
+    found.sort(null);
+    programs.addAll(found);
+  }
+
+  // Returns null if a run failed or printed something else.
+  private Result measure(Path program) throws IOException {
+    String source = new String(Files.readAllBytes(program),
+        Charset.defaultCharset());
+    long[] nanos = new long[iterations];
+    long[] bytes = new long[iterations];
+    byte[] expected = null;
+
+    for (int i = -warmup; i < iterations; i++) {
+      ByteArrayOutputStream printed = new ByteArrayOutputStream();
+      System.gc();
+
+      System.setOut(new PrintStream(printed, true));
+      long allocatedBefore = allocatedBytes();
+      long start = System.nanoTime();
+      boolean succeeded;
+      try {
+        succeeded = Lox.runScript(source);
+      } finally {
+        System.setOut(out);
+      }
+      long elapsed = System.nanoTime() - start;
+      long allocated = allocatedBytes() - allocatedBefore;
+
+      if (!succeeded) {
+        System.err.println(program + " failed.");
+        return null;
+      }
+      if (expected == null) {
+        expected = printed.toByteArray();
+      } else if (!Arrays.equals(expected, printed.toByteArray())) {
+        System.err.println(program + " printed something else on run " +
+            (i + warmup + 1) + ".");
+        return null;
+      }
+
+      if (i >= 0) {
+        nanos[i] = elapsed;
+        bytes[i] = allocated;
+      }
+    }
+
+    Arrays.sort(nanos);
+    Arrays.sort(bytes);
+    return new Result(nanos[iterations / 2], nanos[0], bytes[iterations / 2]);
+  }
+
+  private long allocatedBytes() {
+    if (threads == null) return 0;
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  // Reports each program against the baseline, and returns whether none
+  // regressed.
+  private boolean compare(Map<String, Result> results,
+                          Map<String, Result> baseline) {
+    boolean passed = true;
+    out.println();
+    for (Map.Entry<String, Result> entry : results.entrySet()) {
+      Result before = baseline.get(entry.getKey());
+      Result after = entry.getValue();
+      if (before == null) {
+        out.println(String.format("%-20s not in the baseline", entry.getKey()));
+        continue;
+      }
+
+      double time = change(before.medianNanos, after.medianNanos);
+      double allocation = change(before.allocatedBytes, after.allocatedBytes);
+      boolean regressed = time > threshold || allocation > threshold;
+      out.println(String.format("%-20s %+8.1f%% time %+8.1f%% bytes%s",
+          entry.getKey(), time, allocation, regressed ? "  REGRESSED" : ""));
+      if (regressed) passed = false;
+    }
+    return passed;
+  }
+
+  private static double change(long before, long after) {
+    if (before == 0) return after == 0 ? 0 : Double.POSITIVE_INFINITY;
+    return (after - before) * 100.0 / before;
+  }
+
+  private static String toJson(List<String> options, BenchmarkRunner runner,
+                               Map<String, Result> results) {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"options\": \"").append(String.join(" ", options)).append("\",\n");
+    json.append("  \"warmup\": ").append(runner.warmup).append(",\n");
+    json.append("  \"iterations\": ").append(runner.iterations).append(",\n");
+    json.append("  \"programs\": {\n");
+    int count = 0;
+    for (Map.Entry<String, Result> entry : results.entrySet()) {
+      Result result = entry.getValue();
+      json.append("    \"").append(entry.getKey()).append("\": {")
+          .append("\"medianNanos\": ").append(result.medianNanos)
+          .append(", \"minNanos\": ").append(result.minNanos)
+          .append(", \"allocatedBytes\": ").append(result.allocatedBytes)
+          .append("}");
+      json.append(++count < results.size() ? ",\n" : "\n");
+    }
+    json.append("  }\n");
+    json.append("}\n");
+    return json.toString();
+  }
+
+  // Reads the programs back from a baseline written by toJson.
+  private static Map<String, Result> readJson(Path path) throws IOException {
+    String json = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    Map<String, Result> results = new LinkedHashMap<>();
+    Matcher program = PROGRAM.matcher(json);
+    while (program.find()) {
+      Map<String, Long> fields = new LinkedHashMap<>();
+      Matcher field = FIELD.matcher(program.group(2));
+      while (field.find()) {
+        fields.put(field.group(1), Long.parseLong(field.group(2)));
+      }
+      results.put(program.group(1), new Result(
+          fields.getOrDefault("medianNanos", 0L),
+          fields.getOrDefault("minNanos", 0L),
+          fields.getOrDefault("allocatedBytes", 0L)));
+    }
+    return results;
+  }
+}
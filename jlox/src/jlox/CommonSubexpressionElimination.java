@@ -0,0 +1,72 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Replaces a pure instruction with an earlier one applying the same
+// operator to the same operands, looking through copies, by value
+// numbering along the dominator tree. The operands being the same values,
+// an instruction that might fail can't once the one before it succeeded.
+//
+// Instructions whose source assigns to a local are kept, as replacing the
+// source would drop the assignment.
+final class CommonSubexpressionElimination {
+  private final Ir.Function function;
+  private final Map<List<Object>, Ir.Value> available = new HashMap<>();
+
+  // Removed instructions and the ones computing their value.
+  final Map<Ir.Value, Ir.Value> replacements = new IdentityHashMap<>();
+
+  CommonSubexpressionElimination(Ir.Function function) {
+    this.function = function;
+  }
+
+  void run() {
+    number(function.entry);
+  }
+
+  private void number(Ir.Block block) {
+    List<List<Object>> added = new ArrayList<>();
+    Iterator<Ir.Value> instructions = block.instructions.iterator();
+    while (instructions.hasNext()) {
+      Ir.Value value = instructions.next();
+      if (value.kind != Ir.Kind.BINARY && value.kind != Ir.Kind.UNARY) {
+        continue;
+      }
+
+      List<Object> key = key(value);
+      Ir.Value earlier = available.get(key);
+      if (earlier == null) {
+        available.put(key, value);
+        added.add(key);
+      } else if (!value.assigns) {
+        instructions.remove();
+        value.replaceWith(earlier);
+        replacements.put(value, earlier);
+      }
+    }
+
+    for (Ir.Block dominated : block.dominated) {
+      number(dominated);
+    }
+    for (List<Object> key : added) {
+      available.remove(key);
+    }
+  }
+
+  private static List<Object> key(Ir.Value value) {
+    Object[] key = new Object[value.operands.size() + 1];
+    key[0] = value.operator;
+    for (int i = 0; i < value.operands.size(); i++) {
+      Ir.Value operand = value.operands.get(i);
+      while (operand.kind == Ir.Kind.COPY) operand = operand.operands.get(0);
+      key[i + 1] = operand;
+    }
+    return Arrays.asList(key);
+  }
+}
@@ -0,0 +1,497 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Whole-program dead code elimination, run after the Inliner.
+//
+// Global functions and classes are kept only if their name is read from
+// code reachable from the top-level statements, and methods only if
+// their name is looked up on some instance or superclass, or is "init".
+// Names are matched without regard to scopes, so anything that might be
+// used is kept. A class whose superclass might not be a class at
+// runtime is always kept, as declaring it would fail. If any function
+// body is still unparsed (--lazy), nothing can be known unreachable and
+// all declarations are kept.
+//
+// Statements following a return, break or continue in the same list are
+// dropped, as are expression statements that can neither fail nor have
+// an effect.
+class DeadCodeEliminator extends TreeRewriter implements Pass {
+  private final Set<String> assignedGlobals;
+  private final boolean report;
+
+  // Names read as variables, and names looked up on instances, in the
+  // code found reachable so far.
+  private final Set<String> readNames = new HashSet<>();
+  private final Set<String> propertyNames = new HashSet<>();
+  private final Set<Stmt> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final List<Stmt.Class> liveClasses = new ArrayList<>();
+  private boolean sawLazyBody = false;
+
+  private int removedFunctions = 0;
+  private int removedClasses = 0;
+  private int removedMethods = 0;
+  private int removedStatements = 0;
+  private int removedExpressions = 0;
+
+  DeadCodeEliminator(Interpreter interpreter, Set<String> assignedGlobals,
+                     boolean report) {
+    super(interpreter);
+    this.assignedGlobals = assignedGlobals;
+    this.report = report;
+  }
+
+  @Override
+  public String name() {
+    return "dce";
+  }
+
+  @Override
+  public List<String> dependencies() {
+    return Collections.singletonList("inline");
+  }
+
+  @Override
+  public List<Stmt> run(List<Stmt> statements) {
+    return eliminate(statements);
+  }
+
+  List<Stmt> eliminate(List<Stmt> statements) {
+    markReachable(statements);
+
+    List<Stmt> kept = new ArrayList<>(statements.size());
+    for (Stmt statement : statements) {
+      if ((statement instanceof Stmt.Function || statement instanceof Stmt.Class) &&
+          !isReachable(statement)) {
+        removed(statement);
+      } else {
+        kept.add(statement);
+      }
+    }
+
+    List<Stmt> result = rewrite(kept);
+    if (report) {
+      System.err.println("Removed " + removedFunctions + " functions, " +
+          removedClasses + " classes, " + removedMethods + " methods, " +
+          removedStatements + " unreachable statements and " +
+          removedExpressions + " expression statements.");
+    }
+    return result;
+  }
+
+  private boolean isReachable(Stmt declaration) {
+    return sawLazyBody || reachable.contains(declaration);
+  }
+
+  private void markReachable(List<Stmt> statements) {
+    Marker marker = new Marker();
+    List<Stmt.Function> functions = new ArrayList<>();
+    List<Stmt.Class> classes = new ArrayList<>();
+    Set<String> classNames = new HashSet<>();
+
+    for (Stmt statement : statements) {
+      if (statement instanceof Stmt.Function) {
+        functions.add((Stmt.Function)statement);
+        classNames.remove(((Stmt.Function)statement).name);
+      } else if (statement instanceof Stmt.Class &&
+                 isSafeToRemove((Stmt.Class)statement, classNames)) {
+        classes.add((Stmt.Class)statement);
+        classNames.add(((Stmt.Class)statement).name);
+      } else {
+        if (statement instanceof Stmt.Var) classNames.remove(((Stmt.Var)statement).name);
+        if (statement instanceof Stmt.Class) classNames.remove(((Stmt.Class)statement).name);
+        marker.mark(statement);
+      }
+    }
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Stmt.Function function : functions) {
+        if (!reachable.contains(function) && readNames.contains(function.name)) {
+          reachable.add(function);
+          marker.markBody(function.body);
+          changed = true;
+        }
+      }
+      for (Stmt.Class klass : classes) {
+        if (!reachable.contains(klass) && readNames.contains(klass.name)) {
+          marker.mark(klass);
+          changed = true;
+        }
+      }
+      // Methods of classes found so far, including local ones.
+      for (int i = 0; i < liveClasses.size(); i++) {
+        Stmt.Class klass = liveClasses.get(i);
+        changed |= markMethods(marker, klass.methods);
+        changed |= markMethods(marker, klass.staticMethods);
+      }
+    }
+  }
+
+  // Whether declaring the class can't fail, i.e. it has no superclass or
+  // extends a class declared above it that is never assigned.
+  private boolean isSafeToRemove(Stmt.Class klass, Set<String> classNames) {
+    if (klass.superclass == null) return true;
+    String superclass = klass.superclass.name;
+    return classNames.contains(superclass) && !assignedGlobals.contains(superclass);
+  }
+
+  private boolean markMethods(Marker marker, List<Stmt.Function> methods) {
+    boolean changed = false;
+    for (Stmt.Function method : methods) {
+      if (reachable.contains(method)) continue;
+      if (method.name.equals("init") || propertyNames.contains(method.name)) {
+        reachable.add(method);
+        marker.markBody(method.body);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private void removed(Stmt declaration) {
+    String kind;
+    String name;
+    long position;
+    if (declaration instanceof Stmt.Class) {
+      Stmt.Class klass = (Stmt.Class)declaration;
+      removedClasses++;
+      kind = "class";
+      name = klass.name;
+      position = klass.position;
+    } else {
+      Stmt.Function function = (Stmt.Function)declaration;
+      removedFunctions++;
+      kind = "function";
+      name = function.name;
+      position = function.position;
+    }
+    if (report) {
+      System.err.println("[line: " + Position.line(position) +
+          "] Removed unused " + kind + " '" + name + "'.");
+    }
+  }
+
+  @Override
+  List<Stmt> rewrite(List<Stmt> statements) {
+    int end = statements.size();
+    for (int i = 0; i < statements.size() - 1; i++) {
+      if (statements.get(i) instanceof Stmt.Jump) {
+        end = i + 1;
+        break;
+      }
+    }
+    if (end == statements.size()) return super.rewrite(statements);
+
+    removedStatements += statements.size() - end;
+    return super.rewrite(new ArrayList<>(statements.subList(0, end)));
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = keepReachable(stmt.methods);
+    List<Stmt.Function> staticMethods = keepReachable(stmt.staticMethods);
+    if (methods == stmt.methods && staticMethods == stmt.staticMethods) {
+      return super.visitClassStmt(stmt);
+    }
+    return super.visitClassStmt(new Stmt.Class(stmt.name, stmt.position,
+        stmt.superclass, methods, staticMethods));
+  }
+
+  private List<Stmt.Function> keepReachable(List<Stmt.Function> methods) {
+    List<Stmt.Function> kept = new ArrayList<>(methods.size());
+    for (Stmt.Function method : methods) {
+      if (isReachable(method)) {
+        kept.add(method);
+      } else {
+        removedMethods++;
+        if (report) {
+          System.err.println("[line: " + Position.line(method.position) +
+              "] Removed unused method '" + method.name + "'.");
+        }
+      }
+    }
+    return kept.size() == methods.size() ? methods : kept;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Stmt rewritten = super.visitExpressionStmt(stmt);
+    if (isInert(((Stmt.Expression)rewritten).expression)) {
+      removedExpressions++;
+      return null;
+    }
+    return rewritten;
+  }
+
+  // Whether evaluating the expression can neither fail nor have an
+  // effect.
+  static boolean isInert(Expr expr) {
+    if (expr instanceof Expr.Literal || expr instanceof Expr.Variable ||
+        expr instanceof Expr.This || expr instanceof Expr.Lambda) {
+      return true;
+    }
+    if (expr instanceof Expr.Grouping) {
+      return isInert(((Expr.Grouping)expr).expression);
+    }
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)expr;
+      return isInert(logical.left) && isInert(logical.right);
+    }
+    if (expr instanceof Expr.Ternary) {
+      Expr.Ternary ternary = (Expr.Ternary)expr;
+      return isInert(ternary.cond) && isInert(ternary.ifTrue) &&
+          isInert(ternary.ifFalse);
+    }
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary)expr;
+      return unary.operator == TokenType.BANG && isInert(unary.right);
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      switch (binary.operator) {
+        case EQUAL_EQUAL: case BANG_EQUAL: case COMMA:
+          return isInert(binary.left) && isInert(binary.right);
+        default:
+          return false;
+      }
+    }
+    return false;
+  }
+
+  // Collects the names used by reachable code.
+  private class Marker implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    void mark(Stmt stmt) {
+      if (stmt != null) stmt.accept(this);
+    }
+
+    void mark(Expr expr) {
+      if (expr != null) expr.accept(this);
+    }
+
+    void markBody(List<Stmt> body) {
+      if (body instanceof LazyBody && !((LazyBody)body).isMaterialized()) {
+        sawLazyBody = true;
+        return;
+      }
+      for (Stmt statement : body) {
+        mark(statement);
+      }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      markBody(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+      // Its methods are marked once their names are seen.
+      reachable.add(stmt);
+      liveClasses.add(stmt);
+      mark(stmt.superclass);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      mark(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      reachable.add(stmt);
+      markBody(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      mark(stmt.condition);
+      mark(stmt.thenBranch);
+      mark(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      mark(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      mark(stmt.initializer);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      mark(stmt.condition);
+      mark(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+      mark(stmt.condition);
+      mark(stmt.body);
+      mark(stmt.increment);
+      return null;
+    }
+
+    @Override
+    public Void visitJumpStmt(Stmt.Jump stmt) {
+      mark(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      mark(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      mark(expr.left);
+      mark(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+      mark(expr.cond);
+      mark(expr.ifTrue);
+      mark(expr.ifFalse);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      mark(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      mark(expr.left);
+      mark(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      mark(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      mark(expr.callee);
+      for (Expr argument : expr.arguments) {
+        mark(argument);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      propertyNames.add(expr.name);
+      mark(expr.object);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      mark(expr.object);
+      mark(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      propertyNames.add(expr.method);
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitErroneousExpr(Expr.Erroneous expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      readNames.add(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+      markBody(expr.body);
+      return null;
+    }
+
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+      // The call names the function the body belongs to.
+      mark(expr.call);
+      return null;
+    }
+
+    @Override
+    public Void visitNumericExpr(Expr.Numeric expr) {
+      mark(expr.left);
+      mark(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitIncrementLocalExpr(Expr.IncrementLocal expr) {
+      readNames.add(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitCompareLocalExpr(Expr.CompareLocal expr) {
+      readNames.add(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitGetThisExpr(Expr.GetThis expr) {
+      propertyNames.add(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitCountedExpr(Expr.Counted expr) {
+      mark(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitCountedStmt(Stmt.Counted stmt) {
+      mark(stmt.statement);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Finds assignments to locals whose value is never read. Every operand of
+// an instruction other than a phi or a copy is live, and so is everything
+// a live phi or copy takes its value from. Dead phis and copies are
+// removed.
+final class DeadStoreElimination {
+  private final Ir.Function function;
+  private final Set<Ir.Value> live =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+  private final List<Ir.Value> worklist = new ArrayList<>();
+
+  final Set<Expr.Assign> deadStores =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+
+  DeadStoreElimination(Ir.Function function) {
+    this.function = function;
+  }
+
+  void run() {
+    for (Ir.Block block : function.blocks) {
+      for (Ir.Value value : block.instructions) {
+        if (value.kind == Ir.Kind.COPY) continue;
+        for (Ir.Value operand : value.operands) {
+          markLive(operand);
+        }
+      }
+    }
+    while (!worklist.isEmpty()) {
+      Ir.Value value = worklist.remove(worklist.size() - 1);
+      for (Ir.Value operand : value.operands) {
+        markLive(operand);
+      }
+    }
+
+    for (Ir.Block block : function.blocks) {
+      block.phis.removeIf(phi -> !live.contains(phi));
+      block.instructions.removeIf(value -> {
+        if (value.kind != Ir.Kind.COPY || live.contains(value)) return false;
+        if (value.source != null) deadStores.add((Expr.Assign)value.source);
+        return true;
+      });
+    }
+  }
+
+  private void markLive(Ir.Value value) {
+    if (!live.add(value)) return;
+    if (value.kind == Ir.Kind.PHI || value.kind == Ir.Kind.COPY) {
+      worklist.add(value);
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A source file kept scanned, parsed and resolved across edits, for REPL
+// and editor integrations. An edit re-scans and re-parses only the
+// top-level declarations it touches. All other declarations keep their
+// Stmt trees, and with them their resolution in the Interpreter. The
+// resolution of the declarations an edit replaces is dropped, so closures
+// made from them must not run afterwards. Each declaration is parsed as
+// its own Position file, so those below the edit are moved by shifting
+// that file's line offset. Files of replaced declarations are reused.
+//
+// The REPL keeps its session as a Document and appends each input to it.
+//
+// Lines are numbered from 1 and columns from 0, as in Token.
+class Document {
+  private static class Declaration {
+    final Stmt statement; // null after a syntax error
+    final boolean hadError;
+    final int file;
+    private long start;
+    private long end;
+
+    Declaration(List<Token> tokens, Stmt statement, boolean hadError, int file) {
+      this.statement = statement;
+      this.hadError = hadError;
+      this.file = file;
+
+      Token first = tokens.get(0);
+      int line = first.line;
+      if (first.type == TokenType.STRING) {
+        // A string token is on the line where it ends.
+        line -= first.lexeme.chars().filter(c -> c == '\n').count();
+      }
+      start = position(line, first.column);
+
+      Token last = tokens.get(tokens.size() - 1);
+      int newline = last.lexeme.lastIndexOf('\n');
+      if (last.type == TokenType.ERROR) {
+        end = position(last.line, last.column + 1);
+      } else if (newline >= 0) {
+        end = position(last.line, last.lexeme.length() - newline - 1);
+      } else {
+        end = position(last.line, last.column + last.lexeme.length());
+      }
+    }
+
+    long start() {
+      return start;
+    }
+
+    long end() {
+      return end;
+    }
+
+    void shiftLines(Position.Files files, int delta) {
+      start += (long)delta << 32;
+      end += (long)delta << 32;
+      files.shiftLines(file, delta);
+    }
+  }
+
+  // Hands region tokens to the parser, counting how many it has read so
+  // the tokens can be split up by declaration.
+  private static class RegionTokens implements TokenStream {
+    final List<Token> tokens;
+    int read = 0;
+
+    RegionTokens(List<Token> tokens) {
+      this.tokens = tokens;
+    }
+
+    @Override
+    public Token next() {
+      return tokens.get(read++);
+    }
+  }
+
+  private static class Region {
+    final List<Token> tokens;
+    final boolean unterminated;
+
+    Region(List<Token> tokens, boolean unterminated) {
+      this.tokens = tokens;
+      this.unterminated = unterminated;
+    }
+
+    // Whether no bracket, string or comment is left open at the end.
+    boolean isClosed() {
+      if (unterminated) return false;
+
+      int depth = 0;
+      for (Token token : tokens) {
+        switch (token.type) {
+          case LEFT_BRACE: case LEFT_PAREN: depth++; break;
+          case RIGHT_BRACE: case RIGHT_PAREN: depth--; break;
+          default: break;
+        }
+      }
+      return depth <= 0;
+    }
+  }
+
+  private final Interpreter interpreter;
+  private final List<String> lines;
+  private final List<Declaration> declarations = new ArrayList<>();
+  private final Position.Files files = new Position.Files();
+  // Whether the source ends inside a string or block comment. These can
+  // only be closed by re-scanning everything from where they were opened.
+  private boolean unterminated = false;
+
+  Document(Interpreter interpreter, String source) {
+    this.interpreter = interpreter;
+    this.lines = new ArrayList<>(Arrays.asList(source.split("\n", -1)));
+
+    Lox.useLines(lines);
+    Position.useFiles(files);
+    Region region = scan(position(1, 0), endOfDocument());
+    unterminated = region.unterminated;
+    declarations.addAll(analyze(region.tokens));
+    Lox.hadError = hasErrors();
+  }
+
+  // Whether text can stand as declarations on its own, for the REPL to
+  // ask for more lines while a bracket, string or comment is open.
+  static boolean isComplete(String text) {
+    Scanner scanner = new Scanner(text);
+    return new Region(scanner.scanTokensWithErrors(), scanner.isUnterminated()).isClosed();
+  }
+
+  List<Stmt> statements() {
+    List<Stmt> statements = new ArrayList<>();
+    for (Declaration declaration : declarations) {
+      if (declaration.statement != null) statements.add(declaration.statement);
+    }
+    return statements;
+  }
+
+  boolean hasErrors() {
+    for (Declaration declaration : declarations) {
+      if (declaration.hadError) return true;
+    }
+    return false;
+  }
+
+  String text() {
+    return String.join("\n", lines);
+  }
+
+  int lineCount() {
+    return lines.size();
+  }
+
+  // Adds text at the end. Appended after an empty last line, it is the
+  // only text the edit analyzes.
+  List<Stmt> append(String text) {
+    int last = lines.size();
+    int column = lines.get(last - 1).length();
+    return edit(last, column, last, column, text);
+  }
+
+  // Replaces the text from (startLine, startColumn) up to, but not
+  // including, (endLine, endColumn) with the given text. Returns the
+  // statements of the declarations the edit parsed and resolved again.
+  List<Stmt> edit(int startLine, int startColumn, int endLine, int endColumn, String text) {
+    long editStart = position(startLine, startColumn);
+    long editEnd = position(endLine, endColumn);
+    if (editEnd < editStart || endLine > lines.size()) {
+      throw new IllegalArgumentException("Invalid edit range.");
+    }
+
+    // Declarations touching the edit, plus any that start on the edit's
+    // last line (their columns change) or whose extent depended on what
+    // followed them because of a syntax error.
+    int first = firstEndingAtOrAfter(editStart);
+    while (first > 0 && declarations.get(first - 1).hadError) first--;
+
+    int next = first;
+    while (next < declarations.size() && lineOf(declarations.get(next).start()) <= endLine) {
+      next++;
+    }
+    if (unterminated) next = declarations.size();
+
+    // Apply the edit and move the declarations below it.
+    String prefix = lines.get(startLine - 1).substring(0, startColumn);
+    String suffix = lines.get(endLine - 1).substring(endColumn);
+    List<String> inserted = Arrays.asList((prefix + text + suffix).split("\n", -1));
+    int lineDelta = inserted.size() - (endLine - startLine + 1);
+    lines.subList(startLine - 1, endLine).clear();
+    lines.addAll(startLine - 1, inserted);
+
+    if (lineDelta != 0) {
+      for (int i = next; i < declarations.size(); i++) {
+        declarations.get(i).shiftLines(files, lineDelta);
+      }
+    }
+
+    // Re-scan from the end of the last untouched declaration above to the
+    // start of the first one below. Grow the region while a bracket,
+    // string or comment is still open at its end.
+    Lox.useLines(lines);
+    Position.useFiles(files);
+    long regionStart = first > 0 ? declarations.get(first - 1).end() : position(1, 0);
+    Region region;
+    while (true) {
+      long regionEnd = next < declarations.size()
+          ? declarations.get(next).start() : endOfDocument();
+      region = scan(regionStart, regionEnd);
+      if (region.isClosed() || next == declarations.size()) break;
+      next++;
+    }
+    if (next == declarations.size()) unterminated = region.unterminated;
+
+    List<Declaration> replaced = declarations.subList(first, next);
+    for (Declaration declaration : replaced) {
+      if (declaration.statement != null) {
+        interpreter.forgetResolution(declaration.statement);
+      }
+      files.freeFile(declaration.file);
+    }
+    replaced.clear();
+    List<Declaration> analyzed = analyze(region.tokens);
+    replaced.addAll(analyzed);
+    Lox.hadError = hasErrors();
+
+    List<Stmt> statements = new ArrayList<>();
+    for (Declaration declaration : analyzed) {
+      if (declaration.statement != null) statements.add(declaration.statement);
+    }
+    return statements;
+  }
+
+  private int firstEndingAtOrAfter(long position) {
+    int low = 0;
+    int high = declarations.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (declarations.get(middle).end() < position) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private Region scan(long start, long end) {
+    Scanner scanner = new Scanner(
+        slice(start, end), lineOf(start), columnOf(start));
+    List<Token> tokens = scanner.scanTokensWithErrors();
+    return new Region(tokens, scanner.isUnterminated());
+  }
+
+  private List<Declaration> analyze(List<Token> tokens) {
+    List<Declaration> analyzed = new ArrayList<>();
+    RegionTokens stream = new RegionTokens(tokens);
+    Lox.hadError = false;
+    Parser parser = new Parser(stream, false);
+    Resolver resolver = new Resolver(interpreter);
+
+    int end = 0;
+    while (parser.hasMoreDeclarations()) {
+      int file = files.newFile();
+      parser.useFile(file);
+      Stmt statement = parser.parseDeclaration();
+      if (statement != null && !Lox.hadError) resolver.resolve(statement);
+
+      // The parser has already read the token after the declaration.
+      int consumed = stream.read - 1;
+      analyzed.add(new Declaration(
+          tokens.subList(end, consumed), statement, Lox.hadError, file));
+      end = consumed;
+      Lox.hadError = false;
+    }
+
+    // Only scanner errors left before EOF.
+    if (end < tokens.size() - 1) {
+      analyzed.add(new Declaration(
+          tokens.subList(end, tokens.size() - 1), null, true, files.newFile()));
+    }
+    return analyzed;
+  }
+
+  private String slice(long start, long end) {
+    int startLine = lineOf(start);
+    int endLine = lineOf(end);
+    String first = lines.get(startLine - 1);
+    if (startLine == endLine) {
+      return first.substring(
+          Math.min(columnOf(start), first.length()),
+          Math.min(columnOf(end), first.length()));
+    }
+
+    StringBuilder text = new StringBuilder();
+    text.append(first, Math.min(columnOf(start), first.length()), first.length());
+    for (int line = startLine + 1; line < endLine; line++) {
+      text.append('\n').append(lines.get(line - 1));
+    }
+    String last = lines.get(endLine - 1);
+    text.append('\n').append(last, 0, Math.min(columnOf(end), last.length()));
+    return text.toString();
+  }
+
+  private long endOfDocument() {
+    return position(lines.size(), lines.get(lines.size() - 1).length());
+  }
+
+  private static long position(int line, int column) {
+    return ((long)line << 32) | Math.max(column, 0);
+  }
+
+  private static int lineOf(long position) {
+    return (int)(position >>> 32);
+  }
+
+  private static int columnOf(long position) {
+    return (int)position;
+  }
+}
@@ -10,11 +10,13 @@ class Environment {
   private final List<Object> values = new ArrayList<>();
   
   Environment() {
-    enclosing = null;
+    this(null);
   }
   
   Environment(Environment enclosing) {
     this.enclosing = enclosing;
+    Metrics metrics = Metrics.active;
+    if (metrics != null) metrics.environments.increment();
   }
   
   void define(Object value) {
@@ -43,5 +45,10 @@ class Environment {
     return environment;
   }
   
+  // For the heap census.
+  List<Object> values() {
+    return values;
+  }
+  
   
 }
@@ -19,10 +19,17 @@ abstract class Expr {
     R visitErroneousExpr(Erroneous expr);
     R visitVariableExpr(Variable expr);
     R visitLambdaExpr(Lambda expr);
+    R visitInlineExpr(Inline expr);
+    R visitNumericExpr(Numeric expr);
+    R visitIncrementLocalExpr(IncrementLocal expr);
+    R visitCompareLocalExpr(CompareLocal expr);
+    R visitGetThisExpr(GetThis expr);
+    R visitCountedExpr(Counted expr);
   }
   static class Assign extends Expr {
-    Assign(Token name, Expr value) {
+    Assign(String name, long position, Expr value) {
       this.name = name;
+      this.position = position;
       this.value = value;
     }
 
@@ -31,13 +38,15 @@ abstract class Expr {
       return visitor.visitAssignExpr(this);
     }
 
-    final Token name;
+    final String name;
+    final long position;
     final Expr value;
   }
   static class Binary extends Expr {
-    Binary(Expr left, Token operator, Expr right) {
+    Binary(Expr left, TokenType operator, long position, Expr right) {
       this.left = left;
       this.operator = operator;
+      this.position = position;
       this.right = right;
     }
 
@@ -47,7 +56,8 @@ abstract class Expr {
     }
 
     final Expr left;
-    final Token operator;
+    final TokenType operator;
+    final long position;
     final Expr right;
   }
   static class Ternary extends Expr {
@@ -91,9 +101,10 @@ abstract class Expr {
     final Object value;
   }
   static class Logical extends Expr {
-    Logical(Expr left, Token operator, Expr right) {
+    Logical(Expr left, TokenType operator, long position, Expr right) {
       this.left = left;
       this.operator = operator;
+      this.position = position;
       this.right = right;
     }
 
@@ -103,12 +114,14 @@ abstract class Expr {
     }
 
     final Expr left;
-    final Token operator;
+    final TokenType operator;
+    final long position;
     final Expr right;
   }
   static class Unary extends Expr {
-    Unary(Token operator, Expr right) {
+    Unary(TokenType operator, long position, Expr right) {
       this.operator = operator;
+      this.position = position;
       this.right = right;
     }
 
@@ -117,13 +130,14 @@ abstract class Expr {
       return visitor.visitUnaryExpr(this);
     }
 
-    final Token operator;
+    final TokenType operator;
+    final long position;
     final Expr right;
   }
   static class Call extends Expr {
-    Call(Expr callee, Token paren, List<Expr> arguments) {
+    Call(Expr callee, long position, List<Expr> arguments) {
       this.callee = callee;
-      this.paren = paren;
+      this.position = position;
       this.arguments = arguments;
     }
 
@@ -133,13 +147,14 @@ abstract class Expr {
     }
 
     final Expr callee;
-    final Token paren;
+    final long position;
     final List<Expr> arguments;
   }
   static class Get extends Expr {
-    Get(Expr object, Token name) {
+    Get(Expr object, String name, long position) {
       this.object = object;
       this.name = name;
+      this.position = position;
     }
 
     @Override
@@ -148,12 +163,14 @@ abstract class Expr {
     }
 
     final Expr object;
-    final Token name;
+    final String name;
+    final long position;
   }
   static class Set extends Expr {
-    Set(Expr object, Token name, Expr value) {
+    Set(Expr object, String name, long position, Expr value) {
       this.object = object;
       this.name = name;
+      this.position = position;
       this.value = value;
     }
 
@@ -163,13 +180,15 @@ abstract class Expr {
     }
 
     final Expr object;
-    final Token name;
+    final String name;
+    final long position;
     final Expr value;
   }
   static class Super extends Expr {
-    Super(Token keyword, Token method) {
-      this.keyword = keyword;
+    Super(long position, String method, long methodPosition) {
+      this.position = position;
       this.method = method;
+      this.methodPosition = methodPosition;
     }
 
     @Override
@@ -177,12 +196,13 @@ abstract class Expr {
       return visitor.visitSuperExpr(this);
     }
 
-    final Token keyword;
-    final Token method;
+    final long position;
+    final String method;
+    final long methodPosition;
   }
   static class This extends Expr {
-    This(Token keyword) {
-      this.keyword = keyword;
+    This(long position) {
+      this.position = position;
     }
 
     @Override
@@ -190,7 +210,7 @@ abstract class Expr {
       return visitor.visitThisExpr(this);
     }
 
-    final Token keyword;
+    final long position;
   }
   static class Erroneous extends Expr {
     Erroneous(ExprErrType error_type) {
@@ -205,8 +225,9 @@ abstract class Expr {
     final ExprErrType error_type;
   }
   static class Variable extends Expr {
-    Variable(Token name) {
+    Variable(String name, long position) {
       this.name = name;
+      this.position = position;
     }
 
     @Override
@@ -214,11 +235,14 @@ abstract class Expr {
       return visitor.visitVariableExpr(this);
     }
 
-    final Token name;
+    final String name;
+    final long position;
   }
   static class Lambda extends Expr {
-    Lambda(List<Token> params, List<Stmt> body) {
+    Lambda(long position, List<String> params, long[] paramPositions, List<Stmt> body) {
+      this.position = position;
       this.params = params;
+      this.paramPositions = paramPositions;
       this.body = body;
     }
 
@@ -227,9 +251,107 @@ abstract class Expr {
       return visitor.visitLambdaExpr(this);
     }
 
-    final List<Token> params;
+    final long position;
+    final List<String> params;
+    final long[] paramPositions;
     final List<Stmt> body;
   }
+  static class Inline extends Expr {
+    Inline(Expr.Call call, Expr body) {
+      this.call = call;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInlineExpr(this);
+    }
+
+    final Expr.Call call;
+    final Expr body;
+  }
+  static class Numeric extends Expr {
+    Numeric(Expr left, TokenType operator, long position, Expr right) {
+      this.left = left;
+      this.operator = operator;
+      this.position = position;
+      this.right = right;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitNumericExpr(this);
+    }
+
+    final Expr left;
+    final TokenType operator;
+    final long position;
+    final Expr right;
+  }
+  static class IncrementLocal extends Expr {
+    IncrementLocal(String name, long position, TokenType operator, double constant) {
+      this.name = name;
+      this.position = position;
+      this.operator = operator;
+      this.constant = constant;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIncrementLocalExpr(this);
+    }
+
+    final String name;
+    final long position;
+    final TokenType operator;
+    final double constant;
+  }
+  static class CompareLocal extends Expr {
+    CompareLocal(String name, long position, TokenType operator, double constant) {
+      this.name = name;
+      this.position = position;
+      this.operator = operator;
+      this.constant = constant;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCompareLocalExpr(this);
+    }
+
+    final String name;
+    final long position;
+    final TokenType operator;
+    final double constant;
+  }
+  static class GetThis extends Expr {
+    GetThis(String name, long position) {
+      this.name = name;
+      this.position = position;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitGetThisExpr(this);
+    }
+
+    final String name;
+    final long position;
+  }
+  static class Counted extends Expr {
+    Counted(int slot, Expr expression) {
+      this.slot = slot;
+      this.expression = expression;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCountedExpr(this);
+    }
+
+    final int slot;
+    final Expr expression;
+  }
 
   abstract <R> R accept(Visitor<R> visitor);
 }
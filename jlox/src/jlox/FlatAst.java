@@ -0,0 +1,914 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class FlatAst {
+  static final int NONE = -1;
+
+  static final int ASSIGN_EXPR = 0;
+  static final int BINARY_EXPR = 1;
+  static final int TERNARY_EXPR = 2;
+  static final int GROUPING_EXPR = 3;
+  static final int LITERAL_EXPR = 4;
+  static final int LOGICAL_EXPR = 5;
+  static final int UNARY_EXPR = 6;
+  static final int CALL_EXPR = 7;
+  static final int GET_EXPR = 8;
+  static final int SET_EXPR = 9;
+  static final int SUPER_EXPR = 10;
+  static final int THIS_EXPR = 11;
+  static final int ERRONEOUS_EXPR = 12;
+  static final int VARIABLE_EXPR = 13;
+  static final int LAMBDA_EXPR = 14;
+  static final int INLINE_EXPR = 15;
+  static final int NUMERIC_EXPR = 16;
+  static final int INCREMENT_LOCAL_EXPR = 17;
+  static final int COMPARE_LOCAL_EXPR = 18;
+  static final int GET_THIS_EXPR = 19;
+  static final int COUNTED_EXPR = 20;
+  static final int BLOCK_STMT = 21;
+  static final int CLASS_STMT = 22;
+  static final int EXPRESSION_STMT = 23;
+  static final int FUNCTION_STMT = 24;
+  static final int IF_STMT = 25;
+  static final int PRINT_STMT = 26;
+  static final int VAR_STMT = 27;
+  static final int WHILE_STMT = 28;
+  static final int FOR_STMT = 29;
+  static final int JUMP_STMT = 30;
+  static final int COUNTED_STMT = 31;
+
+  private static final TokenType[] TOKEN_TYPE_VALUES = TokenType.values();
+  private static final ExprErrType[] EXPR_ERR_TYPE_VALUES = ExprErrType.values();
+
+  private int[] data = new int[256];
+  private int size = 0;
+  private final List<Object> constants = new ArrayList<>();
+
+  FlatAst() {}
+
+  // An arena and constant table saved earlier, see ProgramCache.
+  FlatAst(int[] data, List<Object> constants) {
+    this.data = data;
+    this.size = data.length;
+    this.constants.addAll(constants);
+  }
+
+  int[] data() {
+    return Arrays.copyOf(data, size);
+  }
+
+  List<Object> constants() {
+    return constants;
+  }
+
+  int kind(int node) {
+    return data[node];
+  }
+
+  // Number of ints in the arena.
+  int size() {
+    return size;
+  }
+
+  int constantCount() {
+    return constants.size();
+  }
+
+  int count(int list) {
+    return data[list];
+  }
+
+  int element(int list, int index) {
+    return data[list + 1 + index];
+  }
+
+  int addList(int[] elements) {
+    int list = reserve(1 + elements.length);
+    data[list] = elements.length;
+    System.arraycopy(elements, 0, data, list + 1, elements.length);
+    return list;
+  }
+
+  // Drops the arena's spare capacity once the tree is complete.
+  void trimToSize() {
+    data = Arrays.copyOf(data, size);
+  }
+
+  private int reserve(int length) {
+    if (size + length > data.length) {
+      data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));
+    }
+    int start = size;
+    size += length;
+    return start;
+  }
+
+  private int addConstant(Object value) {
+    constants.add(value);
+    return constants.size() - 1;
+  }
+
+  private long longAt(int slot) {
+    return ((long)data[slot] << 32) | (data[slot + 1] & 0xffffffffL);
+  }
+
+  private void putLong(int slot, long value) {
+    data[slot] = (int)(value >>> 32);
+    data[slot + 1] = (int)value;
+  }
+
+  // Assign : String name, long position, Expr value
+  int addAssignExpr(String name, long position, int value) {
+    int node = reserve(7);
+    data[node] = ASSIGN_EXPR;
+    data[node + 1] = addConstant(name);
+    putLong(node + 2, position);
+    data[node + 4] = value;
+    data[node + 5] = NONE;
+    data[node + 6] = NONE;
+    return node;
+  }
+
+  String assignExprName(int node) {
+    return (String)constants.get(data[node + 1]);
+  }
+
+  long assignExprPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  int assignExprValue(int node) {
+    return data[node + 4];
+  }
+
+  int assignExprDepth(int node) {
+    return data[node + 5];
+  }
+
+  void setAssignExprDepth(int node, int value) {
+    data[node + 5] = value;
+  }
+
+  int assignExprIndex(int node) {
+    return data[node + 6];
+  }
+
+  void setAssignExprIndex(int node, int value) {
+    data[node + 6] = value;
+  }
+
+  // Binary : Expr left, TokenType operator, long position, Expr right
+  int addBinaryExpr(int left, TokenType operator, long position, int right) {
+    int node = reserve(6);
+    data[node] = BINARY_EXPR;
+    data[node + 1] = left;
+    data[node + 2] = operator.ordinal();
+    putLong(node + 3, position);
+    data[node + 5] = right;
+    return node;
+  }
+
+  int binaryExprLeft(int node) {
+    return data[node + 1];
+  }
+
+  TokenType binaryExprOperator(int node) {
+    return TOKEN_TYPE_VALUES[data[node + 2]];
+  }
+
+  long binaryExprPosition(int node) {
+    return longAt(node + 3);
+  }
+
+  int binaryExprRight(int node) {
+    return data[node + 5];
+  }
+
+  // Ternary : Expr cond, Expr ifTrue, Expr ifFalse
+  int addTernaryExpr(int cond, int ifTrue, int ifFalse) {
+    int node = reserve(4);
+    data[node] = TERNARY_EXPR;
+    data[node + 1] = cond;
+    data[node + 2] = ifTrue;
+    data[node + 3] = ifFalse;
+    return node;
+  }
+
+  int ternaryExprCond(int node) {
+    return data[node + 1];
+  }
+
+  int ternaryExprIfTrue(int node) {
+    return data[node + 2];
+  }
+
+  int ternaryExprIfFalse(int node) {
+    return data[node + 3];
+  }
+
+  // Grouping : Expr expression
+  int addGroupingExpr(int expression) {
+    int node = reserve(2);
+    data[node] = GROUPING_EXPR;
+    data[node + 1] = expression;
+    return node;
+  }
+
+  int groupingExprExpression(int node) {
+    return data[node + 1];
+  }
+
+  // Literal : Object value
+  int addLiteralExpr(Object value) {
+    int node = reserve(2);
+    data[node] = LITERAL_EXPR;
+    data[node + 1] = addConstant(value);
+    return node;
+  }
+
+  Object literalExprValue(int node) {
+    return constants.get(data[node + 1]);
+  }
+
+  // Logical : Expr left, TokenType operator, long position, Expr right
+  int addLogicalExpr(int left, TokenType operator, long position, int right) {
+    int node = reserve(6);
+    data[node] = LOGICAL_EXPR;
+    data[node + 1] = left;
+    data[node + 2] = operator.ordinal();
+    putLong(node + 3, position);
+    data[node + 5] = right;
+    return node;
+  }
+
+  int logicalExprLeft(int node) {
+    return data[node + 1];
+  }
+
+  TokenType logicalExprOperator(int node) {
+    return TOKEN_TYPE_VALUES[data[node + 2]];
+  }
+
+  long logicalExprPosition(int node) {
+    return longAt(node + 3);
+  }
+
+  int logicalExprRight(int node) {
+    return data[node + 5];
+  }
+
+  // Unary : TokenType operator, long position, Expr right
+  int addUnaryExpr(TokenType operator, long position, int right) {
+    int node = reserve(5);
+    data[node] = UNARY_EXPR;
+    data[node + 1] = operator.ordinal();
+    putLong(node + 2, position);
+    data[node + 4] = right;
+    return node;
+  }
+
+  TokenType unaryExprOperator(int node) {
+    return TOKEN_TYPE_VALUES[data[node + 1]];
+  }
+
+  long unaryExprPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  int unaryExprRight(int node) {
+    return data[node + 4];
+  }
+
+  // Call : Expr callee, long position, List<Expr> arguments
+  int addCallExpr(int callee, long position, int arguments) {
+    int node = reserve(5);
+    data[node] = CALL_EXPR;
+    data[node + 1] = callee;
+    putLong(node + 2, position);
+    data[node + 4] = arguments;
+    return node;
+  }
+
+  int callExprCallee(int node) {
+    return data[node + 1];
+  }
+
+  long callExprPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  int callExprArguments(int node) {
+    return data[node + 4];
+  }
+
+  // Get : Expr object, String name, long position
+  int addGetExpr(int object, String name, long position) {
+    int node = reserve(5);
+    data[node] = GET_EXPR;
+    data[node + 1] = object;
+    data[node + 2] = addConstant(name);
+    putLong(node + 3, position);
+    return node;
+  }
+
+  int getExprObject(int node) {
+    return data[node + 1];
+  }
+
+  String getExprName(int node) {
+    return (String)constants.get(data[node + 2]);
+  }
+
+  long getExprPosition(int node) {
+    return longAt(node + 3);
+  }
+
+  // Set : Expr object, String name, long position, Expr value
+  int addSetExpr(int object, String name, long position, int value) {
+    int node = reserve(6);
+    data[node] = SET_EXPR;
+    data[node + 1] = object;
+    data[node + 2] = addConstant(name);
+    putLong(node + 3, position);
+    data[node + 5] = value;
+    return node;
+  }
+
+  int setExprObject(int node) {
+    return data[node + 1];
+  }
+
+  String setExprName(int node) {
+    return (String)constants.get(data[node + 2]);
+  }
+
+  long setExprPosition(int node) {
+    return longAt(node + 3);
+  }
+
+  int setExprValue(int node) {
+    return data[node + 5];
+  }
+
+  // Super : long position, String method, long methodPosition
+  int addSuperExpr(long position, String method, long methodPosition) {
+    int node = reserve(8);
+    data[node] = SUPER_EXPR;
+    putLong(node + 1, position);
+    data[node + 3] = addConstant(method);
+    putLong(node + 4, methodPosition);
+    data[node + 6] = NONE;
+    data[node + 7] = NONE;
+    return node;
+  }
+
+  long superExprPosition(int node) {
+    return longAt(node + 1);
+  }
+
+  String superExprMethod(int node) {
+    return (String)constants.get(data[node + 3]);
+  }
+
+  long superExprMethodPosition(int node) {
+    return longAt(node + 4);
+  }
+
+  int superExprDepth(int node) {
+    return data[node + 6];
+  }
+
+  void setSuperExprDepth(int node, int value) {
+    data[node + 6] = value;
+  }
+
+  int superExprIndex(int node) {
+    return data[node + 7];
+  }
+
+  void setSuperExprIndex(int node, int value) {
+    data[node + 7] = value;
+  }
+
+  // This : long position
+  int addThisExpr(long position) {
+    int node = reserve(5);
+    data[node] = THIS_EXPR;
+    putLong(node + 1, position);
+    data[node + 3] = NONE;
+    data[node + 4] = NONE;
+    return node;
+  }
+
+  long thisExprPosition(int node) {
+    return longAt(node + 1);
+  }
+
+  int thisExprDepth(int node) {
+    return data[node + 3];
+  }
+
+  void setThisExprDepth(int node, int value) {
+    data[node + 3] = value;
+  }
+
+  int thisExprIndex(int node) {
+    return data[node + 4];
+  }
+
+  void setThisExprIndex(int node, int value) {
+    data[node + 4] = value;
+  }
+
+  // Erroneous : ExprErrType error_type
+  int addErroneousExpr(ExprErrType error_type) {
+    int node = reserve(2);
+    data[node] = ERRONEOUS_EXPR;
+    data[node + 1] = error_type.ordinal();
+    return node;
+  }
+
+  ExprErrType erroneousExprErrorType(int node) {
+    return EXPR_ERR_TYPE_VALUES[data[node + 1]];
+  }
+
+  // Variable : String name, long position
+  int addVariableExpr(String name, long position) {
+    int node = reserve(6);
+    data[node] = VARIABLE_EXPR;
+    data[node + 1] = addConstant(name);
+    putLong(node + 2, position);
+    data[node + 4] = NONE;
+    data[node + 5] = NONE;
+    return node;
+  }
+
+  String variableExprName(int node) {
+    return (String)constants.get(data[node + 1]);
+  }
+
+  long variableExprPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  int variableExprDepth(int node) {
+    return data[node + 4];
+  }
+
+  void setVariableExprDepth(int node, int value) {
+    data[node + 4] = value;
+  }
+
+  int variableExprIndex(int node) {
+    return data[node + 5];
+  }
+
+  void setVariableExprIndex(int node, int value) {
+    data[node + 5] = value;
+  }
+
+  // Lambda : long position, List<String> params, long[] paramPositions, List<Stmt> body
+  int addLambdaExpr(long position, List<String> params, long[] paramPositions, int body) {
+    int node = reserve(6);
+    data[node] = LAMBDA_EXPR;
+    putLong(node + 1, position);
+    data[node + 3] = addConstant(params);
+    data[node + 4] = addConstant(paramPositions);
+    data[node + 5] = body;
+    return node;
+  }
+
+  long lambdaExprPosition(int node) {
+    return longAt(node + 1);
+  }
+
+  @SuppressWarnings("unchecked")
+  List<String> lambdaExprParams(int node) {
+    return (List<String>)constants.get(data[node + 3]);
+  }
+
+  long[] lambdaExprParamPositions(int node) {
+    return (long[])constants.get(data[node + 4]);
+  }
+
+  int lambdaExprBody(int node) {
+    return data[node + 5];
+  }
+
+  // Inline : Expr.Call call, Expr body
+  int addInlineExpr(int call, int body) {
+    int node = reserve(3);
+    data[node] = INLINE_EXPR;
+    data[node + 1] = call;
+    data[node + 2] = body;
+    return node;
+  }
+
+  int inlineExprCall(int node) {
+    return data[node + 1];
+  }
+
+  int inlineExprBody(int node) {
+    return data[node + 2];
+  }
+
+  // Numeric : Expr left, TokenType operator, long position, Expr right
+  int addNumericExpr(int left, TokenType operator, long position, int right) {
+    int node = reserve(6);
+    data[node] = NUMERIC_EXPR;
+    data[node + 1] = left;
+    data[node + 2] = operator.ordinal();
+    putLong(node + 3, position);
+    data[node + 5] = right;
+    return node;
+  }
+
+  int numericExprLeft(int node) {
+    return data[node + 1];
+  }
+
+  TokenType numericExprOperator(int node) {
+    return TOKEN_TYPE_VALUES[data[node + 2]];
+  }
+
+  long numericExprPosition(int node) {
+    return longAt(node + 3);
+  }
+
+  int numericExprRight(int node) {
+    return data[node + 5];
+  }
+
+  // IncrementLocal : String name, long position, TokenType operator, double constant
+  int addIncrementLocalExpr(String name, long position, TokenType operator, double constant) {
+    int node = reserve(8);
+    data[node] = INCREMENT_LOCAL_EXPR;
+    data[node + 1] = addConstant(name);
+    putLong(node + 2, position);
+    data[node + 4] = operator.ordinal();
+    data[node + 5] = addConstant(constant);
+    data[node + 6] = NONE;
+    data[node + 7] = NONE;
+    return node;
+  }
+
+  String incrementLocalExprName(int node) {
+    return (String)constants.get(data[node + 1]);
+  }
+
+  long incrementLocalExprPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  TokenType incrementLocalExprOperator(int node) {
+    return TOKEN_TYPE_VALUES[data[node + 4]];
+  }
+
+  double incrementLocalExprConstant(int node) {
+    return (double)constants.get(data[node + 5]);
+  }
+
+  int incrementLocalExprDepth(int node) {
+    return data[node + 6];
+  }
+
+  void setIncrementLocalExprDepth(int node, int value) {
+    data[node + 6] = value;
+  }
+
+  int incrementLocalExprIndex(int node) {
+    return data[node + 7];
+  }
+
+  void setIncrementLocalExprIndex(int node, int value) {
+    data[node + 7] = value;
+  }
+
+  // CompareLocal : String name, long position, TokenType operator, double constant
+  int addCompareLocalExpr(String name, long position, TokenType operator, double constant) {
+    int node = reserve(8);
+    data[node] = COMPARE_LOCAL_EXPR;
+    data[node + 1] = addConstant(name);
+    putLong(node + 2, position);
+    data[node + 4] = operator.ordinal();
+    data[node + 5] = addConstant(constant);
+    data[node + 6] = NONE;
+    data[node + 7] = NONE;
+    return node;
+  }
+
+  String compareLocalExprName(int node) {
+    return (String)constants.get(data[node + 1]);
+  }
+
+  long compareLocalExprPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  TokenType compareLocalExprOperator(int node) {
+    return TOKEN_TYPE_VALUES[data[node + 4]];
+  }
+
+  double compareLocalExprConstant(int node) {
+    return (double)constants.get(data[node + 5]);
+  }
+
+  int compareLocalExprDepth(int node) {
+    return data[node + 6];
+  }
+
+  void setCompareLocalExprDepth(int node, int value) {
+    data[node + 6] = value;
+  }
+
+  int compareLocalExprIndex(int node) {
+    return data[node + 7];
+  }
+
+  void setCompareLocalExprIndex(int node, int value) {
+    data[node + 7] = value;
+  }
+
+  // GetThis : String name, long position
+  int addGetThisExpr(String name, long position) {
+    int node = reserve(6);
+    data[node] = GET_THIS_EXPR;
+    data[node + 1] = addConstant(name);
+    putLong(node + 2, position);
+    data[node + 4] = NONE;
+    data[node + 5] = NONE;
+    return node;
+  }
+
+  String getThisExprName(int node) {
+    return (String)constants.get(data[node + 1]);
+  }
+
+  long getThisExprPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  int getThisExprDepth(int node) {
+    return data[node + 4];
+  }
+
+  void setGetThisExprDepth(int node, int value) {
+    data[node + 4] = value;
+  }
+
+  int getThisExprIndex(int node) {
+    return data[node + 5];
+  }
+
+  void setGetThisExprIndex(int node, int value) {
+    data[node + 5] = value;
+  }
+
+  // Counted : int slot, Expr expression
+  int addCountedExpr(int slot, int expression) {
+    int node = reserve(3);
+    data[node] = COUNTED_EXPR;
+    data[node + 1] = slot;
+    data[node + 2] = expression;
+    return node;
+  }
+
+  int countedExprSlot(int node) {
+    return data[node + 1];
+  }
+
+  int countedExprExpression(int node) {
+    return data[node + 2];
+  }
+
+  // Block : long position, List<Stmt> statements
+  int addBlockStmt(long position, int statements) {
+    int node = reserve(4);
+    data[node] = BLOCK_STMT;
+    putLong(node + 1, position);
+    data[node + 3] = statements;
+    return node;
+  }
+
+  long blockStmtPosition(int node) {
+    return longAt(node + 1);
+  }
+
+  int blockStmtStatements(int node) {
+    return data[node + 3];
+  }
+
+  // Class : String name, long position, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods
+  int addClassStmt(String name, long position, int superclass, int methods, int staticMethods) {
+    int node = reserve(7);
+    data[node] = CLASS_STMT;
+    data[node + 1] = addConstant(name);
+    putLong(node + 2, position);
+    data[node + 4] = superclass;
+    data[node + 5] = methods;
+    data[node + 6] = staticMethods;
+    return node;
+  }
+
+  String classStmtName(int node) {
+    return (String)constants.get(data[node + 1]);
+  }
+
+  long classStmtPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  int classStmtSuperclass(int node) {
+    return data[node + 4];
+  }
+
+  int classStmtMethods(int node) {
+    return data[node + 5];
+  }
+
+  int classStmtStaticMethods(int node) {
+    return data[node + 6];
+  }
+
+  // Expression : Expr expression
+  int addExpressionStmt(int expression) {
+    int node = reserve(2);
+    data[node] = EXPRESSION_STMT;
+    data[node + 1] = expression;
+    return node;
+  }
+
+  int expressionStmtExpression(int node) {
+    return data[node + 1];
+  }
+
+  // Function : String name, long position, List<String> params, long[] paramPositions, List<Stmt> body
+  int addFunctionStmt(String name, long position, List<String> params, long[] paramPositions, int body) {
+    int node = reserve(7);
+    data[node] = FUNCTION_STMT;
+    data[node + 1] = addConstant(name);
+    putLong(node + 2, position);
+    data[node + 4] = addConstant(params);
+    data[node + 5] = addConstant(paramPositions);
+    data[node + 6] = body;
+    return node;
+  }
+
+  String functionStmtName(int node) {
+    return (String)constants.get(data[node + 1]);
+  }
+
+  long functionStmtPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  @SuppressWarnings("unchecked")
+  List<String> functionStmtParams(int node) {
+    return (List<String>)constants.get(data[node + 4]);
+  }
+
+  long[] functionStmtParamPositions(int node) {
+    return (long[])constants.get(data[node + 5]);
+  }
+
+  int functionStmtBody(int node) {
+    return data[node + 6];
+  }
+
+  // If : Expr condition, Stmt thenBranch, Stmt elseBranch
+  int addIfStmt(int condition, int thenBranch, int elseBranch) {
+    int node = reserve(4);
+    data[node] = IF_STMT;
+    data[node + 1] = condition;
+    data[node + 2] = thenBranch;
+    data[node + 3] = elseBranch;
+    return node;
+  }
+
+  int ifStmtCondition(int node) {
+    return data[node + 1];
+  }
+
+  int ifStmtThenBranch(int node) {
+    return data[node + 2];
+  }
+
+  int ifStmtElseBranch(int node) {
+    return data[node + 3];
+  }
+
+  // Print : Expr expression
+  int addPrintStmt(int expression) {
+    int node = reserve(2);
+    data[node] = PRINT_STMT;
+    data[node + 1] = expression;
+    return node;
+  }
+
+  int printStmtExpression(int node) {
+    return data[node + 1];
+  }
+
+  // Var : String name, long position, Expr initializer
+  int addVarStmt(String name, long position, int initializer) {
+    int node = reserve(5);
+    data[node] = VAR_STMT;
+    data[node + 1] = addConstant(name);
+    putLong(node + 2, position);
+    data[node + 4] = initializer;
+    return node;
+  }
+
+  String varStmtName(int node) {
+    return (String)constants.get(data[node + 1]);
+  }
+
+  long varStmtPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  int varStmtInitializer(int node) {
+    return data[node + 4];
+  }
+
+  // While : Expr condition, Stmt body
+  int addWhileStmt(int condition, int body) {
+    int node = reserve(3);
+    data[node] = WHILE_STMT;
+    data[node + 1] = condition;
+    data[node + 2] = body;
+    return node;
+  }
+
+  int whileStmtCondition(int node) {
+    return data[node + 1];
+  }
+
+  int whileStmtBody(int node) {
+    return data[node + 2];
+  }
+
+  // For : Expr condition, Stmt body, Expr increment
+  int addForStmt(int condition, int body, int increment) {
+    int node = reserve(4);
+    data[node] = FOR_STMT;
+    data[node + 1] = condition;
+    data[node + 2] = body;
+    data[node + 3] = increment;
+    return node;
+  }
+
+  int forStmtCondition(int node) {
+    return data[node + 1];
+  }
+
+  int forStmtBody(int node) {
+    return data[node + 2];
+  }
+
+  int forStmtIncrement(int node) {
+    return data[node + 3];
+  }
+
+  // Jump : TokenType keyword, long position, Expr value
+  int addJumpStmt(TokenType keyword, long position, int value) {
+    int node = reserve(5);
+    data[node] = JUMP_STMT;
+    data[node + 1] = keyword.ordinal();
+    putLong(node + 2, position);
+    data[node + 4] = value;
+    return node;
+  }
+
+  TokenType jumpStmtKeyword(int node) {
+    return TOKEN_TYPE_VALUES[data[node + 1]];
+  }
+
+  long jumpStmtPosition(int node) {
+    return longAt(node + 2);
+  }
+
+  int jumpStmtValue(int node) {
+    return data[node + 4];
+  }
+
+  // Counted : int slot, Stmt statement
+  int addCountedStmt(int slot, int statement) {
+    int node = reserve(3);
+    data[node] = COUNTED_STMT;
+    data[node + 1] = slot;
+    data[node + 2] = statement;
+    return node;
+  }
+
+  int countedStmtSlot(int node) {
+    return data[node + 1];
+  }
+
+  int countedStmtStatement(int node) {
+    return data[node + 2];
+  }
+}
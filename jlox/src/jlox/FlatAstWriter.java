@@ -0,0 +1,226 @@
+package jlox;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+class FlatAstWriter implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+  private final FlatAst ast;
+  // Nodes that occur more than once in the tree, with their handle once
+  // written.
+  private final Map<Expr, Integer> shared = new IdentityHashMap<>();
+
+  FlatAstWriter(FlatAst ast) {
+    this.ast = ast;
+  }
+
+  // Writes the node only once, wherever it occurs.
+  void share(Expr expr) {
+    shared.putIfAbsent(expr, FlatAst.NONE);
+  }
+
+  int write(Expr expr) {
+    if (expr == null) return FlatAst.NONE;
+    if (shared.isEmpty()) return expr.accept(this);
+
+    Integer handle = shared.get(expr);
+    if (handle == null) return expr.accept(this);
+    if (handle == FlatAst.NONE) {
+      handle = expr.accept(this);
+      shared.put(expr, handle);
+    }
+    return handle;
+  }
+
+  int write(Stmt stmt) {
+    return stmt == null ? FlatAst.NONE : stmt.accept(this);
+  }
+
+  int writeExprs(List<? extends Expr> exprs) {
+    int[] elements = new int[exprs.size()];
+    for (int i = 0; i < elements.length; i++) {
+      elements[i] = write(exprs.get(i));
+    }
+    return ast.addList(elements);
+  }
+
+  int writeStmts(List<? extends Stmt> stmts) {
+    int[] elements = new int[stmts.size()];
+    for (int i = 0; i < elements.length; i++) {
+      elements[i] = write(stmts.get(i));
+    }
+    return ast.addList(elements);
+  }
+
+  // Writes a program's top-level statements, taking each out of the
+  // list once written so its tree can be collected while the rest
+  // are.
+  int writeProgram(List<Stmt> stmts) {
+    int[] elements = new int[stmts.size()];
+    for (int i = 0; i < elements.length; i++) {
+      elements[i] = write(stmts.get(i));
+      stmts.set(i, null);
+    }
+    return ast.addList(elements);
+  }
+
+  @Override
+  public Integer visitAssignExpr(Expr.Assign expr) {
+    return ast.addAssignExpr(expr.name, expr.position, write(expr.value));
+  }
+
+  @Override
+  public Integer visitBinaryExpr(Expr.Binary expr) {
+    return ast.addBinaryExpr(write(expr.left), expr.operator, expr.position, write(expr.right));
+  }
+
+  @Override
+  public Integer visitTernaryExpr(Expr.Ternary expr) {
+    return ast.addTernaryExpr(write(expr.cond), write(expr.ifTrue), write(expr.ifFalse));
+  }
+
+  @Override
+  public Integer visitGroupingExpr(Expr.Grouping expr) {
+    return ast.addGroupingExpr(write(expr.expression));
+  }
+
+  @Override
+  public Integer visitLiteralExpr(Expr.Literal expr) {
+    return ast.addLiteralExpr(expr.value);
+  }
+
+  @Override
+  public Integer visitLogicalExpr(Expr.Logical expr) {
+    return ast.addLogicalExpr(write(expr.left), expr.operator, expr.position, write(expr.right));
+  }
+
+  @Override
+  public Integer visitUnaryExpr(Expr.Unary expr) {
+    return ast.addUnaryExpr(expr.operator, expr.position, write(expr.right));
+  }
+
+  @Override
+  public Integer visitCallExpr(Expr.Call expr) {
+    return ast.addCallExpr(write(expr.callee), expr.position, writeExprs(expr.arguments));
+  }
+
+  @Override
+  public Integer visitGetExpr(Expr.Get expr) {
+    return ast.addGetExpr(write(expr.object), expr.name, expr.position);
+  }
+
+  @Override
+  public Integer visitSetExpr(Expr.Set expr) {
+    return ast.addSetExpr(write(expr.object), expr.name, expr.position, write(expr.value));
+  }
+
+  @Override
+  public Integer visitSuperExpr(Expr.Super expr) {
+    return ast.addSuperExpr(expr.position, expr.method, expr.methodPosition);
+  }
+
+  @Override
+  public Integer visitThisExpr(Expr.This expr) {
+    return ast.addThisExpr(expr.position);
+  }
+
+  @Override
+  public Integer visitErroneousExpr(Expr.Erroneous expr) {
+    return ast.addErroneousExpr(expr.error_type);
+  }
+
+  @Override
+  public Integer visitVariableExpr(Expr.Variable expr) {
+    return ast.addVariableExpr(expr.name, expr.position);
+  }
+
+  @Override
+  public Integer visitLambdaExpr(Expr.Lambda expr) {
+    return ast.addLambdaExpr(expr.position, expr.params, expr.paramPositions, writeStmts(expr.body));
+  }
+
+  @Override
+  public Integer visitInlineExpr(Expr.Inline expr) {
+    return ast.addInlineExpr(write(expr.call), write(expr.body));
+  }
+
+  @Override
+  public Integer visitNumericExpr(Expr.Numeric expr) {
+    return ast.addNumericExpr(write(expr.left), expr.operator, expr.position, write(expr.right));
+  }
+
+  @Override
+  public Integer visitIncrementLocalExpr(Expr.IncrementLocal expr) {
+    return ast.addIncrementLocalExpr(expr.name, expr.position, expr.operator, expr.constant);
+  }
+
+  @Override
+  public Integer visitCompareLocalExpr(Expr.CompareLocal expr) {
+    return ast.addCompareLocalExpr(expr.name, expr.position, expr.operator, expr.constant);
+  }
+
+  @Override
+  public Integer visitGetThisExpr(Expr.GetThis expr) {
+    return ast.addGetThisExpr(expr.name, expr.position);
+  }
+
+  @Override
+  public Integer visitCountedExpr(Expr.Counted expr) {
+    return ast.addCountedExpr(expr.slot, write(expr.expression));
+  }
+
+  @Override
+  public Integer visitBlockStmt(Stmt.Block stmt) {
+    return ast.addBlockStmt(stmt.position, writeStmts(stmt.statements));
+  }
+
+  @Override
+  public Integer visitClassStmt(Stmt.Class stmt) {
+    return ast.addClassStmt(stmt.name, stmt.position, write(stmt.superclass), writeStmts(stmt.methods), writeStmts(stmt.staticMethods));
+  }
+
+  @Override
+  public Integer visitExpressionStmt(Stmt.Expression stmt) {
+    return ast.addExpressionStmt(write(stmt.expression));
+  }
+
+  @Override
+  public Integer visitFunctionStmt(Stmt.Function stmt) {
+    return ast.addFunctionStmt(stmt.name, stmt.position, stmt.params, stmt.paramPositions, writeStmts(stmt.body));
+  }
+
+  @Override
+  public Integer visitIfStmt(Stmt.If stmt) {
+    return ast.addIfStmt(write(stmt.condition), write(stmt.thenBranch), write(stmt.elseBranch));
+  }
+
+  @Override
+  public Integer visitPrintStmt(Stmt.Print stmt) {
+    return ast.addPrintStmt(write(stmt.expression));
+  }
+
+  @Override
+  public Integer visitVarStmt(Stmt.Var stmt) {
+    return ast.addVarStmt(stmt.name, stmt.position, write(stmt.initializer));
+  }
+
+  @Override
+  public Integer visitWhileStmt(Stmt.While stmt) {
+    return ast.addWhileStmt(write(stmt.condition), write(stmt.body));
+  }
+
+  @Override
+  public Integer visitForStmt(Stmt.For stmt) {
+    return ast.addForStmt(write(stmt.condition), write(stmt.body), write(stmt.increment));
+  }
+
+  @Override
+  public Integer visitJumpStmt(Stmt.Jump stmt) {
+    return ast.addJumpStmt(stmt.keyword, stmt.position, write(stmt.value));
+  }
+
+  @Override
+  public Integer visitCountedStmt(Stmt.Counted stmt) {
+    return ast.addCountedStmt(stmt.slot, write(stmt.statement));
+  }
+}
@@ -0,0 +1,53 @@
+package jlox;
+
+import java.util.List;
+
+// A function whose body lives in a FlatAst. Subclasses LoxFunction so it
+// fits in class method tables and super lookups.
+class FlatFunction extends LoxFunction {
+  private final String name;
+  private final List<String> params;
+  private final int body;
+  private final Environment closure;
+  private final boolean isInitializer;
+  
+  FlatFunction(
+      String name, List<String> params, int body,
+      Environment closure, boolean isInitializer) {
+    super(name, params, null, closure, isInitializer);
+    this.name = name;
+    this.params = params;
+    this.body = body;
+    this.closure = closure;
+    this.isInitializer = isInitializer;
+  }
+  
+  int body() {
+    return body;
+  }
+  
+  @Override
+  LoxFunction bind(LoxInstance instance) {
+    Environment environment = new Environment(closure);
+    environment.define(instance);
+    return new FlatFunction(name, params, body, environment, isInitializer);
+  }
+  
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments) {
+    Environment environment = new Environment(closure);
+    
+    for (Object argument : arguments) {
+      environment.define(argument);
+    }
+    
+    try {
+      ((FlatInterpreter)interpreter).executeBlock(body, environment);
+    } catch (Return returnValue) {
+      return returnValue.value;
+    }
+    
+    if (isInitializer) return closure.getAt(0, 0); // "this"
+    return null;
+  }
+}
@@ -0,0 +1,574 @@
+package jlox;
+
+import static jlox.FlatAst.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Executes a resolved FlatAst by switching on node kinds. Shares values,
+// globals and natives with Interpreter, so LoxClass, LoxInstance and
+// natives work unchanged.
+class FlatInterpreter extends Interpreter {
+  private final FlatAst ast;
+  private Environment environment;
+  
+  FlatInterpreter(FlatAst ast) {
+    this.ast = ast;
+  }
+  
+  void interpretList(int statements) {
+    try {
+      for (int i = 0; i < ast.count(statements); i++) {
+        execute(ast.element(statements, i));
+      }
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+  
+  @Override
+  Environment environment() {
+    return environment;
+  }
+  
+  void executeBlock(int statements, Environment environment) {
+    Environment previous = this.environment;
+    try {
+      this.environment = environment;
+      
+      for (int i = 0; i < ast.count(statements); i++) {
+        execute(ast.element(statements, i));
+      }
+    } finally {
+      this.environment = previous;
+    }
+  }
+  
+  private void execute(int node) {
+    switch (ast.kind(node)) {
+      case BLOCK_STMT: {
+        AllocationProfiler allocations = AllocationProfiler.active;
+        if (allocations != null) {
+          allocations.record(AllocationProfiler.Kind.ENVIRONMENT,
+              ast.blockStmtPosition(node));
+        }
+        executeBlock(ast.blockStmtStatements(node), new Environment(environment));
+        break;
+      }
+      case CLASS_STMT: executeClass(node); break;
+      case EXPRESSION_STMT: evaluate(ast.expressionStmtExpression(node)); break;
+      case FUNCTION_STMT: {
+        AllocationProfiler allocations = AllocationProfiler.active;
+        if (allocations != null) {
+          allocations.record(AllocationProfiler.Kind.CLOSURE,
+              ast.functionStmtPosition(node));
+        }
+        String name = ast.functionStmtName(node);
+        FlatFunction function = new FlatFunction(name,
+            ast.functionStmtParams(node), ast.functionStmtBody(node),
+            environment, false);
+        define(name, function);
+        break;
+      }
+      case IF_STMT:
+        if (isTruthy(evaluate(ast.ifStmtCondition(node)))) {
+          execute(ast.ifStmtThenBranch(node));
+        } else if (ast.ifStmtElseBranch(node) != NONE) {
+          execute(ast.ifStmtElseBranch(node));
+        }
+        break;
+      case PRINT_STMT:
+        System.out.println(stringify(evaluate(ast.printStmtExpression(node))));
+        break;
+      case VAR_STMT: {
+        Object value = null;
+        if (ast.varStmtInitializer(node) != NONE) {
+          value = evaluate(ast.varStmtInitializer(node));
+        }
+        define(ast.varStmtName(node), value);
+        break;
+      }
+      case WHILE_STMT:
+        while (isTruthy(evaluate(ast.whileStmtCondition(node)))) {
+          if (HeapCensus.requested) HeapCensus.print(this);
+          try {
+            execute(ast.whileStmtBody(node));
+          } catch(Break ex) {
+            break;
+          } catch(Continue ex) {}
+        }
+        break;
+      case FOR_STMT:
+        while (isTruthy(evaluate(ast.forStmtCondition(node)))) {
+          if (HeapCensus.requested) HeapCensus.print(this);
+          try {
+            execute(ast.forStmtBody(node));
+          } catch(Break ex) {
+            break;
+          } catch(Continue ex) {}
+          
+          evaluate(ast.forStmtIncrement(node));
+        }
+        break;
+      case JUMP_STMT: {
+        TokenType type = ast.jumpStmtKeyword(node);
+        if (type == TokenType.BREAK) {
+          throw new Break();
+        } else if (type == TokenType.CONTINUE) {
+          throw new Continue();
+        } else if (type == TokenType.RETURN) {
+          Object value = null;
+          if (ast.jumpStmtValue(node) != NONE) value = evaluate(ast.jumpStmtValue(node));
+          throw new Return(value);
+        }
+        break;
+      }
+      case COUNTED_STMT:
+        Heatmap.active.counts[ast.countedStmtSlot(node)]++;
+        execute(ast.countedStmtStatement(node));
+        break;
+    }
+  }
+  
+  private Object evaluate(int node) {
+    switch (ast.kind(node)) {
+      case ASSIGN_EXPR: {
+        Object value = evaluate(ast.assignExprValue(node));
+        int distance = ast.assignExprDepth(node);
+        if (distance != NONE) {
+          environment.assignAt(distance, ast.assignExprIndex(node), value);
+        } else {
+          globals.put(ast.assignExprName(node), value);
+        }
+        return value;
+      }
+      case BINARY_EXPR: return binary(node);
+      case TERNARY_EXPR:
+        if (isTruthy(evaluate(ast.ternaryExprCond(node)))) {
+          return evaluate(ast.ternaryExprIfTrue(node));
+        } else {
+          return evaluate(ast.ternaryExprIfFalse(node));
+        }
+      case GROUPING_EXPR: return evaluate(ast.groupingExprExpression(node));
+      case LITERAL_EXPR: return ast.literalExprValue(node);
+      case LOGICAL_EXPR: {
+        Object left = evaluate(ast.logicalExprLeft(node));
+        
+        if (ast.logicalExprOperator(node) == TokenType.OR) {
+          if (isTruthy(left)) return left;
+        } else {
+          if (!isTruthy(left)) return left;
+        }
+        
+        return evaluate(ast.logicalExprRight(node));
+      }
+      case UNARY_EXPR: {
+        Object right = evaluate(ast.unaryExprRight(node));
+        
+        switch (ast.unaryExprOperator(node)) {
+          case MINUS:
+            checkNumberOperand(ast.unaryExprPosition(node), right);
+            return -(double)right;
+          case BANG:
+            return !isTruthy(right);
+          default:
+            return null;
+        }
+      }
+      case CALL_EXPR: return call(node);
+      case GET_EXPR: {
+        Object object = evaluate(ast.getExprObject(node));
+        if (object instanceof LoxInstance) {
+          return ((LoxInstance) object).get(
+              ast.getExprName(node), ast.getExprPosition(node));
+        }
+        
+        throw new RuntimeError(ast.getExprPosition(node),
+            "Can only access properties of instances.");
+      }
+      case SET_EXPR: {
+        Object object = evaluate(ast.setExprObject(node));
+        
+        if (!(object instanceof LoxInstance)) {
+          throw new RuntimeError(ast.setExprPosition(node),
+              "Can only access properties of instances.");
+        }
+        
+        Object value = evaluate(ast.setExprValue(node));
+        ((LoxInstance)object).set(ast.setExprName(node), value);
+        return value;
+      }
+      case SUPER_EXPR: {
+        int distance = ast.superExprDepth(node);
+        LoxClass superclass = (LoxClass)environment.getAt(
+            distance, ast.superExprIndex(node));
+        
+        // "this" is always one environment closer, at index 0
+        LoxInstance object = (LoxInstance)environment.getAt(
+            distance - 1, 0);
+        
+        String method = ast.superExprMethod(node);
+        LoxFunction function = superclass.findMethod(method);
+        
+        if (function == null) {
+          throw new RuntimeError(ast.superExprMethodPosition(node),
+              "Undefined method '" + method + "'.");
+        }
+        
+        AllocationProfiler allocations = AllocationProfiler.active;
+        if (allocations != null) allocations.bind(ast.superExprMethodPosition(node));
+        return function.bind(object);
+      }
+      case THIS_EXPR:
+        return lookUpVariable("this",
+            ast.thisExprDepth(node), ast.thisExprIndex(node));
+      case ERRONEOUS_EXPR: return null;
+      case VARIABLE_EXPR:
+        return lookUpVariable(ast.variableExprName(node),
+            ast.variableExprDepth(node), ast.variableExprIndex(node));
+      case LAMBDA_EXPR: {
+        AllocationProfiler allocations = AllocationProfiler.active;
+        if (allocations != null) {
+          allocations.record(AllocationProfiler.Kind.CLOSURE,
+              ast.lambdaExprPosition(node));
+        }
+        return new FlatFunction("lambda", ast.lambdaExprParams(node),
+            ast.lambdaExprBody(node), environment, false);
+      }
+      case INLINE_EXPR: return inline(node);
+      case COUNTED_EXPR:
+        Heatmap.active.counts[ast.countedExprSlot(node)]++;
+        return evaluate(ast.countedExprExpression(node));
+      case NUMERIC_EXPR: return numeric(node);
+      case INCREMENT_LOCAL_EXPR: return incrementLocal(node);
+      case COMPARE_LOCAL_EXPR: return compareLocal(node);
+      case GET_THIS_EXPR: {
+        Object object = environment.getAt(
+            ast.getThisExprDepth(node), ast.getThisExprIndex(node));
+        if (object instanceof LoxInstance) {
+          return ((LoxInstance) object).get(
+              ast.getThisExprName(node), ast.getThisExprPosition(node));
+        }
+        
+        throw new RuntimeError(ast.getThisExprPosition(node),
+            "Can only access properties of instances.");
+      }
+      default:
+        return null;
+    }
+  }
+  
+  private Object incrementLocal(int node) {
+    int distance = ast.incrementLocalExprDepth(node);
+    int index = ast.incrementLocalExprIndex(node);
+    TokenType operator = ast.incrementLocalExprOperator(node);
+    double constant = ast.incrementLocalExprConstant(node);
+    Object value = environment.getAt(distance, index);
+    if (value instanceof Double) {
+      value = operator == TokenType.PLUS
+          ? (double)value + constant : (double)value - constant;
+    } else {
+      value = binary(operator, ast.incrementLocalExprPosition(node), value, constant);
+    }
+    environment.assignAt(distance, index, value);
+    return value;
+  }
+  
+  private Object compareLocal(int node) {
+    Object value = environment.getAt(
+        ast.compareLocalExprDepth(node), ast.compareLocalExprIndex(node));
+    TokenType operator = ast.compareLocalExprOperator(node);
+    double constant = ast.compareLocalExprConstant(node);
+    if (!(value instanceof Double)) {
+      return binary(operator, ast.compareLocalExprPosition(node), value, constant);
+    }
+    
+    double number = (double)value;
+    switch (operator) {
+      case GREATER: return number > constant;
+      case GREATER_EQUAL: return number >= constant;
+      case LESS: return number < constant;
+      case LESS_EQUAL: return number <= constant;
+      default: return null;
+    }
+  }
+  
+  private Object numeric(int node) {
+    int left = ast.numericExprLeft(node);
+    int right = ast.numericExprRight(node);
+    switch (ast.numericExprOperator(node)) {
+      case GREATER: return number(left) > number(right);
+      case GREATER_EQUAL: return number(left) >= number(right);
+      case LESS: return number(left) < number(right);
+      case LESS_EQUAL: return number(left) <= number(right);
+      default: return number(node);
+    }
+  }
+  
+  // Evaluates a node known to produce a number, without boxing the
+  // results of nested numeric operations.
+  private double number(int node) {
+    if (ast.kind(node) == GROUPING_EXPR) {
+      return number(ast.groupingExprExpression(node));
+    }
+    if (ast.kind(node) != NUMERIC_EXPR) return (double)evaluate(node);
+    
+    int left = ast.numericExprLeft(node);
+    int right = ast.numericExprRight(node);
+    switch (ast.numericExprOperator(node)) {
+      case MINUS:
+        if (left == NONE) return -number(right);
+        return number(left) - number(right);
+      case PLUS: return number(left) + number(right);
+      case STAR: return number(left) * number(right);
+      case SLASH: {
+        double dividend = number(left);
+        double divisor = number(right);
+        if (divisor == 0.0) {
+          throw new RuntimeError(ast.numericExprPosition(node),
+              "Division by zero.");
+        }
+        return dividend / divisor;
+      }
+      default:
+        return (double)evaluate(node);
+    }
+  }
+  
+  private Object inline(int node) {
+    int call = ast.inlineExprCall(node);
+    int body = ast.inlineExprBody(node);
+    Object callee = globals.get(ast.variableExprName(ast.callExprCallee(call)));
+    if (!(callee instanceof FlatFunction) || !returns((FlatFunction)callee, body)) {
+      // The global has been reassigned since.
+      return call(call);
+    }
+    
+    // The same environment a call would get, as the function is global.
+    Environment parameters = new Environment();
+    AllocationProfiler allocations = AllocationProfiler.active;
+    if (allocations != null) {
+      allocations.record(AllocationProfiler.Kind.ENVIRONMENT,
+          ast.callExprPosition(call));
+    }
+    int argumentList = ast.callExprArguments(call);
+    for (int i = 0; i < ast.count(argumentList); i++) {
+      parameters.define(evaluate(ast.element(argumentList, i)));
+    }
+    
+    Metrics metrics = Metrics.active;
+    if (metrics != null) metrics.enter();
+    Profiler profiler = Profiler.active;
+    if (profiler != null) {
+      profiler.enter(ast.variableExprName(ast.callExprCallee(call)),
+          ast.callExprPosition(call));
+    }
+    Environment previous = this.environment;
+    try {
+      this.environment = parameters;
+      return evaluate(body);
+    } finally {
+      this.environment = previous;
+      if (profiler != null) profiler.exit();
+      if (metrics != null) metrics.exit();
+    }
+  }
+  
+  // Whether the function's body is just `return value;`.
+  private boolean returns(FlatFunction function, int value) {
+    int body = function.body();
+    if (ast.count(body) != 1) return false;
+    int statement = ast.element(body, 0);
+    return ast.kind(statement) == JUMP_STMT && ast.jumpStmtValue(statement) == value;
+  }
+  
+  private Object binary(int node) {
+    Object left = evaluate(ast.binaryExprLeft(node));
+    Object right = evaluate(ast.binaryExprRight(node));
+    
+    if (ast.binaryExprOperator(node) == TokenType.COMMA) {
+      evaluate(ast.binaryExprLeft(node));
+      return evaluate(ast.binaryExprRight(node));
+    }
+    return binary(ast.binaryExprOperator(node), ast.binaryExprPosition(node),
+        left, right);
+  }
+  
+  private Object binary(TokenType operator, long position, Object left, Object right) {
+    switch (operator) {
+      case BANG_EQUAL: return !isEqual(left, right);
+      case EQUAL_EQUAL: return isEqual(left, right);
+      case GREATER:
+        checkNumberOperands(position, left, right);
+        return (double)left > (double)right;
+      case GREATER_EQUAL:
+        checkNumberOperands(position, left, right);
+        return (double)left >= (double)right;
+      case LESS:
+        checkNumberOperands(position, left, right);
+        return (double)left < (double)right;
+      case LESS_EQUAL:
+        checkNumberOperands(position, left, right);
+        return (double)left <= (double)right;
+      case MINUS:
+        checkNumberOperands(position, left, right);
+        return (double)left - (double)right;
+      case SLASH:
+        checkNumberOperands(position, left, right);
+        if ((double)right == 0.0) {
+          throw new RuntimeError(position, "Division by zero.");
+        }
+        return (double)left / (double)right;
+      case STAR:
+        checkNumberOperands(position, left, right);
+        return (double)left * (double)right;
+      case PLUS:
+        if (left instanceof Double && right instanceof Double) {
+          return (double)left + (double)right;
+        }
+        String concatenated;
+        if (left instanceof String && right instanceof String) {
+          concatenated = (String)left + (String)right;
+        } else if (left instanceof String) {
+          concatenated = (String)left + stringify(right);
+        } else if (right instanceof String) {
+          concatenated = stringify(left) + (String)right;
+        } else {
+          throw new RuntimeError(position, "Operands must be two numbers or two strings.");
+        }
+        AllocationProfiler allocations = AllocationProfiler.active;
+        if (allocations != null) allocations.string(concatenated, position);
+        return concatenated;
+      default:
+        return null;
+    }
+  }
+  
+  private Object call(int node) {
+    Object callee = evaluate(ast.callExprCallee(node));
+    
+    int argumentList = ast.callExprArguments(node);
+    List<Object> arguments = new ArrayList<>(ast.count(argumentList));
+    for (int i = 0; i < ast.count(argumentList); i++) {
+      arguments.add(evaluate(ast.element(argumentList, i)));
+    }
+    
+    long paren = ast.callExprPosition(node);
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Can only call functions and classes.");
+    }
+    
+    LoxCallable function = (LoxCallable)callee;
+    
+    if (arguments.size() != function.arity()) {
+      throw new RuntimeError(paren, 
+          "Expected " + function.arity() 
+          + " arguments but got "
+          + arguments.size() + ".");
+    }
+    
+    AllocationProfiler allocations = AllocationProfiler.active;
+    if (allocations != null) allocations.call(function, paren);
+    if (HeapCensus.requested) HeapCensus.print(this);
+    Metrics metrics = Metrics.active;
+    if (metrics != null) metrics.enter();
+    LoxEvents.CallEvent event = null;
+    if (LoxEvents.recording) {
+      if (function instanceof LoxClass) {
+        LoxEvents.instantiation((LoxClass)function, paren);
+      }
+      event = LoxEvents.beginCall();
+    }
+    Profiler profiler = Profiler.active;
+    try {
+      if (profiler == null) return function.call(this, arguments);
+      return profiler.call(function, paren, this, arguments);
+    } catch (NativeError error) {
+      throw new RuntimeError(paren, error.getMessage());
+    } finally {
+      if (metrics != null) metrics.exit();
+      if (event != null) event.finish(function, paren);
+    }
+  }
+  
+  private void executeClass(int node) {
+    String name = ast.classStmtName(node);
+    int superclassNode = ast.classStmtSuperclass(node);
+    Object superclass = null;
+    if (superclassNode != NONE) {
+      superclass = evaluate(superclassNode);
+      if (!(superclass instanceof LoxClass)) {
+        throw new RuntimeError(ast.variableExprPosition(superclassNode),
+            "Superclass must be a class");
+      }
+    }
+    
+    if (environment != null) {
+      environment.define(null);
+      environment.updateLatestDefine(createClass(node, (LoxClass)superclass));
+    } else {
+      globals.put(name, null);
+      globals.put(name, createClass(node, (LoxClass)superclass));
+    }
+  }
+  
+  private LoxClass createClass(int node, LoxClass superclass) {
+    AllocationProfiler allocations = AllocationProfiler.active;
+    boolean hasSuperclass = ast.classStmtSuperclass(node) != NONE;
+    if (hasSuperclass) {
+      environment = new Environment(environment);
+      environment.define(superclass);
+      if (allocations != null) {
+        allocations.record(AllocationProfiler.Kind.ENVIRONMENT,
+            ast.classStmtPosition(node));
+      }
+    }
+    
+    String name = ast.classStmtName(node);
+    LoxClass metaclass = new LoxClass(
+        name, superclass, createFunctions(ast.classStmtStaticMethods(node)), null);
+    LoxClass klass = new LoxClass(
+        name, superclass, createFunctions(ast.classStmtMethods(node)), metaclass);
+    
+    if (hasSuperclass) {
+      environment = environment.enclosing;
+    }
+    
+    return klass;
+  }
+  
+  private Map<String, LoxFunction> createFunctions(int functions) {
+    AllocationProfiler allocations = AllocationProfiler.active;
+    Map<String, LoxFunction> loxFunctions = new HashMap<>();
+    for (int i = 0; i < ast.count(functions); i++) {
+      int function = ast.element(functions, i);
+      if (allocations != null) {
+        allocations.record(AllocationProfiler.Kind.CLOSURE,
+            ast.functionStmtPosition(function));
+      }
+      String name = ast.functionStmtName(function);
+      loxFunctions.put(name, new FlatFunction(name,
+          ast.functionStmtParams(function), ast.functionStmtBody(function),
+          environment, name.equals("init")));
+    }
+    return loxFunctions;
+  }
+  
+  private void define(String name, Object value) {
+    if (environment != null) {
+      environment.define(value);
+    } else {
+      globals.put(name, value);
+    }
+  }
+  
+  private Object lookUpVariable(String name, int distance, int index) {
+    if (distance != NONE) {
+      return environment.getAt(distance, index);
+    } else {
+      return globals.get(name);
+    }
+  }
+}
@@ -0,0 +1,385 @@
+package jlox;
+
+import static jlox.FlatAst.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+// Resolver for the flat AST. Same rules as Resolver, but the depth and
+// environment index of each local are written into the node itself
+// instead of the Interpreter's maps.
+class FlatResolver {
+  private final FlatAst ast;
+  private final Stack<Map<String, Variable>> scopes = new Stack<>();
+  
+  private FunctionType currentFunction = FunctionType.NONE;
+  private ClassType currentClass = ClassType.NONE;
+  private boolean insideLoop = false;
+  private final boolean reportUnused;
+  
+  FlatResolver(FlatAst ast) {
+    this(ast, true);
+  }
+  
+  // Trees that went through the Optimizer may no longer read every local.
+  FlatResolver(FlatAst ast, boolean reportUnused) {
+    this.ast = ast;
+    this.reportUnused = reportUnused;
+  }
+  
+  private class Variable {
+    VariableState state;
+    long position;
+    int environmentIndex;
+    
+    Variable(long position, VariableState state, int environmentIndex) {
+      this.state = state;
+      this.position = position;
+      this.environmentIndex = environmentIndex;
+    }
+  }
+  
+  private enum VariableState {
+    DECLARED,
+    DEFINED,
+    READ,
+  }
+  
+  private enum FunctionType {
+    NONE,
+    FUNCTION,
+    METHOD,
+    INITIALIZER
+  }
+  
+  private enum ClassType {
+    NONE,
+    CLASS,
+    SUBCLASS
+  }
+  
+  void resolveList(int statements) {
+    for (int i = 0; i < ast.count(statements); i++) {
+      resolve(ast.element(statements, i));
+    }
+  }
+  
+  void resolve(int node) {
+    switch (ast.kind(node)) {
+      case BLOCK_STMT:
+        beginScope();
+        resolveList(ast.blockStmtStatements(node));
+        endScope();
+        break;
+      case CLASS_STMT: resolveClass(node); break;
+      case EXPRESSION_STMT: resolve(ast.expressionStmtExpression(node)); break;
+      case FUNCTION_STMT:
+        declare(ast.functionStmtName(node), ast.functionStmtPosition(node));
+        define(ast.functionStmtName(node));
+        resolveFunction(node, FunctionType.FUNCTION);
+        break;
+      case IF_STMT:
+        resolve(ast.ifStmtCondition(node));
+        resolve(ast.ifStmtThenBranch(node));
+        if (ast.ifStmtElseBranch(node) != NONE) resolve(ast.ifStmtElseBranch(node));
+        break;
+      case PRINT_STMT: resolve(ast.printStmtExpression(node)); break;
+      case VAR_STMT:
+        declare(ast.varStmtName(node), ast.varStmtPosition(node));
+        if (ast.varStmtInitializer(node) != NONE) {
+          resolve(ast.varStmtInitializer(node));
+        }
+        define(ast.varStmtName(node));
+        break;
+      case WHILE_STMT: {
+        boolean insideEnclosingLoop = insideLoop;
+        insideLoop = true;
+        resolve(ast.whileStmtCondition(node));
+        resolve(ast.whileStmtBody(node));
+        insideLoop = insideEnclosingLoop;
+        break;
+      }
+      case FOR_STMT: {
+        boolean insideEnclosingLoop = insideLoop;
+        insideLoop = true;
+        resolve(ast.forStmtCondition(node));
+        resolve(ast.forStmtBody(node));
+        resolve(ast.forStmtIncrement(node));
+        insideLoop = insideEnclosingLoop;
+        break;
+      }
+      case JUMP_STMT: resolveJump(node); break;
+      case COUNTED_STMT: resolve(ast.countedStmtStatement(node)); break;
+      
+      case ASSIGN_EXPR:
+        resolve(ast.assignExprValue(node));
+        resolveLocal(node, ast.assignExprName(node), false);
+        break;
+      case BINARY_EXPR:
+        resolve(ast.binaryExprLeft(node));
+        resolve(ast.binaryExprRight(node));
+        break;
+      case TERNARY_EXPR:
+        resolve(ast.ternaryExprCond(node));
+        resolve(ast.ternaryExprIfTrue(node));
+        resolve(ast.ternaryExprIfFalse(node));
+        break;
+      case GROUPING_EXPR: resolve(ast.groupingExprExpression(node)); break;
+      case LITERAL_EXPR: break;
+      case LOGICAL_EXPR:
+        resolve(ast.logicalExprLeft(node));
+        resolve(ast.logicalExprRight(node));
+        break;
+      case UNARY_EXPR: resolve(ast.unaryExprRight(node)); break;
+      case CALL_EXPR: {
+        resolve(ast.callExprCallee(node));
+        int arguments = ast.callExprArguments(node);
+        for (int i = 0; i < ast.count(arguments); i++) {
+          resolve(ast.element(arguments, i));
+        }
+        break;
+      }
+      case GET_EXPR: resolve(ast.getExprObject(node)); break;
+      case SET_EXPR:
+        resolve(ast.setExprValue(node));
+        resolve(ast.setExprObject(node));
+        break;
+      case SUPER_EXPR:
+        if (currentClass == ClassType.NONE) {
+          Lox.error(ast.superExprPosition(node), 
+              "Can't use 'super' outside of a class.");
+        } else if (currentClass != ClassType.SUBCLASS) {
+          Lox.error(ast.superExprPosition(node), 
+              "Can't use 'super' in a class with no superclass");
+        }
+        resolveLocal(node, "super", true);
+        break;
+      case THIS_EXPR:
+        if (currentClass == ClassType.NONE) {
+          Lox.error(ast.thisExprPosition(node),
+              "Can't use 'this' outside of a class body");
+          break;
+        }
+        resolveLocal(node, "this", true);
+        break;
+      case ERRONEOUS_EXPR: break;
+      case VARIABLE_EXPR: {
+        String name = ast.variableExprName(node);
+        if (!scopes.isEmpty() && 
+            scopes.peek().containsKey(name) &&
+            scopes.peek().get(name).state == VariableState.DECLARED) {
+          Lox.error(ast.variableExprPosition(node),
+              "Can't read local variable in its own initializer");
+        }
+        resolveLocal(node, name, true);
+        break;
+      }
+      case LAMBDA_EXPR:
+        resolveFunction(node, FunctionType.FUNCTION);
+        break;
+      case INLINE_EXPR:
+        // The body is resolved with the function it was taken from.
+        resolve(ast.inlineExprCall(node));
+        break;
+      case INCREMENT_LOCAL_EXPR:
+        resolveLocal(node, ast.incrementLocalExprName(node), true);
+        break;
+      case COMPARE_LOCAL_EXPR:
+        resolveLocal(node, ast.compareLocalExprName(node), true);
+        break;
+      case GET_THIS_EXPR:
+        resolveLocal(node, "this", true);
+        break;
+      case COUNTED_EXPR: resolve(ast.countedExprExpression(node)); break;
+      case NUMERIC_EXPR:
+        if (ast.numericExprLeft(node) != NONE) {
+          resolve(ast.numericExprLeft(node));
+        }
+        resolve(ast.numericExprRight(node));
+        break;
+    }
+  }
+  
+  private void resolveClass(int node) {
+    ClassType enclosingClass = currentClass;
+    currentClass = ClassType.CLASS;
+    
+    String name = ast.classStmtName(node);
+    long position = ast.classStmtPosition(node);
+    int superclass = ast.classStmtSuperclass(node);
+    declare(name, position);
+    define(name);
+    
+    if (superclass != NONE &&
+        name.equals(ast.variableExprName(superclass))) {
+      Lox.error(ast.variableExprPosition(superclass), 
+          "A class can't inherit from itself.");
+    }
+    
+    if (superclass != NONE) {
+      currentClass = ClassType.SUBCLASS;
+      resolve(superclass);
+      beginScope();
+      scopes.peek().put("super", new Variable(position, VariableState.READ, 0));
+    }
+    
+    beginScope();
+    
+    int staticMethods = ast.classStmtStaticMethods(node);
+    for (int i = 0; i < ast.count(staticMethods); i++) {
+      resolveFunction(ast.element(staticMethods, i), FunctionType.METHOD);
+    }
+    
+    scopes.peek().put("this", new Variable(position, VariableState.READ, 0));
+    
+    int methods = ast.classStmtMethods(node);
+    for (int i = 0; i < ast.count(methods); i++) {
+      int method = ast.element(methods, i);
+      FunctionType type = FunctionType.METHOD;
+      if (ast.functionStmtName(method).equals("init")) {
+        type = FunctionType.INITIALIZER;
+      }
+      resolveFunction(method, type);
+    }
+    
+    endScope();
+    
+    if (superclass != NONE) endScope();
+    
+    currentClass = enclosingClass;
+  }
+  
+  private void resolveJump(int node) {
+    TokenType keyword = ast.jumpStmtKeyword(node);
+    long position = ast.jumpStmtPosition(node);
+    int value = ast.jumpStmtValue(node);
+    if (keyword == TokenType.RETURN) {
+      if (currentFunction == FunctionType.NONE) {
+        Lox.error(position, "Can't return from outside of a function body.");
+      } else if (currentFunction == FunctionType.INITIALIZER
+                 && value != NONE) {
+        Lox.error(position, "Can't return a value from an initializer");
+      }
+    } else if (
+        keyword == TokenType.CONTINUE || 
+        keyword == TokenType.BREAK) {
+      if (!insideLoop) {
+        Lox.error(position,
+            "Can't use " + keyword.name().toLowerCase() 
+            + " statement outside of loop body");
+      }
+    }
+    
+    if (value != NONE) {
+      resolve(value);
+    }
+  }
+  
+  private void beginScope() {
+    scopes.push(new HashMap<String, Variable>());
+  }
+  
+  private void endScope() {
+    Map<String, Variable> scope = scopes.pop();
+    for (Map.Entry<String, Variable> entry : scope.entrySet()) {
+      if (reportUnused && entry.getValue().state != VariableState.READ) {
+        Lox.error(entry.getValue().position, "Local variable is never used");
+      }
+    }
+  }
+  
+  private void declare(String name, long position) {
+    if (scopes.isEmpty()) return;
+    
+    Map<String, Variable> scope = scopes.peek();
+    if (scope.containsKey(name)) {
+      Lox.error(position, "Variable redeclaration is not allowed.");
+    }
+    scope.put(name, new Variable(position, VariableState.DECLARED, scope.size()));
+  }
+  
+  private void define(String name) {
+    if (scopes.isEmpty()) return;
+    scopes.peek().get(name).state = VariableState.DEFINED;
+  }
+  
+  private void resolveLocal(int node, String name, boolean isRead) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Map<String, Variable> scope = scopes.get(i);
+      if (scope.containsKey(name)) {
+        int depth = scopes.size() - 1 - i;
+        int index = scope.get(name).environmentIndex;
+        switch (ast.kind(node)) {
+          case ASSIGN_EXPR:
+            ast.setAssignExprDepth(node, depth);
+            ast.setAssignExprIndex(node, index);
+            break;
+          case SUPER_EXPR:
+            ast.setSuperExprDepth(node, depth);
+            ast.setSuperExprIndex(node, index);
+            break;
+          case THIS_EXPR:
+            ast.setThisExprDepth(node, depth);
+            ast.setThisExprIndex(node, index);
+            break;
+          case VARIABLE_EXPR:
+            ast.setVariableExprDepth(node, depth);
+            ast.setVariableExprIndex(node, index);
+            break;
+          case INCREMENT_LOCAL_EXPR:
+            ast.setIncrementLocalExprDepth(node, depth);
+            ast.setIncrementLocalExprIndex(node, index);
+            break;
+          case COMPARE_LOCAL_EXPR:
+            ast.setCompareLocalExprDepth(node, depth);
+            ast.setCompareLocalExprIndex(node, index);
+            break;
+          case GET_THIS_EXPR:
+            ast.setGetThisExprDepth(node, depth);
+            ast.setGetThisExprIndex(node, index);
+            break;
+        }
+        
+        if (isRead) {
+          scope.get(name).state = VariableState.READ;
+        }
+        return;
+      }
+    }
+  }
+  
+  // Resolves a Function statement or a Lambda expression.
+  private void resolveFunction(int function, FunctionType type) {
+    List<String> params;
+    long[] paramPositions;
+    int body;
+    if (ast.kind(function) == LAMBDA_EXPR) {
+      params = ast.lambdaExprParams(function);
+      paramPositions = ast.lambdaExprParamPositions(function);
+      body = ast.lambdaExprBody(function);
+    } else {
+      params = ast.functionStmtParams(function);
+      paramPositions = ast.functionStmtParamPositions(function);
+      body = ast.functionStmtBody(function);
+    }
+    
+    FunctionType enclosingFunction = currentFunction;
+    currentFunction = type;
+    // As in the Resolver, a jump can't leave a loop around the declaration.
+    boolean insideEnclosingLoop = insideLoop;
+    insideLoop = false;
+    
+    beginScope();
+    for (int i = 0; i < params.size(); i++) {
+      declare(params.get(i), paramPositions[i]);
+      define(params.get(i));
+    }
+    resolveList(body);
+    endScope();
+    
+    insideLoop = insideEnclosingLoop;
+    currentFunction = enclosingFunction;
+  }
+}
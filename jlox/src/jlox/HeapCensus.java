@@ -0,0 +1,160 @@
+package jlox;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Counts the Lox values reachable right now, for the heapCensus() native
+// and for the requestHeapCensus operation on the Metrics MXBean, which
+// jconsole and other JMX clients can invoke on a run with --metrics. The
+// walk starts from the globals, the environment
+// the interpreter is running in and those enclosing it, and the values
+// natives hold while they run Lox code, and follows fields, closures,
+// methods, superclasses and metaclasses. Each class name gets the number
+// of its live instances and of the fields they hold, and strings,
+// closures (bound methods included) and environments are totalled.
+//
+// The walk keeps its own stack, so a long linked list of instances can't
+// overflow Java's. Locals of callers further up the call stack are only
+// counted if the walk gets to them some other way, through a closure for
+// instance.
+//
+// The operation, on a JMX thread, only sets requested. The interpreter
+// takes the census at its next call or loop iteration, so the values don't
+// change under the walk.
+class HeapCensus {
+  static volatile boolean requested = false;
+
+  private static final LoxClass CENSUS =
+      new LoxClass("HeapCensus", null, new HashMap<>(), null);
+  private static final LoxClass CLASS_CENSUS =
+      new LoxClass("ClassCensus", null, new HashMap<>(), null);
+  private static final LoxClass CLASS_COUNT =
+      new LoxClass("ClassCount", null, new HashMap<>(), null);
+
+  // Values natives hold on to while they run Lox code, such as the
+  // function bench() is timing.
+  private static final Deque<Object> held = new ArrayDeque<>();
+
+  // Instances and the fields they hold, per class name.
+  private final Map<String, long[]> classes = new TreeMap<>();
+  private long instances = 0;
+  private long fields = 0;
+  private long strings = 0;
+  private long characters = 0;
+  private long closures = 0;
+  private long environments = 0;
+
+  private HeapCensus() {}
+
+  static void hold(Object value) {
+    held.push(value);
+  }
+
+  static void release() {
+    held.pop();
+  }
+
+  static HeapCensus take(Interpreter interpreter) {
+    HeapCensus census = new HeapCensus();
+    census.walk(interpreter);
+    return census;
+  }
+
+  // Takes a census and prints it to stderr, as the operation asked.
+  static void print(Interpreter interpreter) {
+    requested = false;
+    take(interpreter).print(System.err);
+  }
+
+  private void walk(Interpreter interpreter) {
+    Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<Object> pending = new ArrayDeque<>();
+    for (Object value : interpreter.globals.values()) push(pending, value);
+    push(pending, interpreter.environment());
+    for (Object value : held) push(pending, value);
+
+    while (!pending.isEmpty()) {
+      Object value = pending.pop();
+      if (!seen.add(value)) continue;
+
+      if (value instanceof String) {
+        strings++;
+        characters += ((String)value).length();
+      } else if (value instanceof LoxClass) {
+        LoxClass klass = (LoxClass)value;
+        push(pending, klass.superclass);
+        push(pending, klass.klass());
+        for (Object method : klass.methods().values()) push(pending, method);
+        for (Object field : klass.fields().values()) push(pending, field);
+      } else if (value instanceof LoxInstance) {
+        LoxInstance instance = (LoxInstance)value;
+        long[] counts = classes.computeIfAbsent(
+            instance.klass().name, name -> new long[2]);
+        counts[0]++;
+        counts[1] += instance.fields().size();
+        instances++;
+        fields += instance.fields().size();
+        push(pending, instance.klass());
+        for (Object field : instance.fields().values()) push(pending, field);
+      } else if (value instanceof LoxFunction) {
+        closures++;
+        push(pending, ((LoxFunction)value).closure());
+      } else if (value instanceof Environment) {
+        Environment environment = (Environment)value;
+        environments++;
+        push(pending, environment.enclosing);
+        for (Object local : environment.values()) push(pending, local);
+      }
+    }
+  }
+
+  // Numbers, booleans, nil and natives hold nothing worth counting.
+  private static void push(Deque<Object> pending, Object value) {
+    if (value instanceof String || value instanceof LoxInstance ||
+        value instanceof LoxFunction || value instanceof Environment) {
+      pending.push(value);
+    }
+  }
+
+  void print(PrintStream out) {
+    out.println("Heap census:");
+    out.println(String.format("%-24s %12s %12s", "class", "instances", "fields"));
+    for (Map.Entry<String, long[]> entry : classes.entrySet()) {
+      out.println(String.format("%-24s %12d %12d",
+          entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+    }
+    out.println(String.format("%-24s %12d %12d", "total", instances, fields));
+    out.println(String.format(
+        "%d strings (%d characters), %d closures, %d environments",
+        strings, characters, closures, environments));
+  }
+
+  // A HeapCensus instance with the totals, and in byClass a ClassCensus
+  // whose fields are the class names, each a ClassCount of instances and
+  // fields.
+  LoxInstance toInstance() {
+    LoxInstance byClass = new LoxInstance(CLASS_CENSUS);
+    for (Map.Entry<String, long[]> entry : classes.entrySet()) {
+      LoxInstance counts = new LoxInstance(CLASS_COUNT);
+      counts.set("instances", (double)entry.getValue()[0]);
+      counts.set("fields", (double)entry.getValue()[1]);
+      byClass.set(entry.getKey(), counts);
+    }
+
+    LoxInstance census = new LoxInstance(CENSUS);
+    census.set("instances", (double)instances);
+    census.set("fields", (double)fields);
+    census.set("strings", (double)strings);
+    census.set("closures", (double)closures);
+    census.set("environments", (double)environments);
+    census.set("byClass", byClass);
+    return census;
+  }
+}
@@ -0,0 +1,88 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Exact execution counts per source line, for --heatmap. While one is
+// active the Parser wraps every statement and call in a Counted node with
+// a slot of its own in counts, which the interpreters increment as they
+// run it. Each slot remembers its line, the line of the statement's first
+// token or of the call's closing parenthesis.
+//
+// Instrumented programs are not optimized, so what runs is what the
+// source says.
+class Heatmap {
+  static Heatmap active = null;
+
+  long[] counts = new long[256];
+  private int[] lines = new int[256];
+  private boolean[] calls = new boolean[256];
+  private int slots = 0;
+
+  // Parsing may continue while the program runs, so counts is replaced,
+  // never shared, when it grows.
+  int slot(int line, boolean call) {
+    if (slots == counts.length) {
+      counts = Arrays.copyOf(counts, slots * 2);
+      lines = Arrays.copyOf(lines, slots * 2);
+      calls = Arrays.copyOf(calls, slots * 2);
+    }
+    lines[slots] = line;
+    calls[slots] = call;
+    return slots++;
+  }
+
+  // Statements and calls run per line, from 1 to lineCount.
+  private long[][] perLine(int lineCount) {
+    for (int i = 0; i < slots; i++) lineCount = Math.max(lineCount, lines[i]);
+
+    long[][] totals = new long[2][lineCount + 1];
+    for (int i = 0; i < slots; i++) {
+      totals[calls[i] ? 1 : 0][lines[i]] += counts[i];
+    }
+    return totals;
+  }
+
+  // The source with the statements and calls run on each line.
+  void print(PrintStream out, int lineCount) {
+    long[][] totals = perLine(lineCount);
+    out.println(String.format("%12s %12s %5s | %s",
+        "statements", "calls", "line", "source"));
+    for (int line = 1; line < totals[0].length; line++) {
+      long statements = totals[0][line];
+      long calls = totals[1][line];
+      out.println(String.format("%12s %12s %5d | %s",
+          statements == 0 ? "" : statements,
+          calls == 0 ? "" : calls,
+          line, Lox.lineText(line)));
+    }
+  }
+
+  // {"lines": [{"line": 1, "statements": 10, "calls": 2}, ...]}, for the
+  // lines with counts.
+  void writeJson(Path path, int lineCount) throws IOException {
+    long[][] totals = perLine(lineCount);
+    try (PrintWriter out = new PrintWriter(
+             Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+      out.println("{");
+      out.println("  \"lines\": [");
+      boolean first = true;
+      for (int line = 1; line < totals[0].length; line++) {
+        if (totals[0][line] == 0 && totals[1][line] == 0) continue;
+        if (!first) out.println(",");
+        out.print("    {\"line\": " + line +
+            ", \"statements\": " + totals[0][line] +
+            ", \"calls\": " + totals[1][line] + "}");
+        first = false;
+      }
+      if (!first) out.println();
+      out.println("  ]");
+      out.println("}");
+    }
+  }
+}
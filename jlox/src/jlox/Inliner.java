@@ -0,0 +1,283 @@
+package jlox;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Expands calls to small global functions into Expr.Inline nodes, run
+// after the Optimizer. A function can be inlined if its body is a single
+// `return <expr>;` of at most `threshold` nodes that doesn't refer to the
+// function itself. Being global, it captures nothing the call site can't
+// see. Call sites must call it by its global name, with the right number
+// of arguments, and the name must be declared once and never assigned.
+//
+// The Inline keeps the original call. It evaluates the body in a fresh
+// environment holding the arguments, like a call would, but only while
+// the global still holds that function, and makes the call otherwise.
+// This covers reassignments the pass can't see, e.g. in later streamed
+// statements or in lazily parsed bodies.
+//
+// The bodies of inlinable functions are left as they are, as the Inline
+// nodes share their return expression.
+class Inliner extends TreeRewriter implements Pass {
+  static final int DEFAULT_THRESHOLD = 12;
+
+  private final Set<String> assignedGlobals;
+  private final int threshold;
+  private final boolean report;
+
+  private final Map<String, Stmt.Function> candidates = new HashMap<>();
+  private final Set<String> declaredGlobals = new HashSet<>();
+  private final Set<Expr> inlinedBodies =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+
+  Inliner(Interpreter interpreter, Set<String> assignedGlobals,
+          int threshold, boolean report) {
+    super(interpreter);
+    this.assignedGlobals = assignedGlobals;
+    this.threshold = threshold;
+    this.report = report;
+  }
+
+  @Override
+  public String name() {
+    return "inline";
+  }
+
+  @Override
+  public List<String> dependencies() {
+    return Collections.singletonList("fold");
+  }
+
+  @Override
+  public List<Stmt> run(List<Stmt> statements) {
+    return inline(statements);
+  }
+
+  @Override
+  public Stmt run(Stmt statement) {
+    return inline(statement);
+  }
+
+  // Return expressions of the functions inlined so far.
+  Set<Expr> inlinedBodies() {
+    return inlinedBodies;
+  }
+
+  List<Stmt> inline(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      declare(statement);
+    }
+    return rewrite(statements);
+  }
+
+  // Inlines into one more top-level statement, as the streaming runner
+  // hands them over.
+  Stmt inline(Stmt statement) {
+    declare(statement);
+    return rewrite(statement);
+  }
+
+  private void declare(Stmt statement) {
+    String name;
+    if (statement instanceof Stmt.Function) {
+      name = ((Stmt.Function)statement).name;
+    } else if (statement instanceof Stmt.Var) {
+      name = ((Stmt.Var)statement).name;
+    } else if (statement instanceof Stmt.Class) {
+      name = ((Stmt.Class)statement).name;
+    } else {
+      return;
+    }
+
+    if (!declaredGlobals.add(name)) {
+      candidates.remove(name);
+    } else if (statement instanceof Stmt.Function) {
+      Stmt.Function function = (Stmt.Function)statement;
+      if (isInlinable(function)) candidates.put(name, function);
+    }
+  }
+
+  private boolean isInlinable(Stmt.Function function) {
+    if (threshold <= 0 || function.body instanceof LazyBody) return false;
+    if (function.body.size() != 1) return false;
+
+    Stmt statement = function.body.get(0);
+    if (!(statement instanceof Stmt.Jump)) return false;
+    Stmt.Jump jump = (Stmt.Jump)statement;
+    if (jump.keyword != TokenType.RETURN || jump.value == null) return false;
+
+    Measure measure = new Measure(function.name);
+    jump.value.accept(measure);
+    return !measure.recursive && measure.size <= threshold;
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    // Inline nodes point into the bodies of candidates.
+    if (candidates.get(stmt.name) == stmt) return stmt;
+    return super.visitFunctionStmt(stmt);
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr.Call call = (Expr.Call)super.visitCallExpr(expr);
+
+    Stmt.Function function = inlinedFunction(call);
+    if (function == null) return call;
+
+    Expr body = ((Stmt.Jump)function.body.get(0)).value;
+    inlinedBodies.add(body);
+    if (report) {
+      System.err.println("[line: " + Position.line(call.position) +
+          "] Inlined call to '" + function.name + "'.");
+    }
+    return new Expr.Inline(call, body);
+  }
+
+  private Stmt.Function inlinedFunction(Expr.Call call) {
+    if (!(call.callee instanceof Expr.Variable)) return null;
+    Expr.Variable callee = (Expr.Variable)call.callee;
+    if (interpreter.isResolvedLocal(callee)) return null;
+    if (assignedGlobals.contains(callee.name)) return null;
+
+    Stmt.Function function = candidates.get(callee.name);
+    if (function == null || function.params.size() != call.arguments.size()) {
+      return null;
+    }
+    return function;
+  }
+
+  // Counts the nodes of a candidate's return expression, and notes any
+  // reference to the function itself. Lambdas are never inlined.
+  private class Measure implements Expr.Visitor<Void> {
+    private final String function;
+    int size = 0;
+    boolean recursive = false;
+
+    Measure(String function) {
+      this.function = function;
+    }
+
+    private Void measure(Expr... exprs) {
+      size++;
+      for (Expr expr : exprs) {
+        if (expr != null) expr.accept(this);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      if (expr.name.equals(function)) recursive = true;
+      return measure(expr.value);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      return measure(expr.left, expr.right);
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+      return measure(expr.cond, expr.ifTrue, expr.ifFalse);
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      return measure(expr.expression);
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return measure();
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      return measure(expr.left, expr.right);
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      return measure(expr.right);
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      expr.callee.accept(this);
+      return measure(expr.arguments.toArray(new Expr[0]));
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      return measure(expr.object);
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      return measure(expr.object, expr.value);
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      return measure();
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      return measure();
+    }
+
+    @Override
+    public Void visitErroneousExpr(Expr.Erroneous expr) {
+      return measure();
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      if (expr.name.equals(function)) recursive = true;
+      return measure();
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+      size += threshold + 1;
+      return null;
+    }
+
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+      return measure(expr.call);
+    }
+
+    @Override
+    public Void visitNumericExpr(Expr.Numeric expr) {
+      return measure(expr.left, expr.right);
+    }
+
+    @Override
+    public Void visitIncrementLocalExpr(Expr.IncrementLocal expr) {
+      return measure();
+    }
+
+    @Override
+    public Void visitCompareLocalExpr(Expr.CompareLocal expr) {
+      return measure();
+    }
+
+    @Override
+    public Void visitGetThisExpr(Expr.GetThis expr) {
+      return measure();
+    }
+
+    @Override
+    public Void visitCountedExpr(Expr.Counted expr) {
+      return measure(expr.expression);
+    }
+  }
+}
@@ -8,33 +8,34 @@ import java.util.List;
 import java.util.Map;
 
 import java.util.HashMap;
+import java.util.WeakHashMap;
 
 class Interpreter implements Expr.Visitor<Object>,
                              Stmt.Visitor<Void> {
   
-  private Map<String, Object> globals = new HashMap<>();
+  final Map<String, Object> globals = new HashMap<>();
   private Environment environment;
   private static boolean brakeSet = false;
   private static boolean continueSet = false;
-  private final Map<Expr, Integer> locals = new HashMap<>();
-  private final Map<Expr, Integer> environmentIndexes = new HashMap<>();
+  private final Map<Expr, Integer> locals;
+  private final Map<Expr, Integer> environmentIndexes;
   
   Interpreter() {
-    globals.put("clock", new LoxCallable() {
-
-      @Override
-      public int arity() { return 0; }
-
-      @Override
-      public Object call(Interpreter interpreter, 
-                         List<Object> arguments) {
-        return (double)System.currentTimeMillis() / 1000.0;
-      }
-      
-      @Override
-      public String toString() { return "<native fn>"; }
-      
-    });
+    this(false);
+  }
+  
+  // Streamed programs are resolved one statement at a time. Weak keys let
+  // a finished statement be collected together with its resolution.
+  Interpreter(boolean weakResolution) {
+    if (weakResolution) {
+      locals = new WeakHashMap<>();
+      environmentIndexes = new WeakHashMap<>();
+    } else {
+      locals = new HashMap<>();
+      environmentIndexes = new HashMap<>();
+    }
+    
+    Natives.define(globals);
   }
   
   void interpret(List<Stmt> statements) {
@@ -91,7 +92,7 @@ class Interpreter implements Expr.Visitor<Object>,
     if (environment != null) { 
       environment.define(value);
     } else {
-      globals.put(stmt.name.lexeme, value);
+      globals.put(stmt.name, value);
     }
     return null;
   }
@@ -105,7 +106,7 @@ class Interpreter implements Expr.Visitor<Object>,
     if (distance != null) {
       environment.assignAt(distance, index, value);
     } else {
-      globals.put(expr.name.lexeme, value);
+      globals.put(expr.name, value);
     }
     
     return value;
@@ -123,7 +124,7 @@ class Interpreter implements Expr.Visitor<Object>,
     if (stmt.superclass != null) {
       superclass = evaluate(stmt.superclass);
       if (!(superclass instanceof LoxClass)) {
-        throw new RuntimeError(stmt.superclass.name,
+        throw new RuntimeError(stmt.superclass.position,
             "Superclass must be a class");
       }
     }
@@ -133,7 +134,7 @@ class Interpreter implements Expr.Visitor<Object>,
       LoxClass klass = createClass(stmt, (LoxClass)superclass);
       environment.updateLatestDefine(klass);
     } else {
-      globals.put(stmt.name.lexeme, null);
+      globals.put(stmt.name, null);
       LoxClass klass = createClass(stmt, (LoxClass)superclass);
       globals.put(klass.name, klass);
     }
@@ -152,31 +153,37 @@ class Interpreter implements Expr.Visitor<Object>,
     LoxInstance object = (LoxInstance)environment.getAt(
         distance - 1, 0);
     
-    LoxFunction method = superclass.findMethod(expr.method.lexeme);
+    LoxFunction method = superclass.findMethod(expr.method);
     
     if (method == null) {
-      throw new RuntimeError(expr.method,
-          "Undefined method '" + expr.method.lexeme + "'.");
+      throw new RuntimeError(expr.methodPosition,
+          "Undefined method '" + expr.method + "'.");
     }
     
+    AllocationProfiler allocations = AllocationProfiler.active;
+    if (allocations != null) allocations.bind(expr.methodPosition);
     return method.bind(object);
         
   }
   
   private LoxClass createClass(Stmt.Class stmt, LoxClass superclass) {
+    AllocationProfiler allocations = AllocationProfiler.active;
     if (stmt.superclass != null) {
       environment = new Environment(environment);
       environment.define(superclass);
+      if (allocations != null) {
+        allocations.record(AllocationProfiler.Kind.ENVIRONMENT, stmt.position);
+      }
     }
     
     Map<String, LoxFunction> methods = createLoxFunctions(stmt.methods);
     Map<String, LoxFunction> staticMethods = createLoxFunctions(stmt.staticMethods);
     
     LoxClass metaclass = new LoxClass(
-        stmt.name.lexeme, superclass, staticMethods, null);
+        stmt.name, superclass, staticMethods, null);
     
     LoxClass klass = new LoxClass(
-        stmt.name.lexeme, superclass, methods, metaclass);
+        stmt.name, superclass, methods, metaclass);
     
     if (stmt.superclass != null) {
       environment = environment.enclosing;
@@ -186,23 +193,31 @@ class Interpreter implements Expr.Visitor<Object>,
   }
   
   private Map<String, LoxFunction> createLoxFunctions(List<Stmt.Function> functions) {
+    AllocationProfiler allocations = AllocationProfiler.active;
     Map<String, LoxFunction> loxFunctions = new HashMap<>();
     for (Stmt.Function function : functions) {
+      if (allocations != null) {
+        allocations.record(AllocationProfiler.Kind.CLOSURE, function.position);
+      }
       LoxFunction loxFunction = new LoxFunction(
-          function.name.lexeme, function.params, function.body, environment,
-          function.name.lexeme.equals("init"));
-      loxFunctions.put(function.name.lexeme, loxFunction);
+          function.name, function.params, function.body, environment,
+          function.name.equals("init"));
+      loxFunctions.put(function.name, loxFunction);
     }
     return loxFunctions;
   }
   
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt.name.lexeme, stmt.params, stmt.body, environment, false);
+    AllocationProfiler allocations = AllocationProfiler.active;
+    if (allocations != null) {
+      allocations.record(AllocationProfiler.Kind.CLOSURE, stmt.position);
+    }
+    LoxFunction function = new LoxFunction(stmt.name, stmt.params, stmt.body, environment, false);
     if (environment != null) {
       environment.define(function);
     } else {
-      globals.put(stmt.name.lexeme, function);
+      globals.put(stmt.name, function);
     }
     
     return null;
@@ -210,6 +225,10 @@ class Interpreter implements Expr.Visitor<Object>,
   
   @Override
   public Object visitLambdaExpr(Expr.Lambda expr) {
+    AllocationProfiler allocations = AllocationProfiler.active;
+    if (allocations != null) {
+      allocations.record(AllocationProfiler.Kind.CLOSURE, expr.position);
+    }
     return new LoxFunction("lambda", expr.params, expr.body, environment, false);
   }
   
@@ -233,11 +252,11 @@ class Interpreter implements Expr.Visitor<Object>,
   
   @Override
   public Void visitJumpStmt(Stmt.Jump stmt) {
-    if (stmt.keyword.type == BREAK) {
+    if (stmt.keyword == BREAK) {
       throw new Break();
-    } else if (stmt.keyword.type == CONTINUE) {
+    } else if (stmt.keyword == CONTINUE) {
       throw new Continue();
-    } else if (stmt.keyword.type == RETURN) {
+    } else if (stmt.keyword == RETURN) {
       Object value = null;
       if (stmt.value != null) value = evaluate(stmt.value);
       throw new Return(value);
@@ -248,6 +267,7 @@ class Interpreter implements Expr.Visitor<Object>,
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
     while (isTruthy(evaluate(stmt.condition))) {
+      if (HeapCensus.requested) HeapCensus.print(this);
       try {
         execute(stmt.body);
       } catch(Break ex) {
@@ -260,6 +280,7 @@ class Interpreter implements Expr.Visitor<Object>,
   @Override
   public Void visitForStmt(Stmt.For stmt) {
     while (isTruthy(evaluate(stmt.condition))) {
+      if (HeapCensus.requested) HeapCensus.print(this);
       try {
         execute(stmt.body);
       } catch(Break ex) {
@@ -273,10 +294,19 @@ class Interpreter implements Expr.Visitor<Object>,
   
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
+    AllocationProfiler allocations = AllocationProfiler.active;
+    if (allocations != null) {
+      allocations.record(AllocationProfiler.Kind.ENVIRONMENT, stmt.position);
+    }
     executeBlock(stmt.statements, new Environment(environment));
     return null;
   }
   
+  // The environment running code sees, or null at the top level.
+  Environment environment() {
+    return environment;
+  }
+  
   void executeBlock(List<Stmt> statements, Environment environment) {
     Environment previous = this.environment;
     try {
@@ -294,7 +324,7 @@ class Interpreter implements Expr.Visitor<Object>,
   public Object visitLogicalExpr(Expr.Logical expr) {
     Object left = evaluate(expr.left);
     
-    if (expr.operator.type == TokenType.OR) {
+    if (expr.operator == TokenType.OR) {
       if (isTruthy(left)) return left;
     } else {
       if (!isTruthy(left)) return left;
@@ -308,51 +338,58 @@ class Interpreter implements Expr.Visitor<Object>,
     Object left = evaluate(expr.left);
     Object right = evaluate(expr.right);
     
-    switch (expr.operator.type) {
-      case COMMA:
-        evaluate(expr.left);
-        return evaluate(expr.right);
+    if (expr.operator == TokenType.COMMA) {
+      evaluate(expr.left);
+      return evaluate(expr.right);
+    }
+    return binary(expr.operator, expr.position, left, right);
+  }
+  
+  private Object binary(TokenType operator, long position, Object left, Object right) {
+    switch (operator) {
       case BANG_EQUAL: return !isEqual(left, right);
       case EQUAL_EQUAL: return isEqual(left, right);
       case GREATER:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(position, left, right);
         return (double)left > (double)right;
       case GREATER_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(position, left, right);
         return (double)left >= (double)right;
       case LESS:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(position, left, right);
         return (double)left < (double)right;
       case LESS_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(position, left, right);
         return (double)left <= (double)right;
       case MINUS:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(position, left, right);
         return (double)left - (double)right;
       case SLASH:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(position, left, right);
         if ((double)right == 0.0) {
-          throw new RuntimeError(expr.operator, "Division by zero.");
+          throw new RuntimeError(position, "Division by zero.");
         }
         return (double)left / (double)right;
       case STAR:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(position, left, right);
         return (double)left * (double)right;
       case PLUS:
         if (left instanceof Double && right instanceof Double) {
           return (double)left + (double)right;
         }
+        String concatenated;
         if (left instanceof String && right instanceof String) {
-          return (String)left + (String)right;
-        }
-        if (left instanceof String) {
-          return (String)left + stringify(right);
+          concatenated = (String)left + (String)right;
+        } else if (left instanceof String) {
+          concatenated = (String)left + stringify(right);
+        } else if (right instanceof String) {
+          concatenated = stringify(left) + (String)right;
+        } else {
+          throw new RuntimeError(position, "Operands must be two numbers or two strings.");
         }
-        if (right instanceof String) {
-          return stringify(left) + (String)right;
-        }
-        
-        throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+        AllocationProfiler allocations = AllocationProfiler.active;
+        if (allocations != null) allocations.string(concatenated, position);
+        return concatenated;
       default:
         return null;
     }
@@ -381,10 +418,10 @@ class Interpreter implements Expr.Visitor<Object>,
   public Object visitGetExpr(Expr.Get expr) {
     Object object = evaluate(expr.object);
     if (object instanceof LoxInstance) {
-      return ((LoxInstance) object).get(expr.name);
+      return ((LoxInstance) object).get(expr.name, expr.position);
     }
     
-    throw new RuntimeError(expr.name, "Can only access properties of instances.");
+    throw new RuntimeError(expr.position, "Can only access properties of instances.");
   }
   
   @Override
@@ -392,7 +429,7 @@ class Interpreter implements Expr.Visitor<Object>,
     Object object = evaluate(expr.object);
     
     if (!(object instanceof LoxInstance)) {
-      throw new RuntimeError(expr.name, "Can only access properties of instances.");
+      throw new RuntimeError(expr.position, "Can only access properties of instances.");
     }
     
     Object value = evaluate(expr.value);
@@ -402,7 +439,7 @@ class Interpreter implements Expr.Visitor<Object>,
   
   @Override
   public Object visitThisExpr(Expr.This expr) {
-    return lookUpVariable(expr.keyword, expr);
+    return lookUpVariable("this", expr);
   }
   
   @Override
@@ -415,19 +452,40 @@ class Interpreter implements Expr.Visitor<Object>,
     }
     
     if (!(callee instanceof LoxCallable)) {
-      throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+      throw new RuntimeError(expr.position, "Can only call functions and classes.");
     }
     
     LoxCallable function = (LoxCallable)callee;
     
     if (arguments.size() != function.arity()) {
-      throw new RuntimeError(expr.paren, 
+      throw new RuntimeError(expr.position, 
           "Expected " + function.arity() 
           + " arguments but got "
           + arguments.size() + ".");
     }
     
-    return function.call(this, arguments);
+    AllocationProfiler allocations = AllocationProfiler.active;
+    if (allocations != null) allocations.call(function, expr.position);
+    if (HeapCensus.requested) HeapCensus.print(this);
+    Metrics metrics = Metrics.active;
+    if (metrics != null) metrics.enter();
+    LoxEvents.CallEvent event = null;
+    if (LoxEvents.recording) {
+      if (function instanceof LoxClass) {
+        LoxEvents.instantiation((LoxClass)function, expr.position);
+      }
+      event = LoxEvents.beginCall();
+    }
+    Profiler profiler = Profiler.active;
+    try {
+      if (profiler == null) return function.call(this, arguments);
+      return profiler.call(function, expr.position, this, arguments);
+    } catch (NativeError error) {
+      throw new RuntimeError(expr.position, error.getMessage());
+    } finally {
+      if (metrics != null) metrics.exit();
+      if (event != null) event.finish(function, expr.position);
+    }
   }
   
   
@@ -435,9 +493,9 @@ class Interpreter implements Expr.Visitor<Object>,
   public Object visitUnaryExpr(Expr.Unary expr) {
     Object right = evaluate(expr.right);
     
-    switch (expr.operator.type) {
+    switch (expr.operator) {
       case MINUS:
-        checkNumberOperand(expr.operator, right);
+        checkNumberOperand(expr.position, right);
         return -(double)right;
       case BANG:
         return !isTruthy(right);
@@ -446,39 +504,168 @@ class Interpreter implements Expr.Visitor<Object>,
     }
   }
   
+  @Override
+  public Object visitInlineExpr(Expr.Inline expr) {
+    Expr.Call call = expr.call;
+    Object callee = globals.get(((Expr.Variable)call.callee).name);
+    if (!(callee instanceof LoxFunction) ||
+        !((LoxFunction)callee).returns(expr.body)) {
+      // The global has been reassigned since.
+      return evaluate(call);
+    }
+    
+    // The same environment a call would get, as the function is global.
+    Environment parameters = new Environment();
+    AllocationProfiler allocations = AllocationProfiler.active;
+    if (allocations != null) {
+      allocations.record(AllocationProfiler.Kind.ENVIRONMENT, call.position);
+    }
+    for (Expr argument : call.arguments) {
+      parameters.define(evaluate(argument));
+    }
+    
+    Metrics metrics = Metrics.active;
+    if (metrics != null) metrics.enter();
+    Profiler profiler = Profiler.active;
+    if (profiler != null) profiler.enter(((Expr.Variable)call.callee).name, call.position);
+    Environment previous = this.environment;
+    try {
+      this.environment = parameters;
+      return evaluate(expr.body);
+    } finally {
+      this.environment = previous;
+      if (profiler != null) profiler.exit();
+      if (metrics != null) metrics.exit();
+    }
+  }
+  
+  @Override
+  public Object visitCountedExpr(Expr.Counted expr) {
+    Heatmap.active.counts[expr.slot]++;
+    return evaluate(expr.expression);
+  }
+  
+  @Override
+  public Void visitCountedStmt(Stmt.Counted stmt) {
+    Heatmap.active.counts[stmt.slot]++;
+    execute(stmt.statement);
+    return null;
+  }
+  
+  @Override
+  public Object visitNumericExpr(Expr.Numeric expr) {
+    switch (expr.operator) {
+      case GREATER: return number(expr.left) > number(expr.right);
+      case GREATER_EQUAL: return number(expr.left) >= number(expr.right);
+      case LESS: return number(expr.left) < number(expr.right);
+      case LESS_EQUAL: return number(expr.left) <= number(expr.right);
+      default: return number(expr);
+    }
+  }
+  
+  // Evaluates an expression known to produce a number, without boxing
+  // the results of nested numeric operations.
+  private double number(Expr expr) {
+    if (expr instanceof Expr.Grouping) {
+      return number(((Expr.Grouping)expr).expression);
+    }
+    if (!(expr instanceof Expr.Numeric)) return (double)evaluate(expr);
+    
+    Expr.Numeric numeric = (Expr.Numeric)expr;
+    switch (numeric.operator) {
+      case MINUS:
+        if (numeric.left == null) return -number(numeric.right);
+        return number(numeric.left) - number(numeric.right);
+      case PLUS: return number(numeric.left) + number(numeric.right);
+      case STAR: return number(numeric.left) * number(numeric.right);
+      case SLASH: {
+        double left = number(numeric.left);
+        double right = number(numeric.right);
+        if (right == 0.0) {
+          throw new RuntimeError(numeric.position, "Division by zero.");
+        }
+        return left / right;
+      }
+      default:
+        return (double)evaluate(expr);
+    }
+  }
+  
+  @Override
+  public Object visitIncrementLocalExpr(Expr.IncrementLocal expr) {
+    int distance = locals.get(expr);
+    int index = environmentIndexes.get(expr);
+    Object value = environment.getAt(distance, index);
+    if (value instanceof Double) {
+      value = expr.operator == TokenType.PLUS
+          ? (double)value + expr.constant : (double)value - expr.constant;
+    } else {
+      value = binary(expr.operator, expr.position, value, expr.constant);
+    }
+    environment.assignAt(distance, index, value);
+    return value;
+  }
+  
+  @Override
+  public Object visitCompareLocalExpr(Expr.CompareLocal expr) {
+    Object value = environment.getAt(locals.get(expr), environmentIndexes.get(expr));
+    if (!(value instanceof Double)) {
+      return binary(expr.operator, expr.position, value, expr.constant);
+    }
+    
+    double number = (double)value;
+    switch (expr.operator) {
+      case GREATER: return number > expr.constant;
+      case GREATER_EQUAL: return number >= expr.constant;
+      case LESS: return number < expr.constant;
+      case LESS_EQUAL: return number <= expr.constant;
+      default: return null;
+    }
+  }
+  
+  @Override
+  public Object visitGetThisExpr(Expr.GetThis expr) {
+    Object object = environment.getAt(locals.get(expr), environmentIndexes.get(expr));
+    if (object instanceof LoxInstance) {
+      return ((LoxInstance) object).get(expr.name, expr.position);
+    }
+    
+    throw new RuntimeError(expr.position, "Can only access properties of instances.");
+  }
+  
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
     return lookUpVariable(expr.name, expr);
   }
   
-  private Object lookUpVariable(Token name, Expr expr) {
+  private Object lookUpVariable(String name, Expr expr) {
     Integer distance = locals.get(expr);
     Integer index = environmentIndexes.get(expr);
     if (distance != null) {
       return environment.getAt(distance, index);
     } else {
-      return globals.get(name.lexeme);
+      return globals.get(name);
     }
   }
   
-  private void checkNumberOperand(Token operator, Object operand) {
+  void checkNumberOperand(long position, Object operand) {
     if (operand instanceof Double) return;
-    throw new RuntimeError(operator, "Operand must be a number.");
+    throw new RuntimeError(position, "Operand must be a number.");
   }
   
-  private void checkNumberOperands(Token operator, Object left, Object right) {
+  void checkNumberOperands(long position, Object left, Object right) {
     if (left instanceof Double && right instanceof Double) return;
-    throw new RuntimeError(operator, "Operands must be a number.");
+    throw new RuntimeError(position, "Operands must be a number.");
   }
   
   
-  private boolean isTruthy(Object object) {
+  boolean isTruthy(Object object) {
     if (object == null) return false;
     if (object instanceof Boolean) return (boolean)object;
     return true;
   }
   
-  private boolean isEqual(Object a, Object b) {
+  boolean isEqual(Object a, Object b) {
     if (a == null && b == null) return true;
     if (a == null) return false;
     
@@ -504,6 +691,31 @@ class Interpreter implements Expr.Visitor<Object>,
     environmentIndexes.put(expr, environmentIndex);
   }
 
+  boolean isResolvedLocal(Expr expr) {
+    return locals.containsKey(expr);
+  }
+
+  // Drops the resolution of a tree that won't run again, such as a
+  // declaration a Document edit replaced.
+  void forgetResolution(Stmt statement) {
+    new TreeRewriter(null) {
+      @Override
+      Expr rewrite(Expr expr) {
+        if (expr != null) {
+          locals.remove(expr);
+          environmentIndexes.remove(expr);
+        }
+        return super.rewrite(expr);
+      }
+    }.rewrite(statement);
+  }
+
+  // For passes that replace a resolved node with a rewritten copy.
+  void copyResolution(Expr from, Expr to) {
+    Integer depth = locals.get(from);
+    if (depth != null) resolve(to, depth, environmentIndexes.get(from));
+  }
+
 
 
 }
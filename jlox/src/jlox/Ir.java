@@ -0,0 +1,314 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// SSA form of one function body, built by IrBuilder for the passes in
+// CommonSubexpressionElimination, DeadStoreElimination and
+// LoopInvariantCodeMotion, whose results IrLowering applies back to the
+// tree.
+//
+// Blocks hold instructions in evaluation order and end in a JUMP, a
+// BRANCH on the truthiness of its operand, or a RETURN. Only the
+// function's own locals that no nested function can see are in SSA form.
+// Anything else that is read or written (globals, captured and enclosing
+// locals, fields), calls and printing are opaque EFFECTs, which passes
+// never move or remove. Constants and parameters belong to the entry
+// block.
+final class Ir {
+  enum Kind {
+    CONST,
+    PARAM,
+    PHI,
+    COPY,   // a local's value after its var or an assignment
+    BINARY,
+    UNARY,
+    EFFECT,
+    JUMP,
+    BRANCH,
+    RETURN,
+  }
+
+  static class Value {
+    final int id;
+    final Kind kind;
+    final List<Value> operands = new ArrayList<>();
+    final List<Value> users = new ArrayList<>();
+    Block block;
+
+    Object constant;     // CONST
+    int index;           // PARAM
+    TokenType operator;  // BINARY, UNARY
+    String label;        // EFFECT
+    // The Binary, Unary or Numeric node computed, the Assign a COPY stores, or the
+    // Call an EFFECT makes or inlines.
+    Expr source;
+    // Innermost loop declaring a local the source reads directly, if any.
+    Loop scope;
+    // Whether the source assigns to a local.
+    boolean assigns;
+    // Set once a trivial phi has been removed.
+    Value replacement;
+
+    Value(int id, Kind kind, Block block) {
+      this.id = id;
+      this.kind = kind;
+      this.block = block;
+    }
+
+    void addOperand(Value operand) {
+      operands.add(operand);
+      operand.users.add(this);
+    }
+
+    void replaceWith(Value value) {
+      for (Value user : users) {
+        for (int i = 0; i < user.operands.size(); i++) {
+          if (user.operands.get(i) == this) {
+            user.operands.set(i, value);
+            value.users.add(user);
+          }
+        }
+      }
+      users.clear();
+      replacement = value;
+    }
+
+    Value resolve() {
+      Value value = this;
+      while (value.replacement != null) value = value.replacement;
+      return value;
+    }
+
+    boolean isTerminator() {
+      return kind == Kind.JUMP || kind == Kind.BRANCH || kind == Kind.RETURN;
+    }
+
+    @Override
+    public String toString() {
+      return "v" + id;
+    }
+  }
+
+  static class Block {
+    final int id;
+    final Loop loop; // innermost loop containing the block
+    final List<Value> phis = new ArrayList<>();
+    final List<Value> instructions = new ArrayList<>();
+    final List<Block> predecessors = new ArrayList<>();
+    final List<Block> successors = new ArrayList<>();
+    boolean sealed = false;
+    // Filled in by Function.computeDominators(). Unreachable blocks have
+    // no order.
+    Block dominator;
+    int order = -1;
+    final List<Block> dominated = new ArrayList<>();
+
+    Block(int id, Loop loop) {
+      this.id = id;
+      this.loop = loop;
+    }
+
+    boolean isTerminated() {
+      return !instructions.isEmpty() &&
+          instructions.get(instructions.size() - 1).isTerminator();
+    }
+
+    boolean isReachable() {
+      return order >= 0;
+    }
+
+    @Override
+    public String toString() {
+      return "b" + id;
+    }
+  }
+
+  static class Loop {
+    final Stmt statement;
+    final Loop parent;
+    final int depth;
+    Block preheader;
+    Block header;
+
+    Loop(Stmt statement, Loop parent) {
+      this.statement = statement;
+      this.parent = parent;
+      this.depth = parent == null ? 0 : parent.depth + 1;
+    }
+
+    boolean contains(Block block) {
+      for (Loop loop = block.loop; loop != null; loop = loop.parent) {
+        if (loop == this) return true;
+      }
+      return false;
+    }
+  }
+
+  static class Function {
+    final String name;
+    final List<Value> constants = new ArrayList<>();
+    final List<Value> params = new ArrayList<>();
+    final List<Block> blocks = new ArrayList<>();
+    final List<Loop> loops = new ArrayList<>();
+    final Block entry;
+    private int values = 0;
+
+    Function(String name) {
+      this.name = name;
+      this.entry = newBlock(null);
+      entry.sealed = true;
+    }
+
+    Block newBlock(Loop loop) {
+      Block block = new Block(blocks.size(), loop);
+      blocks.add(block);
+      return block;
+    }
+
+    Value newValue(Kind kind, Block block) {
+      return new Value(values++, kind, block);
+    }
+
+    // Rebuilds every value's users from the operands of the values in the
+    // blocks.
+    void computeUsers() {
+      for (Value value : constants) value.users.clear();
+      for (Value value : params) value.users.clear();
+      for (Block block : blocks) {
+        for (Value value : block.phis) value.users.clear();
+        for (Value value : block.instructions) value.users.clear();
+      }
+      for (Block block : blocks) {
+        for (Value value : block.phis) addUses(value);
+        for (Value value : block.instructions) addUses(value);
+      }
+    }
+
+    private static void addUses(Value value) {
+      for (Value operand : value.operands) {
+        if (!operand.users.contains(value)) operand.users.add(value);
+      }
+    }
+
+    // Immediate dominators, after Cooper, Harvey and Kennedy, "A Simple,
+    // Fast Dominance Algorithm".
+    void computeDominators() {
+      List<Block> postorder = new ArrayList<>();
+      visit(entry, new boolean[blocks.size()], postorder);
+      List<Block> reversePostorder = new ArrayList<>();
+      for (int i = postorder.size() - 1; i >= 0; i--) {
+        Block block = postorder.get(i);
+        block.order = reversePostorder.size();
+        block.dominator = null;
+        block.dominated.clear();
+        reversePostorder.add(block);
+      }
+
+      entry.dominator = entry;
+      boolean changed = true;
+      while (changed) {
+        changed = false;
+        for (Block block : reversePostorder) {
+          if (block == entry) continue;
+          Block dominator = null;
+          for (Block predecessor : block.predecessors) {
+            if (predecessor.dominator == null) continue;
+            dominator = dominator == null
+                ? predecessor : intersect(predecessor, dominator);
+          }
+          if (dominator != block.dominator) {
+            block.dominator = dominator;
+            changed = true;
+          }
+        }
+      }
+
+      for (Block block : reversePostorder) {
+        if (block != entry) block.dominator.dominated.add(block);
+      }
+      entry.dominator = null;
+    }
+
+    // Depth first, with an explicit stack: a top level of many branches
+    // is a chain of blocks too long to recurse along.
+    private void visit(Block entry, boolean[] visited, List<Block> postorder) {
+      List<Block> stack = new ArrayList<>();
+      // The index of the next successor to look at, for each block on
+      // the stack.
+      int[] next = new int[visited.length];
+      visited[entry.id] = true;
+      stack.add(entry);
+      while (!stack.isEmpty()) {
+        Block block = stack.get(stack.size() - 1);
+        if (next[block.id] < block.successors.size()) {
+          Block successor = block.successors.get(next[block.id]++);
+          if (!visited[successor.id]) {
+            visited[successor.id] = true;
+            stack.add(successor);
+          }
+        } else {
+          stack.remove(stack.size() - 1);
+          postorder.add(block);
+        }
+      }
+    }
+
+    private static Block intersect(Block a, Block b) {
+      while (a != b) {
+        while (a.order > b.order) a = a.dominator;
+        while (b.order > a.order) b = b.dominator;
+      }
+      return a;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder text = new StringBuilder("fun " + name + "\n");
+      for (Value value : constants) line(text, value);
+      for (Value value : params) line(text, value);
+      for (Block block : blocks) {
+        text.append("  ").append(block).append(':');
+        if (!block.predecessors.isEmpty()) {
+          text.append(" ; from ").append(block.predecessors);
+        } else if (block != entry) {
+          text.append(" ; unreachable");
+        }
+        if (block.loop != null && block.loop.header == block) {
+          text.append(" ; loop header");
+        }
+        text.append('\n');
+        for (Value value : block.phis) line(text, value);
+        for (Value value : block.instructions) line(text, value);
+      }
+      return text.toString();
+    }
+
+    private static void line(StringBuilder text, Value value) {
+      text.append("    ");
+      if (!value.isTerminator()) text.append(value).append(" = ");
+      text.append(value.kind.name().toLowerCase());
+      switch (value.kind) {
+        case CONST:
+          text.append(' ').append(value.constant instanceof String
+              ? "\"" + value.constant + "\"" : value.constant);
+          break;
+        case PARAM: text.append(' ').append(value.index); break;
+        case BINARY: case UNARY:
+          text.append(' ').append(value.operator.name().toLowerCase());
+          break;
+        case EFFECT: text.append(' ').append(value.label); break;
+        default: break;
+      }
+      for (Value operand : value.operands) text.append(' ').append(operand);
+      if (value.kind == Kind.JUMP || value.kind == Kind.BRANCH) {
+        for (Block successor : value.block.successors) {
+          text.append(' ').append(successor);
+        }
+      }
+      text.append('\n');
+    }
+  }
+
+  private Ir() {}
+}
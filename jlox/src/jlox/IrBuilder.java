@@ -0,0 +1,686 @@
+package jlox;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+// Lowers one function body into Ir, building SSA on the fly as in Braun et
+// al., "Simple and Efficient Construction of Static Single Assignment
+// Form": each block records the current value of every local it writes,
+// and reads in other blocks look through the predecessors, placing phis
+// where paths meet. Loop headers are sealed once the loop's back edges are
+// known.
+//
+// Locals are tracked by name, mirroring the Resolver's scopes. A local
+// whose name appears anywhere in a nested function, lambda or class is
+// conservatively treated as captured, and stays in memory.
+//
+// Bodies using constructs the passes don't model throw Unsupported and
+// are left as they are.
+class IrBuilder implements Expr.Visitor<Ir.Value>, Stmt.Visitor<Void> {
+  static class Unsupported extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Unsupported(String construct) {
+      super(construct, null, false, false);
+    }
+  }
+
+  private static class Local {
+    final boolean ssa;
+    final Ir.Loop declaredIn;
+
+    Local(boolean ssa, Ir.Loop declaredIn) {
+      this.ssa = ssa;
+      this.declaredIn = declaredIn;
+    }
+  }
+
+  private final Ir.Function function;
+  private final Set<String> captured;
+  private final Stack<Map<String, Local>> scopes = new Stack<>();
+  private final Map<Local, Map<Ir.Block, Ir.Value>> currentDefs =
+      new HashMap<>();
+  private final Map<Ir.Block, Map<Local, Ir.Value>> incompletePhis =
+      new HashMap<>();
+  // Constants by value, so equal literals are the same operand.
+  private final Map<Object, Ir.Value> constants = new HashMap<>();
+  private final Stack<Ir.Block> breakTargets = new Stack<>();
+  private final Stack<Ir.Block> continueTargets = new Stack<>();
+  private Ir.Block current;
+  private Ir.Loop loop = null;
+  private int assignments = 0;
+
+  // The instruction built for each Binary, Unary, Numeric and local Assign
+  // node.
+  final Map<Expr, Ir.Value> values = new IdentityHashMap<>();
+
+  private IrBuilder(String name, Set<String> captured) {
+    this.function = new Ir.Function(name);
+    this.captured = captured;
+    this.current = function.entry;
+  }
+
+  static IrBuilder build(String name, List<String> params, List<Stmt> body) {
+    IrBuilder builder = new IrBuilder(name, Captures.of(body));
+    builder.lower(params, body);
+    return builder;
+  }
+
+  Ir.Function function() {
+    return function;
+  }
+
+  private void lower(List<String> params, List<Stmt> body) {
+    if (body instanceof LazyBody) throw new Unsupported("lazy body");
+
+    scopes.push(new HashMap<>());
+    for (int i = 0; i < params.size(); i++) {
+      Ir.Value param = function.newValue(Ir.Kind.PARAM, function.entry);
+      param.index = i;
+      function.params.add(param);
+      declare(params.get(i), param);
+    }
+    execute(body);
+    scopes.pop();
+    if (!current.isTerminated()) emit(Ir.Kind.RETURN);
+
+    for (Ir.Block block : function.blocks) {
+      if (!block.sealed) seal(block);
+    }
+    for (Ir.Block block : function.blocks) {
+      block.phis.removeIf(phi -> phi.replacement != null);
+    }
+    function.computeUsers();
+    function.computeDominators();
+  }
+
+  private void execute(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+  }
+
+  private Ir.Value evaluate(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private Ir.Value emit(Ir.Kind kind, Ir.Value... operands) {
+    Ir.Value value = function.newValue(kind, current);
+    for (Ir.Value operand : operands) {
+      value.addOperand(operand);
+    }
+    current.instructions.add(value);
+    return value;
+  }
+
+  private Ir.Value effect(String label, Ir.Value... operands) {
+    Ir.Value value = emit(Ir.Kind.EFFECT, operands);
+    value.label = label;
+    return value;
+  }
+
+  private Ir.Value constant(Object constant) {
+    return constants.computeIfAbsent(constant, c -> {
+      Ir.Value value = function.newValue(Ir.Kind.CONST, function.entry);
+      value.constant = c;
+      function.constants.add(value);
+      return value;
+    });
+  }
+
+  private Ir.Block newBlock() {
+    return function.newBlock(loop);
+  }
+
+  // Code after a jump goes into a block nothing leads to. Such blocks
+  // don't become predecessors of anything, so their values never reach
+  // a phi.
+  private void startUnreachable() {
+    current = newBlock();
+    current.sealed = true;
+  }
+
+  private void link(Ir.Block from, Ir.Block to) {
+    if (from != function.entry && from.predecessors.isEmpty()) return;
+    from.successors.add(to);
+    to.predecessors.add(from);
+  }
+
+  private void jump(Ir.Block target) {
+    emit(Ir.Kind.JUMP);
+    link(current, target);
+  }
+
+  private void branch(Ir.Value condition, Ir.Block ifTrue, Ir.Block ifFalse) {
+    emit(Ir.Kind.BRANCH, condition);
+    link(current, ifTrue);
+    link(current, ifFalse);
+  }
+
+  // Joins the values of the two arms of a conditional expression. Both
+  // arms link to the join, or, when unreachable, neither does.
+  private Ir.Value join(Ir.Block block, Ir.Value... incoming) {
+    if (block.predecessors.isEmpty()) return incoming[0];
+
+    Ir.Value phi = function.newValue(Ir.Kind.PHI, block);
+    block.phis.add(phi);
+    for (Ir.Value value : incoming) {
+      phi.addOperand(value);
+    }
+    return tryRemoveTrivialPhi(phi);
+  }
+
+  private void declare(String name, Ir.Value value) {
+    Local local = new Local(!captured.contains(name), loop);
+    scopes.peek().put(name, local);
+    if (local.ssa) write(local, current, value);
+  }
+
+  private Local lookUp(String name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Local local = scopes.get(i).get(name);
+      if (local != null) return local;
+    }
+    return null;
+  }
+
+  private Ir.Loop scopeOf(Expr operand) {
+    while (operand instanceof Expr.Grouping) {
+      operand = ((Expr.Grouping)operand).expression;
+    }
+    if (!(operand instanceof Expr.Variable)) return null;
+    Local local = lookUp(((Expr.Variable)operand).name);
+    return local == null ? null : local.declaredIn;
+  }
+
+  private static Ir.Loop deeper(Ir.Loop a, Ir.Loop b) {
+    if (a == null) return b;
+    if (b == null) return a;
+    return a.depth >= b.depth ? a : b;
+  }
+
+  private void write(Local local, Ir.Block block, Ir.Value value) {
+    currentDefs.computeIfAbsent(local, l -> new HashMap<>()).put(block, value);
+  }
+
+  private Ir.Value read(Local local, Ir.Block block) {
+    Map<Ir.Block, Ir.Value> defs = currentDefs.get(local);
+    Ir.Value value = defs == null ? null : defs.get(block);
+    if (value != null) return value.resolve();
+
+    if (!block.sealed) {
+      value = function.newValue(Ir.Kind.PHI, block);
+      block.phis.add(value);
+      incompletePhis.computeIfAbsent(block, b -> new HashMap<>())
+          .put(local, value);
+    } else if (block.predecessors.isEmpty()) {
+      value = constant(null);
+    } else if (block.predecessors.size() == 1) {
+      value = read(local, block.predecessors.get(0));
+    } else {
+      Ir.Value phi = function.newValue(Ir.Kind.PHI, block);
+      block.phis.add(phi);
+      write(local, block, phi);
+      value = addPhiOperands(local, phi);
+    }
+    write(local, block, value);
+    return value;
+  }
+
+  private Ir.Value addPhiOperands(Local local, Ir.Value phi) {
+    for (Ir.Block predecessor : phi.block.predecessors) {
+      phi.addOperand(read(local, predecessor));
+    }
+    return tryRemoveTrivialPhi(phi);
+  }
+
+  private Ir.Value tryRemoveTrivialPhi(Ir.Value phi) {
+    Ir.Value same = null;
+    for (Ir.Value operand : phi.operands) {
+      if (operand == same || operand == phi) continue;
+      if (same != null) return phi;
+      same = operand;
+    }
+    if (same == null) same = constant(null);
+
+    Set<Ir.Value> users = new HashSet<>(phi.users);
+    users.remove(phi);
+    phi.replaceWith(same);
+    for (Ir.Value user : users) {
+      if (user.kind == Ir.Kind.PHI && user.replacement == null) {
+        tryRemoveTrivialPhi(user);
+      }
+    }
+    return same;
+  }
+
+  private void seal(Ir.Block block) {
+    Map<Local, Ir.Value> phis = incompletePhis.remove(block);
+    if (phis != null) {
+      for (Map.Entry<Local, Ir.Value> entry : phis.entrySet()) {
+        addPhiOperands(entry.getKey(), entry.getValue());
+      }
+    }
+    block.sealed = true;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    scopes.push(new HashMap<>());
+    execute(stmt.statements);
+    scopes.pop();
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    Ir.Value value = stmt.superclass == null
+        ? effect("class " + stmt.name)
+        : effect("class " + stmt.name, evaluate(stmt.superclass));
+    declare(stmt.name, value);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    evaluate(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    declare(stmt.name, effect("fun " + stmt.name));
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    Ir.Value condition = evaluate(stmt.condition);
+    Ir.Block thenBlock = newBlock();
+    Ir.Block elseBlock = newBlock();
+    branch(condition, thenBlock, elseBlock);
+    seal(thenBlock);
+
+    current = thenBlock;
+    stmt.thenBranch.accept(this);
+    if (stmt.elseBranch == null) {
+      jump(elseBlock);
+      seal(elseBlock);
+      current = elseBlock;
+      return null;
+    }
+
+    Ir.Block join = newBlock();
+    jump(join);
+    seal(elseBlock);
+    current = elseBlock;
+    stmt.elseBranch.accept(this);
+    jump(join);
+    seal(join);
+    current = join;
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    effect("print", evaluate(stmt.expression));
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    Ir.Value value = stmt.initializer == null
+        ? constant(null) : evaluate(stmt.initializer);
+    if (!captured.contains(stmt.name)) value = emit(Ir.Kind.COPY, value);
+    declare(stmt.name, value);
+    if (!lookUp(stmt.name).ssa) effect("store " + stmt.name, value);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    lowerLoop(stmt, stmt.condition, stmt.body, null);
+    return null;
+  }
+
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    if (stmt.condition == null || stmt.increment == null) {
+      throw new Unsupported("for without condition or increment");
+    }
+    lowerLoop(stmt, stmt.condition, stmt.body, stmt.increment);
+    return null;
+  }
+
+  private void lowerLoop(Stmt stmt, Expr condition, Stmt body,
+                         Expr increment) {
+    Ir.Loop outer = loop;
+    Ir.Block preheader = newBlock();
+    jump(preheader);
+    seal(preheader);
+    current = preheader;
+
+    loop = new Ir.Loop(stmt, outer);
+    function.loops.add(loop);
+    loop.preheader = preheader;
+    loop.header = newBlock();
+    jump(loop.header);
+    current = loop.header;
+
+    Ir.Value test = evaluate(condition);
+    Ir.Block bodyBlock = newBlock();
+    Ir.Block continueTarget = increment == null ? loop.header : newBlock();
+    Ir.Block exit = function.newBlock(outer);
+    branch(test, bodyBlock, exit);
+    seal(bodyBlock);
+
+    breakTargets.push(exit);
+    continueTargets.push(continueTarget);
+    current = bodyBlock;
+    body.accept(this);
+    breakTargets.pop();
+    continueTargets.pop();
+
+    if (increment != null) {
+      jump(continueTarget);
+      seal(continueTarget);
+      current = continueTarget;
+      evaluate(increment);
+    }
+    jump(loop.header);
+    seal(loop.header);
+    seal(exit);
+    current = exit;
+    loop = outer;
+  }
+
+  @Override
+  public Void visitJumpStmt(Stmt.Jump stmt) {
+    switch (stmt.keyword) {
+      case RETURN:
+        if (stmt.value == null) {
+          emit(Ir.Kind.RETURN);
+        } else {
+          emit(Ir.Kind.RETURN, evaluate(stmt.value));
+        }
+        break;
+      case BREAK:
+        jump(breakTargets.peek());
+        break;
+      case CONTINUE:
+        jump(continueTargets.peek());
+        break;
+      default:
+        throw new Unsupported(stmt.keyword.name());
+    }
+    startUnreachable();
+    return null;
+  }
+
+  @Override
+  public Ir.Value visitAssignExpr(Expr.Assign expr) {
+    Ir.Value value = evaluate(expr.value);
+    Local local = lookUp(expr.name);
+    if (local == null || !local.ssa) {
+      return effect("store " + expr.name, value);
+    }
+
+    Ir.Value copy = emit(Ir.Kind.COPY, value);
+    copy.source = expr;
+    assignments++;
+    values.put(expr, copy);
+    write(local, current, copy);
+    return copy;
+  }
+
+  @Override
+  public Ir.Value visitBinaryExpr(Expr.Binary expr) {
+    // The Interpreter evaluates both operands of a comma twice.
+    if (expr.operator == TokenType.COMMA) throw new Unsupported("comma");
+
+    int before = assignments;
+    Ir.Value left = evaluate(expr.left);
+    Ir.Value right = evaluate(expr.right);
+    Ir.Value value = emit(Ir.Kind.BINARY, left, right);
+    value.operator = expr.operator;
+    value.source = expr;
+    value.assigns = assignments != before;
+    value.scope = deeper(scopeOf(expr.left), scopeOf(expr.right));
+    values.put(expr, value);
+    return value;
+  }
+
+  @Override
+  public Ir.Value visitTernaryExpr(Expr.Ternary expr) {
+    Ir.Value condition = evaluate(expr.cond);
+    Ir.Block ifTrue = newBlock();
+    Ir.Block ifFalse = newBlock();
+    Ir.Block join = newBlock();
+    branch(condition, ifTrue, ifFalse);
+    seal(ifTrue);
+    seal(ifFalse);
+
+    current = ifTrue;
+    Ir.Value trueValue = evaluate(expr.ifTrue);
+    jump(join);
+    current = ifFalse;
+    Ir.Value falseValue = evaluate(expr.ifFalse);
+    jump(join);
+    seal(join);
+    current = join;
+    return join(join, trueValue, falseValue);
+  }
+
+  @Override
+  public Ir.Value visitGroupingExpr(Expr.Grouping expr) {
+    return evaluate(expr.expression);
+  }
+
+  @Override
+  public Ir.Value visitLiteralExpr(Expr.Literal expr) {
+    return constant(expr.value);
+  }
+
+  @Override
+  public Ir.Value visitLogicalExpr(Expr.Logical expr) {
+    Ir.Value left = evaluate(expr.left);
+    Ir.Block right = newBlock();
+    Ir.Block join = newBlock();
+    if (expr.operator == TokenType.OR) {
+      branch(left, join, right);
+    } else {
+      branch(left, right, join);
+    }
+    seal(right);
+
+    current = right;
+    Ir.Value rightValue = evaluate(expr.right);
+    jump(join);
+    seal(join);
+    current = join;
+    return join(join, left, rightValue);
+  }
+
+  @Override
+  public Ir.Value visitUnaryExpr(Expr.Unary expr) {
+    int before = assignments;
+    Ir.Value right = evaluate(expr.right);
+    Ir.Value value = emit(Ir.Kind.UNARY, right);
+    value.operator = expr.operator;
+    value.source = expr;
+    value.assigns = assignments != before;
+    value.scope = scopeOf(expr.right);
+    values.put(expr, value);
+    return value;
+  }
+
+  @Override
+  public Ir.Value visitCallExpr(Expr.Call expr) {
+    Ir.Value[] operands = new Ir.Value[expr.arguments.size() + 1];
+    operands[0] = evaluate(expr.callee);
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      operands[i + 1] = evaluate(expr.arguments.get(i));
+    }
+    Ir.Value value = effect("call", operands);
+    value.source = expr;
+    return value;
+  }
+
+  @Override
+  public Ir.Value visitGetExpr(Expr.Get expr) {
+    return effect("get " + expr.name, evaluate(expr.object));
+  }
+
+  @Override
+  public Ir.Value visitSetExpr(Expr.Set expr) {
+    Ir.Value object = evaluate(expr.object);
+    return effect("set " + expr.name, object, evaluate(expr.value));
+  }
+
+  @Override
+  public Ir.Value visitSuperExpr(Expr.Super expr) {
+    return effect("super " + expr.method);
+  }
+
+  @Override
+  public Ir.Value visitThisExpr(Expr.This expr) {
+    return effect("this");
+  }
+
+  @Override
+  public Ir.Value visitErroneousExpr(Expr.Erroneous expr) {
+    throw new Unsupported("erroneous expression");
+  }
+
+  @Override
+  public Ir.Value visitVariableExpr(Expr.Variable expr) {
+    Local local = lookUp(expr.name);
+    if (local == null || !local.ssa) return effect("load " + expr.name);
+    return read(local, current);
+  }
+
+  @Override
+  public Ir.Value visitLambdaExpr(Expr.Lambda expr) {
+    return effect("fun");
+  }
+
+  @Override
+  public Ir.Value visitInlineExpr(Expr.Inline expr) {
+    // Like a call, the callee being a global.
+    Ir.Value[] operands = new Ir.Value[expr.call.arguments.size()];
+    for (int i = 0; i < operands.length; i++) {
+      operands[i] = evaluate(expr.call.arguments.get(i));
+    }
+    Ir.Value value = effect("inline", operands);
+    value.source = expr.call;
+    return value;
+  }
+
+  @Override
+  public Ir.Value visitNumericExpr(Expr.Numeric expr) {
+    int before = assignments;
+    Ir.Value value;
+    if (expr.left == null) {
+      value = emit(Ir.Kind.UNARY, evaluate(expr.right));
+      value.scope = scopeOf(expr.right);
+    } else {
+      Ir.Value left = evaluate(expr.left);
+      value = emit(Ir.Kind.BINARY, left, evaluate(expr.right));
+      value.scope = deeper(scopeOf(expr.left), scopeOf(expr.right));
+    }
+    value.operator = expr.operator;
+    value.source = expr;
+    value.assigns = assignments != before;
+    values.put(expr, value);
+    return value;
+  }
+
+  // Fused nodes are only built after the SSA passes.
+  @Override
+  public Ir.Value visitIncrementLocalExpr(Expr.IncrementLocal expr) {
+    throw new Unsupported("fused node");
+  }
+
+  @Override
+  public Ir.Value visitCompareLocalExpr(Expr.CompareLocal expr) {
+    throw new Unsupported("fused node");
+  }
+
+  @Override
+  public Ir.Value visitGetThisExpr(Expr.GetThis expr) {
+    throw new Unsupported("fused node");
+  }
+
+  // Instrumented programs are not optimized.
+  @Override
+  public Ir.Value visitCountedExpr(Expr.Counted expr) {
+    throw new Unsupported("counted node");
+  }
+
+  @Override
+  public Void visitCountedStmt(Stmt.Counted stmt) {
+    throw new Unsupported("counted node");
+  }
+
+  // Names referred to from nested functions, lambdas and methods.
+  private static class Captures extends TreeRewriter {
+    private final Set<String> names = new HashSet<>();
+    private int depth = 0;
+
+    private Captures() {
+      super(null);
+    }
+
+    static Set<String> of(List<Stmt> body) {
+      Captures captures = new Captures();
+      captures.rewriteBody(body);
+      return captures.names;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+      depth++;
+      super.visitFunctionStmt(stmt);
+      depth--;
+      return stmt;
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+      depth++;
+      super.visitLambdaExpr(expr);
+      depth--;
+      return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+      if (depth > 0) names.add(expr.name);
+      rewrite(expr.value);
+      return expr;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+      if (depth > 0) names.add(expr.name);
+      return expr;
+    }
+
+    @Override
+    public Expr visitIncrementLocalExpr(Expr.IncrementLocal expr) {
+      if (depth > 0) names.add(expr.name);
+      return expr;
+    }
+
+    @Override
+    public Expr visitCompareLocalExpr(Expr.CompareLocal expr) {
+      if (depth > 0) names.add(expr.name);
+      return expr;
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+// Applies the results of the SSA passes to the function body the Ir was
+// built from, through temporaries declared at the top of the body:
+//
+// * The source of an instruction another one was replaced with assigns
+//   its value to a temporary, which the replaced sources read instead.
+// * The source of a hoisted instruction is assigned to a temporary just
+//   before the loop it left, in preheader order, and read in the loop.
+// * Dead assignments are reduced to their value.
+//
+// The new tree must be resolved again.
+class IrLowering extends TreeRewriter {
+  private final Map<Expr, Ir.Value> values;
+  private final Map<Ir.Value, Ir.Loop> hoisted;
+  private final Map<Ir.Value, Ir.Value> replacements;
+  private final Set<Expr.Assign> deadStores;
+
+  private final Map<Stmt, Ir.Loop> loops = new IdentityHashMap<>();
+  private final Set<Ir.Value> shared =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+  private final Map<Ir.Value, String> temps = new LinkedHashMap<>();
+  private final Map<Ir.Loop, List<Ir.Value>> pendingHoists = new HashMap<>();
+  private final Map<Ir.Value, Stmt> hoists = new IdentityHashMap<>();
+  private final Set<Stmt> spliced =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+  private Ir.Loop hoistingTo = null;
+
+  IrLowering(Interpreter interpreter, Ir.Function function,
+             Map<Expr, Ir.Value> values, Map<Ir.Value, Ir.Loop> hoisted,
+             Map<Ir.Value, Ir.Value> replacements,
+             Set<Expr.Assign> deadStores) {
+    super(interpreter);
+    this.values = values;
+    this.hoisted = hoisted;
+    this.replacements = replacements;
+    this.deadStores = deadStores;
+    for (Ir.Loop loop : function.loops) {
+      loops.put(loop.statement, loop);
+    }
+  }
+
+  List<Stmt> lower(List<Stmt> body, long position) {
+    new SharedValues().rewrite(body);
+    List<Stmt> lowered = rewrite(body);
+    if (temps.isEmpty()) return lowered;
+
+    List<Stmt> withTemps = new ArrayList<>(temps.size() + lowered.size());
+    for (String temp : temps.values()) {
+      withTemps.add(new Stmt.Var(temp, position, null));
+    }
+    withTemps.addAll(lowered);
+    return withTemps;
+  }
+
+  @Override
+  List<Stmt> rewrite(List<Stmt> statements) {
+    List<Stmt> rewritten = new ArrayList<>(statements.size());
+    boolean changed = false;
+    for (Stmt statement : statements) {
+      Stmt result = rewrite(statement);
+      if (spliced.contains(result)) {
+        rewritten.addAll(((Stmt.Block)result).statements);
+      } else if (result != null) {
+        rewritten.add(result);
+      }
+      changed |= result != statement;
+    }
+    return changed ? rewritten : statements;
+  }
+
+  @Override
+  Stmt rewrite(Stmt stmt) {
+    Stmt result = super.rewrite(stmt);
+    if (result instanceof Stmt.Expression && result != stmt &&
+        DeadCodeEliminator.isInert(((Stmt.Expression)result).expression)) {
+      return null;
+    }
+
+    Ir.Loop loop = loops.get(stmt);
+    List<Ir.Value> pending = loop == null ? null : pendingHoists.remove(loop);
+    if (pending == null) return result;
+
+    List<Ir.Value> preheader = loop.preheader.instructions;
+    pending.sort(Comparator.comparingInt(preheader::indexOf));
+    List<Stmt> statements = new ArrayList<>(pending.size() + 1);
+    for (Ir.Value value : pending) {
+      statements.add(hoists.get(value));
+    }
+    statements.add(result);
+    Stmt.Block block = new Stmt.Block(Position.NONE, statements);
+    spliced.add(block);
+    return block;
+  }
+
+  // Nested functions have Ir of their own.
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Expr visitLambdaExpr(Expr.Lambda expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    if (deadStores.contains(expr)) return rewrite(expr.value);
+    return super.visitAssignExpr(expr);
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    return lower(expr, expr.position, () -> super.visitBinaryExpr(expr));
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    return lower(expr, expr.position, () -> super.visitUnaryExpr(expr));
+  }
+
+  @Override
+  public Expr visitNumericExpr(Expr.Numeric expr) {
+    return lower(expr, expr.position, () -> super.visitNumericExpr(expr));
+  }
+
+  private Expr lower(Expr expr, long position, Supplier<Expr> rewritten) {
+    Ir.Value value = values.get(expr);
+    if (value == null) return rewritten.get();
+
+    Ir.Value replacement = replacements.get(value);
+    if (replacement != null) {
+      return new Expr.Variable(temp(replacement), position);
+    }
+
+    Ir.Loop loop = hoisted.get(value);
+    if (loop != null && loop != hoistingTo) {
+      Ir.Loop outer = hoistingTo;
+      hoistingTo = loop;
+      Expr hoist = rewritten.get();
+      hoistingTo = outer;
+
+      hoists.put(value, new Stmt.Expression(
+          new Expr.Assign(temp(value), position, hoist)));
+      pendingHoists.computeIfAbsent(loop, l -> new ArrayList<>()).add(value);
+      return new Expr.Variable(temp(value), position);
+    }
+
+    if (!shared.contains(value)) return rewritten.get();
+    return new Expr.Assign(temp(value), position, rewritten.get());
+  }
+
+  private String temp(Ir.Value value) {
+    return temps.computeIfAbsent(value, v -> "$t" + temps.size());
+  }
+
+  // Finds the instructions whose value replaces one still in the tree, not
+  // under another replaced node.
+  private class SharedValues extends TreeRewriter {
+    SharedValues() {
+      super(null);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+      return stmt;
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+      return replaced(expr) ? expr : super.visitBinaryExpr(expr);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+      return replaced(expr) ? expr : super.visitUnaryExpr(expr);
+    }
+
+    @Override
+    public Expr visitNumericExpr(Expr.Numeric expr) {
+      return replaced(expr) ? expr : super.visitNumericExpr(expr);
+    }
+
+    private boolean replaced(Expr expr) {
+      Ir.Value value = values.get(expr);
+      Ir.Value replacement = value == null ? null : replacements.get(value);
+      if (replacement == null) return false;
+      shared.add(replacement);
+      return true;
+    }
+  }
+}
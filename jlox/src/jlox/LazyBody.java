@@ -0,0 +1,78 @@
+package jlox;
+
+import java.util.AbstractList;
+import java.util.List;
+
+// Body of a function whose statements are parsed and resolved on first use.
+// Until then only the body's tokens, bracket matched, are kept; its other
+// syntax errors are reported when it is first called.
+class LazyBody extends AbstractList<Stmt> {
+  interface Resolution {
+    void resolve(List<Stmt> statements);
+  }
+
+  private final String name;
+  private final long position;
+  private List<Token> tokens;
+  private Resolution resolution;
+  private List<Stmt> statements;
+
+  LazyBody(String name, long position, List<Token> tokens) {
+    this.name = name;
+    this.position = position;
+    this.tokens = tokens;
+  }
+
+  // Called by the Resolver with the scope context the body must be
+  // resolved in once it is parsed.
+  void deferResolution(Resolution resolution) {
+    this.resolution = resolution;
+  }
+
+  boolean isMaterialized() {
+    return statements != null;
+  }
+
+  @Override
+  public Stmt get(int index) {
+    return statements().get(index);
+  }
+
+  @Override
+  public int size() {
+    return statements().size();
+  }
+
+  private List<Stmt> statements() {
+    if (statements == null) materialize();
+    return statements;
+  }
+
+  private void materialize() {
+    if (tokens == null) {
+      throw new RuntimeError(position,
+          "Body of '" + name + "' failed to compile.");
+    }
+
+    boolean hadError = Lox.hadError;
+    Lox.hadError = false;
+
+    Parser parser = new Parser(tokens);
+    parser.useFile(Position.file(position));
+    List<Stmt> parsed = parser.parseLazyBody();
+    tokens = null;
+    if (!Lox.hadError && resolution != null) {
+      resolution.resolve(parsed);
+      resolution = null;
+    }
+
+    boolean failed = Lox.hadError;
+    Lox.hadError = hadError || failed;
+    if (failed) {
+      throw new RuntimeError(position,
+          "Body of '" + name + "' failed to compile.");
+    }
+
+    statements = parsed;
+  }
+}
@@ -0,0 +1,147 @@
+package jlox;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Moves pure instructions whose operands are all defined outside a loop
+// into the loop's preheader, innermost loops first, so an instruction may
+// move out of several loops in turn. The source must also only read
+// locals declared outside the loop, for IrLowering to evaluate it there.
+//
+// An instruction that can't fail can be evaluated whether or not the loop
+// runs. One that might fail is only moved out of the loop's header, when
+// nothing before it there has an effect or might fail: the header runs
+// whenever the preheader does, so it would fail at the same point anyway.
+final class LoopInvariantCodeMotion {
+  private final Ir.Function function;
+
+  // Hoisted instructions and the outermost loop they left.
+  final Map<Ir.Value, Ir.Loop> hoisted = new IdentityHashMap<>();
+
+  LoopInvariantCodeMotion(Ir.Function function) {
+    this.function = function;
+  }
+
+  void run() {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      // Inner loops are built after the loops around them.
+      for (int i = function.loops.size() - 1; i >= 0; i--) {
+        changed |= hoist(function.loops.get(i));
+      }
+    }
+  }
+
+  private boolean hoist(Ir.Loop loop) {
+    boolean changed = false;
+    for (Ir.Block block : function.blocks) {
+      if (!loop.contains(block)) continue;
+
+      Iterator<Ir.Value> instructions = block.instructions.iterator();
+      while (instructions.hasNext()) {
+        Ir.Value value = instructions.next();
+        if (!isHoistable(value, loop)) continue;
+
+        instructions.remove();
+        Ir.Block preheader = loop.preheader;
+        preheader.instructions.add(preheader.instructions.size() - 1, value);
+        value.block = preheader;
+        hoisted.put(value, loop);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private boolean isHoistable(Ir.Value value, Ir.Loop loop) {
+    if (value.kind != Ir.Kind.BINARY && value.kind != Ir.Kind.UNARY) {
+      return false;
+    }
+    if (value.scope != null && value.scope.depth >= loop.depth) return false;
+    for (Ir.Value operand : value.operands) {
+      if (loop.contains(operand.block)) return false;
+    }
+    return cannotFail(value) || isFirstInHeader(value, loop);
+  }
+
+  private static boolean isFirstInHeader(Ir.Value value, Ir.Loop loop) {
+    if (value.block != loop.header) return false;
+    for (Ir.Value before : loop.header.instructions) {
+      if (before == value) return true;
+      if (before.kind != Ir.Kind.BINARY && before.kind != Ir.Kind.UNARY) {
+        return false;
+      }
+      if (!cannotFail(before)) return false;
+    }
+    return false;
+  }
+
+  static boolean cannotFail(Ir.Value value) {
+    Ir.Value left = value.operands.get(0);
+    if (value.kind == Ir.Kind.UNARY) {
+      return value.operator == TokenType.BANG || isNumber(left);
+    }
+
+    Ir.Value right = value.operands.get(1);
+    switch (value.operator) {
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+        return true;
+      case PLUS:
+        return isString(left) || isString(right) ||
+            (isNumber(left) && isNumber(right));
+      case SLASH:
+        return isNumber(left) && right.kind == Ir.Kind.CONST &&
+            right.constant instanceof Double &&
+            (double)right.constant != 0.0;
+      case MINUS:
+      case STAR:
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        return isNumber(left) && isNumber(right);
+      default:
+        return false;
+    }
+  }
+
+  // Whether the value is a number whenever it has been computed at all.
+  static boolean isNumber(Ir.Value value) {
+    switch (value.kind) {
+      case CONST:
+        return value.constant instanceof Double;
+      case COPY:
+        return isNumber(value.operands.get(0));
+      case UNARY:
+        return value.operator == TokenType.MINUS;
+      case BINARY:
+        switch (value.operator) {
+          case MINUS: case STAR: case SLASH: return true;
+          case PLUS:
+            return isNumber(value.operands.get(0)) &&
+                isNumber(value.operands.get(1));
+          default: return false;
+        }
+      default:
+        return false;
+    }
+  }
+
+  static boolean isString(Ir.Value value) {
+    switch (value.kind) {
+      case CONST:
+        return value.constant instanceof String;
+      case COPY:
+        return isString(value.operands.get(0));
+      case BINARY:
+        return value.operator == TokenType.PLUS &&
+            (isString(value.operands.get(0)) ||
+             isString(value.operands.get(1)));
+      default:
+        return false;
+    }
+  }
+}
@@ -10,82 +10,570 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    // Made on first use, as cached and flat runs have their own.
+    private static Interpreter interpreter = null;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     private static List<String> linesText = new ArrayList<>();
+    private static String sourceText = "";
+    private static boolean lazyParsing = false;
+    private static boolean streaming = false;
+    private static boolean pipelined = false;
+    private static boolean flatAst = false;
+    private static boolean useCache = false;
+    private static int inlineThreshold = Inliner.DEFAULT_THRESHOLD;
+    private static boolean inlineReport = false;
+    private static boolean dceReport = false;
+    private static boolean dumpIr = false;
+    private static int optimizationLevel = PassManager.MAX_LEVEL;
+    private static boolean timePasses = false;
+    private static int profileHertz = 0;
+    private static String profileOutput = "profile.folded";
+    static boolean heatmap = false;
+    private static String heatmapJson = null;
+    private static int allocationSampling = 0;
+    private static boolean collectMetrics = false;
+    private static int metricsPort = -1;
+    private static boolean timings = false;
+    private static boolean coldStart = false;
+
+    // When main was entered, and the time each phase took, for --timings.
+    private static long mainNanos;
+    private static final long[] phaseNanos = new long[Metrics.Phase.values().length];
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
-        } else {
-            runPrompt();
+        mainNanos = System.nanoTime();
+        String script = parseArguments(args);
+        if (profileHertz > 0) Profiler.start(profileHertz, Paths.get(profileOutput));
+        if (allocationSampling > 0) AllocationProfiler.start(allocationSampling);
+        if (!coldStart) LoxEvents.watchRecordings();
+        if (collectMetrics) Metrics.start(metricsPort);
+        if (heatmap) {
+            // Counts are for the program as written.
+            Heatmap.active = new Heatmap();
+            optimizationLevel = 0;
+        }
+        try {
+            if (script != null) {
+                runFile(script);
+            } else {
+                runPrompt();
+            }
+        } finally {
+            if (collectMetrics) Metrics.stop();
+        }
+    }
+
+    // Sets the options given and returns the script, or null if there is
+    // none.
+    static String parseArguments(String[] args) {
+        String script = null;
+        for (String arg : args) {
+            if (arg.equals("--lazy")) {
+                lazyParsing = true;
+            } else if (arg.equals("--stream")) {
+                streaming = true;
+            } else if (arg.equals("--pipeline")) {
+                pipelined = true;
+            } else if (arg.equals("--flat")) {
+                flatAst = true;
+            } else if (arg.equals("--cache")) {
+                useCache = true;
+            } else if (arg.startsWith("--inline-threshold=")) {
+                inlineThreshold = parseCount(arg.substring("--inline-threshold=".length()));
+            } else if (arg.equals("--inline-report")) {
+                inlineReport = true;
+            } else if (arg.equals("--dce-report")) {
+                dceReport = true;
+            } else if (arg.equals("--dump-ir")) {
+                dumpIr = true;
+            } else if (isLevel(arg)) {
+                optimizationLevel = parseCount(arg.substring(2));
+                if (optimizationLevel > PassManager.MAX_LEVEL) usage();
+            } else if (arg.equals("--time-passes")) {
+                timePasses = true;
+            } else if (arg.equals("--profile")) {
+                profileHertz = Profiler.DEFAULT_HERTZ;
+            } else if (arg.startsWith("--profile=")) {
+                profileHertz = parseCount(arg.substring("--profile=".length()));
+                if (profileHertz == 0) usage();
+            } else if (arg.startsWith("--profile-out=")) {
+                profileOutput = arg.substring("--profile-out=".length());
+            } else if (arg.equals("--heatmap")) {
+                heatmap = true;
+            } else if (arg.startsWith("--heatmap-json=")) {
+                heatmap = true;
+                heatmapJson = arg.substring("--heatmap-json=".length());
+            } else if (arg.equals("--alloc-profile")) {
+                allocationSampling = 1;
+            } else if (arg.startsWith("--alloc-profile=")) {
+                allocationSampling = parseCount(arg.substring("--alloc-profile=".length()));
+                if (allocationSampling == 0) usage();
+            } else if (arg.equals("--metrics")) {
+                collectMetrics = true;
+            } else if (arg.startsWith("--metrics-port=")) {
+                collectMetrics = true;
+                metricsPort = parseCount(arg.substring("--metrics-port=".length()));
+            } else if (arg.equals("--timings")) {
+                timings = true;
+            } else if (arg.equals("--cold-start")) {
+                coldStart = true;
+            } else if (arg.startsWith("-") || script != null) {
+                usage();
+            } else {
+                script = arg;
+            }
+        }
+        if (coldStart) {
+            // Short scripts finish before the passes and the cache pay
+            // for the classes they load.
+            optimizationLevel = 0;
+            useCache = false;
         }
+        return script;
+    }
+
+    // -O followed by digits. String.matches would load the regex engine.
+    private static boolean isLevel(String arg) {
+        if (arg.length() < 3 || !arg.startsWith("-O")) return false;
+        for (int i = 2; i < arg.length(); i++) {
+            if (arg.charAt(i) < '0' || arg.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--lazy] [--stream] [--pipeline] [--flat] [--cache]" +
+            " [--inline-threshold=N] [--inline-report] [--dce-report] [--dump-ir]" +
+            " [-O0|-O1|-O2] [--time-passes] [--profile[=HZ]] [--profile-out=FILE]" +
+            " [--heatmap] [--heatmap-json=FILE] [--alloc-profile[=N]]" +
+            " [--metrics] [--metrics-port=N] [--timings] [--cold-start] [script]");
+        System.exit(64);
+    }
+
+    private static int parseCount(String text) {
+        try {
+            int count = Integer.parseInt(text);
+            if (count >= 0) return count;
+        } catch (NumberFormatException e) {
+            // Fall through to the usage.
+        }
+        usage();
+        return 0;
     }
 
     private static void runFile(String path) throws IOException {
+        PhaseTimer timer = new PhaseTimer(Metrics.Phase.READ);
         byte[] bytes = Files.readAllBytes(Paths.get(path));
         String text = new String(bytes, Charset.defaultCharset());
+        timer.end();
         
         runFromFile(text);
+        if (heatmap) reportHeatmap();
+        if (timings) reportTimings();
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
+    // The source annotated with the counts on stderr, or as JSON with
+    // --heatmap-json.
+    private static void reportHeatmap() throws IOException {
+        int lines = sourceText.split("\n").length;
+        if (heatmapJson != null) {
+            Heatmap.active.writeJson(Paths.get(heatmapJson), lines);
+        } else {
+            Heatmap.active.print(System.err, lines);
+        }
+    }
+
+    // The wall time from the process starting to now, split into the JVM
+    // starting up until main and the phases, on stderr.
+    private static void reportTimings() {
+        long sinceMain = System.nanoTime() - mainNanos;
+        long jvmNanos = Math.max(processAgeNanos() - sinceMain, 0);
+        long totalNanos = sinceMain + jvmNanos;
+
+        System.err.println("Timings:");
+        timing("jvm init", jvmNanos, totalNanos);
+        long other = totalNanos - jvmNanos;
+        for (Metrics.Phase phase : Metrics.Phase.values()) {
+            long nanos = phaseNanos[phase.ordinal()];
+            if (nanos == 0) continue;
+            timing(phase.label, nanos, totalNanos);
+            other -= nanos;
+        }
+        timing("other", other, totalNanos);
+        timing("total", totalNanos, totalNanos);
+    }
+
+    // Linux counts the process's start and the uptime in clock ticks,
+    // 10 ms, so the JVM's share is only that precise. Elsewhere the start
+    // time comes from ProcessHandle. On Linux that adds the boot time,
+    // which is only kept to the second, so it isn't used there. 0 if
+    // neither works.
+    private static long processAgeNanos() {
+        try {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc/self/stat")));
+            String uptime = new String(Files.readAllBytes(Paths.get("/proc/uptime")));
+            // Fields after the command name, which may hold spaces; the
+            // start time is the 22nd field.
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            long startTicks = Long.parseLong(fields[19]);
+            double seconds = Double.parseDouble(uptime.split(" ")[0]);
+            return (long)(seconds * 1e9) - startTicks * 10_000_000;
+        } catch (IOException | RuntimeException e) {
+            // Not Linux.
+        }
+        return ProcessHandle.current().info().startInstant()
+            .map(started -> (System.currentTimeMillis() - started.toEpochMilli()) * 1_000_000)
+            .orElse(0L);
+    }
+
+    private static void timing(String name, long nanos, long totalNanos) {
+        System.err.println(String.format("  %-10s %9.2f ms %6.1f%%",
+            name, nanos / 1e6, 100.0 * nanos / totalNanos));
+    }
+
+    private static Interpreter interpreter() {
+        if (interpreter == null) interpreter = new Interpreter(streaming);
+        return interpreter;
+    }
+
+    // Runs a script in a fresh interpreter, so a process can run many.
+    // Returns whether it ran without errors.
+    static boolean runScript(String source) {
+        interpreter = null;
+        hadError = false;
+        hadRuntimeError = false;
+        runFromFile(source);
+        return !hadError && !hadRuntimeError;
+    }
+
+    // The session is a Document each input is appended to, so only the
+    // new declarations are parsed and resolved. Input is read until its
+    // brackets, strings and comments are closed.
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
+        Document session = new Document(interpreter(), "");
 
         for (;;) {
             System.out.print(">>> ");
             String line = reader.readLine();
             if (line == null)
                 break;
-            runFromInteractive(line);
+            StringBuilder source = new StringBuilder(line);
+            while (line != null && !Document.isComplete(source.toString())) {
+                System.out.print("... ");
+                line = reader.readLine();
+                if (line != null) source.append('\n').append(line);
+            }
+            runFromInteractive(session, source.toString());
             hadError = false;
+            hadRuntimeError = false;
+        }
+    }
+    
+    // Times a phase of running a program, for --timings, --metrics and as
+    // a jlox.Phase event.
+    private static final class PhaseTimer {
+        private final Metrics.Phase phase;
+        private final long start = System.nanoTime();
+        // Cold starts don't watch for recordings, so there are none to
+        // check for.
+        private final LoxEvents.PhaseEvent event =
+            !coldStart && LoxEvents.recording ? LoxEvents.beginPhase() : null;
+
+        PhaseTimer(Metrics.Phase phase) {
+            this.phase = phase;
+        }
+
+        void end() {
+            long nanos = System.nanoTime() - start;
+            phaseNanos[phase.ordinal()] += nanos;
+            if (collectMetrics) Metrics.time(phase, nanos);
+            if (event != null) event.finish(phase);
         }
     }
     
-    private static Parser makeParser(String source) {
+    private static Parser makeParser(String source, boolean lazy) {
+      sourceText = source;
+      // Until the scanner is done, errors look lines up in the source.
+      linesText = null;
+      if (pipelined) return makePipelinedParser(source, lazy);
+      // Scanned as it is parsed, so no token list is kept.
+      if (streaming) return new Parser(new Scanner(source).stream(), lazy);
+      
+      PhaseTimer timer = new PhaseTimer(Metrics.Phase.SCAN);
       Scanner scanner = new Scanner(source);
       List<Token> tokens = scanner.scanTokens();
+      timer.end();
       linesText = scanner.getLines();
-      return new Parser(tokens);
+      return new Parser(tokens, lazy);
     }
     
-    private static void runFromInteractive(String source) {
-      Parser parser = makeParser(source);
+    // Scans on a separate thread, handing tokens to the parser through a
+    // bounded buffer as they are produced.
+    private static Parser makePipelinedParser(String source, boolean lazy) {
+      Scanner scanner = new Scanner(source);
+      TokenRingBuffer pipe = new TokenRingBuffer(1024);
+      Thread thread = new Thread(() -> scanner.scanInto(pipe), "jlox-scanner");
+      thread.setDaemon(true);
+      thread.start();
+      return new Parser(pipe, lazy);
+    }
     
-      Object stmt_or_expr = parser.parseFromInteractive();
+    // Input that doesn't end in ';' or '}' is taken as an expression, and
+    // its value printed.
+    private static void runFromInteractive(Document session, String source) {
+      List<Token> tokens = new Scanner(source).scanTokensWithErrors();
+      if (tokens.size() == 1) return;
+      TokenType last = tokens.get(tokens.size() - 2).type;
+      boolean expression = last != TokenType.SEMICOLON && last != TokenType.RIGHT_BRACE;
       
-      // Stop if there was a syntax error.
-      if (hadError) return;
+      // The session ends in an empty line, which the input goes before.
+      int lines = session.lineCount();
+      List<Stmt> statements = session.append(source + (expression ? ";" : "") + "\n");
+      if (hadError) {
+        // Input with errors is taken out again.
+        session.edit(lines, 0, session.lineCount(), 0, "");
+        return;
+      }
       
-      if (stmt_or_expr instanceof Stmt) {
-        interpreter.interpret((Stmt)stmt_or_expr);
-      } else if (stmt_or_expr instanceof Expr) {
-        Object value = interpreter.interpret((Expr)stmt_or_expr);
+      Interpreter interpreter = interpreter();
+      if (expression && statements.size() == 1 &&
+          statements.get(0) instanceof Stmt.Expression) {
+        Object value = interpreter.interpret(((Stmt.Expression)statements.get(0)).expression);
         System.out.println(interpreter.stringify(value));
+      } else {
+        interpreter.interpret(statements);
       }
     }
 
     private static void runFromFile(String source) {
-        Parser parser = makeParser(source);
+        // With --cache, programs are loaded from and stored in the
+        // ProgramCache and run in the FlatInterpreter. Lazy, streamed and
+        // pipelined runs overlap the front end with execution instead.
+        // Cached programs are optimized at the default level, and a hit
+        // runs no passes to time or report on.
+        if (useCache && !lazyParsing && !streaming && !pipelined &&
+            optimizationLevel == PassManager.MAX_LEVEL && !timePasses &&
+            !inlineReport && !dceReport && !dumpIr) {
+            runCached(source);
+            return;
+        }
+
+        // The flat AST is lowered from complete trees.
+        Parser parser = makeParser(source, lazyParsing && !flatAst);
+        if (streaming) {
+            runStreaming(parser);
+            return;
+        }
+
+        PhaseTimer timer = new PhaseTimer(Metrics.Phase.PARSE);
         List<Stmt> statements = parser.parseFromFile();
+        timer.end();
         
         // Stop if there was a syntax error.
         if (hadError) return;
         
+        if (flatAst) {
+            runFlat(statements);
+            return;
+        }
+        
+        Interpreter interpreter = interpreter();
+        timer = new PhaseTimer(Metrics.Phase.RESOLVE);
         Resolver resolver = new Resolver(interpreter);
         resolver.resolve(statements);
+        timer.end();
         
         // Stop if there was a resolution error.
         if (hadError) return;
         
+        if (optimizing()) {
+            timer = new PhaseTimer(Metrics.Phase.OPTIMIZE);
+            PassManager passes = Passes.newPassManager(interpreter, resolver,
+                newInliner(interpreter, resolver), true);
+            statements = passes.run(statements);
+            timer.end();
+            passes.report();
+        }
+        timer = new PhaseTimer(Metrics.Phase.EXECUTE);
         interpreter.interpret(statements);
+        timer.end();
+    }
+
+    private static void runFlat(List<Stmt> statements) {
+        ProgramCache.Program program = resolveFlat(statements);
+        if (hadError) return;
+        
+        PhaseTimer timer = new PhaseTimer(Metrics.Phase.EXECUTE);
+        new FlatInterpreter(program.ast).interpretList(program.statements);
+        timer.end();
+    }
+
+    // Cached programs are resolved flat ASTs, so a hit goes straight to
+    // the FlatInterpreter. Programs with errors are not cached.
+    private static void runCached(String source) {
+        PhaseTimer timer = new PhaseTimer(Metrics.Phase.LOAD);
+        ProgramCache cache = ProgramCache.fromEnvironment();
+        String options = cacheOptions();
+        ProgramCache.Program program = cache.load(options, source);
+        timer.end();
+        if (program != null) {
+            sourceText = source;
+            linesText = null;
+        } else {
+            Parser parser = makeParser(source, false);
+            timer = new PhaseTimer(Metrics.Phase.PARSE);
+            List<Stmt> statements = parser.parseFromFile();
+            timer.end();
+            if (hadError) return;
+            
+            program = resolveFlat(statements);
+            if (hadError) return;
+            
+            cache.store(options, source, program);
+        }
+        
+        timer = new PhaseTimer(Metrics.Phase.EXECUTE);
+        new FlatInterpreter(program.ast).interpretList(program.statements);
+        timer.end();
+    }
+
+    // The options a cached program was optimized with, which are part of
+    // its key.
+    private static String cacheOptions() {
+        return new StringBuilder("-O").append(optimizationLevel)
+            .append(" --inline-threshold=").append(inlineThreshold).toString();
+    }
+
+    // The tree is checked and optimized before it is lowered, so the
+    // FlatResolver only has to assign slots. Each top-level statement's
+    // tree is let go once lowered, so the two forms of the program are
+    // not both kept whole; statements is left empty.
+    private static ProgramCache.Program resolveFlat(List<Stmt> statements) {
+        List<Expr> shared = new ArrayList<>();
+        List<Stmt> optimized = optimizeForFlat(statements, shared);
+        if (optimized == null) return null;
+        statements.clear();
+        
+        PhaseTimer timer = new PhaseTimer(Metrics.Phase.OPTIMIZE);
+        FlatAst ast = new FlatAst();
+        FlatAstWriter writer = new FlatAstWriter(ast);
+        for (Expr body : shared) {
+            writer.share(body);
+        }
+        shared.clear();
+        int program = writer.writeProgram(optimized);
+        ast.trimToSize();
+        
+        // Optimization may have removed the only reads of a local.
+        new FlatResolver(ast, false).resolveList(program);
+        timer.end();
+        return new ProgramCache.Program(ast, program);
+    }
+
+    // Returns a copy of the optimized statements, with the bodies the
+    // Inliner shares in shared, or null after an error. The resolution
+    // and the passes are dropped on return.
+    private static List<Stmt> optimizeForFlat(List<Stmt> statements, List<Expr> shared) {
+        PhaseTimer timer = new PhaseTimer(Metrics.Phase.RESOLVE);
+        Interpreter scratch = new Interpreter();
+        Resolver resolver = new Resolver(scratch);
+        resolver.resolve(statements);
+        timer.end();
+        if (hadError) return null;
+        
+        if (!optimizing()) return new ArrayList<>(statements);
+        
+        // The FlatResolver resolves the optimized tree from scratch.
+        timer = new PhaseTimer(Metrics.Phase.OPTIMIZE);
+        Inliner inliner = newInliner(scratch, resolver);
+        PassManager passes = Passes.newPassManager(scratch, resolver, inliner, false);
+        List<Stmt> optimized = new ArrayList<>(passes.run(statements));
+        passes.report();
+        shared.addAll(inliner.inlinedBodies());
+        timer.end();
+        return optimized;
+    }
+
+    // At -O0 no pass would run, so the passes' classes needn't be loaded,
+    // unless --time-passes asks for the (empty) report.
+    private static boolean optimizing() {
+        return optimizationLevel > 0 || timePasses;
+    }
+
+    private static Inliner newInliner(Interpreter interpreter, Resolver resolver) {
+        return new Inliner(interpreter, resolver.assignedGlobals(),
+            inlineThreshold, inlineReport);
+    }
+
+    // Verifying the passes' registration loads Pass, so it's done apart
+    // from Lox, in a class only runs that optimize load.
+    private static final class Passes {
+        // Passes at level 1 work on the tree as written, level 2 adds the
+        // SSA passes, numeric specialization and node fusion. Resolving again would also
+        // replace the deferred resolution of lazy bodies, which the SSA passes
+        // can't see into anyway, so lazy runs stop at level 1. The flat AST
+        // is lowered from complete trees.
+        static PassManager newPassManager(Interpreter interpreter, Resolver resolver,
+                                          Inliner inliner, boolean resolveAgain) {
+            PassManager passes = new PassManager(resolveAgain ? interpreter : null,
+                optimizationLevel, timePasses);
+            // Only --time-passes gets here at -O0, for its empty report.
+            if (optimizationLevel == 0) return passes;
+            passes.register(new Optimizer(interpreter, resolver.unassignedLocals()), 1);
+            passes.register(inliner, 1);
+            passes.register(new DeadCodeEliminator(interpreter, resolver.assignedGlobals(),
+                dceReport), 1);
+            if (!lazyParsing || flatAst) {
+                passes.register(new SsaOptimizer(interpreter, inliner.inlinedBodies(),
+                    dumpIr), 2);
+                // Numeric nodes keep the resolved variables they read.
+                passes.register(new NumericSpecializer(interpreter, resolver.assignedGlobals(),
+                    inliner.inlinedBodies()), 2);
+                passes.register(new NodeFuser(interpreter, inliner.inlinedBodies()), 2);
+            }
+            return passes;
+        }
+    }
+
+    // Executes each top-level declaration as soon as it is resolved, so
+    // nothing is kept of it afterwards. Execution stops at the first
+    // error, parsing continues to report any further syntax errors.
+    private static void runStreaming(Parser parser) {
+        Interpreter interpreter = interpreter();
+        Resolver resolver = new Resolver(interpreter);
+        PassManager passes = optimizing()
+            ? Passes.newPassManager(interpreter, resolver, newInliner(interpreter, resolver), true)
+            : null;
+        while (parser.hasMoreDeclarations()) {
+            PhaseTimer timer = new PhaseTimer(Metrics.Phase.PARSE);
+            Stmt statement = parser.parseDeclaration();
+            timer.end();
+            if (hadError || hadRuntimeError) continue;
+
+            timer = new PhaseTimer(Metrics.Phase.RESOLVE);
+            resolver.resolve(statement);
+            timer.end();
+            if (hadError || hadRuntimeError) continue;
+
+            if (passes != null) {
+                timer = new PhaseTimer(Metrics.Phase.OPTIMIZE);
+                statement = passes.run(statement);
+                timer.end();
+            }
+            // Nothing else may keep the statement alive.
+            resolver.unassignedLocals().clear();
+            if (statement == null) continue;
+
+            timer = new PhaseTimer(Metrics.Phase.EXECUTE);
+            interpreter.interpret(statement);
+            timer.end();
+        }
+        if (passes != null) passes.report();
     }
     
     static void error(int line, int column, String message) {
@@ -100,22 +588,51 @@ public class Lox {
       }
     }
     
+    static void error(long position, String message) {
+      report(Position.line(position), Position.column(position), message);
+    }
+    
     static void runtimeError(RuntimeError error) {
-      report(error.token.line, error.token.column, error.getMessage());
-      hadRuntimeError = false;
+      Metrics metrics = Metrics.active;
+      if (metrics != null) metrics.runtimeErrors.increment();
+      if (LoxEvents.recording) LoxEvents.runtimeError(error);
+      print(Position.line(error.position), Position.column(error.position),
+          error.getMessage());
+      hadRuntimeError = true;
     }
 
     private static void report(int line, int column, String message) {
+      print(line, column, message);
+      hadError = true;
+    }
+
+    private static void print(int line, int column, String message) {
       if (column < 0) column = 0;
       
       if(line >= 2) {
-        System.err.println((line - 1) + " | " + linesText.get(line - 2));
+        System.err.println((line - 1) + " | " + lineText(line - 1));
       }
-      System.err.println(line + " | " + linesText.get(line - 1));
+      System.err.println(line + " | " + lineText(line));
       System.err.println(" ".repeat(column + 4) + "^");  
       System.err.println(
 			"[line: " + line + "] Error: " + message);
-      hadError = true;
     }
 
+    // Error reports quote lines from here until the next file is scanned.
+    static void useLines(List<String> lines) {
+      linesText = lines;
+    }
+
+    static String lineText(int line) {
+      if (linesText != null && line <= linesText.size()) {
+        return linesText.get(line - 1);
+      }
+      
+      int start = 0;
+      for (int i = 1; i < line; i++) {
+        start = sourceText.indexOf('\n', start) + 1;
+      }
+      int end = sourceText.indexOf('\n', start);
+      return sourceText.substring(start, end < 0 ? sourceText.length() : end);
+    }
 }
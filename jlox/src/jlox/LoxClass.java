@@ -31,6 +31,10 @@ class LoxClass extends LoxInstance implements LoxCallable {
     return null;
   }
   
+  Map<String, LoxFunction> methods() {
+    return methods;
+  }
+  
   @Override
   public String toString() {
     return name;
@@ -46,6 +50,8 @@ class LoxClass extends LoxInstance implements LoxCallable {
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
     LoxInstance instance = new LoxInstance(this);
+    Metrics metrics = Metrics.active;
+    if (metrics != null) metrics.instances.increment();
     LoxFunction initializer = findMethod("init");
     if (initializer != null) {
       initializer.bind(instance).call(interpreter, arguments);
@@ -0,0 +1,160 @@
+package jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.Threshold;
+
+// Java Flight Recorder events for what Lox programs do, in the Lox
+// category, so recordings show them on the same timeline as GC and JIT
+// events in JDK Mission Control:
+//
+//   java -XX:StartFlightRecording:filename=lox.jfr -cp out jlox.Lox script.lox
+//
+// Events are only made while a recording runs, which watchRecordings
+// follows. Loading the first event class sets up JFR's metadata, a few
+// hundred milliseconds that runs without a recording shouldn't pay, and
+// until then the classes below stay unloaded. While recording, events
+// the recording's settings leave out cost next to nothing, as usual with
+// JFR. jlox.Call only records calls that ran for longer than its
+// threshold, and jlox.Instantiation is off by default, as programs make
+// instances by the million. Both can be changed in a recording's
+// settings.
+class LoxEvents {
+  static volatile boolean recording = false;
+
+  private LoxEvents() {}
+
+  // Follows recordings whether they were started on the command line or
+  // later, with jcmd.
+  static void watchRecordings() {
+    Watcher.start();
+  }
+
+  // A class of its own, as verifying the listener's use would load JFR
+  // along with LoxEvents, which the interpreters check recording on.
+  private static final class Watcher implements FlightRecorderListener {
+    static void start() {
+      FlightRecorder.addListener(new Watcher());
+    }
+
+    @Override
+    public void recorderInitialized(FlightRecorder recorder) {
+      update(recorder);
+    }
+
+    @Override
+    public void recordingStateChanged(Recording changed) {
+      update(FlightRecorder.getFlightRecorder());
+    }
+
+    private static void update(FlightRecorder recorder) {
+      boolean running = false;
+      for (Recording recording : recorder.getRecordings()) {
+        if (recording.getState() == RecordingState.RUNNING) running = true;
+      }
+      recording = running;
+    }
+  }
+
+  @Name("jlox.Call")
+  @Label("Lox Call")
+  @Category("Lox")
+  @Description("A call of a Lox function, class or native that took longer than the threshold.")
+  @Threshold("1 ms")
+  static class CallEvent extends Event {
+    @Label("Function")
+    String function;
+
+    @Label("Line")
+    @Description("The line the call was made from.")
+    int line;
+
+    void finish(LoxCallable callee, long position) {
+      end();
+      if (!shouldCommit()) return;
+      function = Profiler.name(callee);
+      line = Position.line(position);
+      commit();
+    }
+  }
+
+  @Name("jlox.Instantiation")
+  @Label("Lox Instantiation")
+  @Category("Lox")
+  @Description("An instance created by calling a class.")
+  @Enabled(false)
+  static class InstantiationEvent extends Event {
+    @Label("Class")
+    String className;
+
+    @Label("Line")
+    int line;
+  }
+
+  @Name("jlox.RuntimeError")
+  @Label("Lox Runtime Error")
+  @Category("Lox")
+  static class RuntimeErrorEvent extends Event {
+    @Label("Message")
+    String message;
+
+    @Label("Line")
+    int line;
+
+    @Label("Column")
+    int column;
+  }
+
+  @Name("jlox.Phase")
+  @Label("Lox Phase")
+  @Category("Lox")
+  @Description("Loading, scanning, parsing, resolving, optimizing or executing a program.")
+  static class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    void finish(Metrics.Phase which) {
+      end();
+      if (!shouldCommit()) return;
+      phase = which.label;
+      commit();
+    }
+  }
+
+  static CallEvent beginCall() {
+    CallEvent event = new CallEvent();
+    event.begin();
+    return event;
+  }
+
+  static PhaseEvent beginPhase() {
+    PhaseEvent event = new PhaseEvent();
+    event.begin();
+    return event;
+  }
+
+  static void instantiation(LoxClass klass, long position) {
+    InstantiationEvent event = new InstantiationEvent();
+    if (!event.isEnabled()) return;
+    event.className = klass.name;
+    event.line = Position.line(position);
+    event.commit();
+  }
+
+  static void runtimeError(RuntimeError error) {
+    RuntimeErrorEvent event = new RuntimeErrorEvent();
+    if (!event.isEnabled()) return;
+    event.message = error.getMessage();
+    event.line = Position.line(error.position);
+    event.column = Position.column(error.position);
+    event.commit();
+  }
+}
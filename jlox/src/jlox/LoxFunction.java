@@ -4,13 +4,13 @@ import java.util.List;
 
 public class LoxFunction implements LoxCallable {
   private final String name;
-  private final List<Token> params;
+  private final List<String> params;
   private final List<Stmt> body;
   private final Environment closure;
   private final boolean isInitializer;
   
   LoxFunction(
-      String name, List<Token> params,
+      String name, List<String> params,
       List<Stmt> body, Environment closure,
       boolean isInitializer) {
     this.isInitializer = isInitializer;
@@ -26,6 +26,14 @@ public class LoxFunction implements LoxCallable {
     return new LoxFunction(name, params, body, environment, isInitializer);
   }
   
+  String name() {
+    return name;
+  }
+  
+  Environment closure() {
+    return closure;
+  }
+  
   @Override
   public int arity() {
     return params.size();
@@ -49,6 +57,16 @@ public class LoxFunction implements LoxCallable {
     return null;
   }
   
+  // Whether the body is just `return value;`, i.e. whether this is the
+  // function an Expr.Inline was expanded from.
+  boolean returns(Expr value) {
+    if (body == null || body instanceof LazyBody || body.size() != 1) {
+      return false;
+    }
+    Stmt statement = body.get(0);
+    return statement instanceof Stmt.Jump && ((Stmt.Jump)statement).value == value;
+  }
+  
   @Override
   public String toString() {
     return "<fn " + name + ">";
@@ -16,18 +16,34 @@ class LoxInstance {
     return klass.name + " instance";
   }
   
-  public Object get(Token name) {
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
+  public Object get(String name, long position) {
+    Metrics metrics = Metrics.active;
+    if (fields.containsKey(name)) {
+      if (metrics != null) metrics.fieldReads.increment();
+      return fields.get(name);
     }
     
-    LoxFunction method = klass.findMethod(name.lexeme);
-    if (method != null) return method.bind(this);
+    LoxFunction method = klass.findMethod(name);
+    if (method != null) {
+      if (metrics != null) metrics.methodReads.increment();
+      AllocationProfiler allocations = AllocationProfiler.active;
+      if (allocations != null) allocations.bind(position);
+      return method.bind(this);
+    }
     
-    throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    throw new RuntimeError(position, "Undefined property '" + name + "'.");
+  }
+  
+  public void set(String name, Object value) {
+    fields.put(name, value);
+  }
+  
+  // For the heap census.
+  LoxClass klass() {
+    return klass;
   }
   
-  public void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
+  Map<String, Object> fields() {
+    return fields;
   }
 }
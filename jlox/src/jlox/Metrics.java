@@ -0,0 +1,217 @@
+package jlox;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Runtime counters, for --metrics: calls, instances, environments,
+// property reads, runtime errors, the time spent in each phase of running
+// a program and the current call depth. They are published as the
+// jlox:type=Metrics MXBean, and with --metrics-port=N as Prometheus text
+// on http://127.0.0.1:N/metrics. The MXBean's requestHeapCensus operation
+// prints a HeapCensus.
+//
+// The counters are LongAdders, which stripe updates across cells, so
+// interpreters on several threads don't contend on them. Counting sites
+// check active, so with metrics off they pay for a field read. The MXBean
+// is a subclass of its own, so that only --metrics loads JMX.
+//
+// There is no property cache to report on. Property reads are split into
+// those served from the instance's fields and those that fall back to a
+// method lookup, and the hit rate is the share of the first.
+class Metrics {
+  static Metrics active = null;
+
+  // Lazy bodies are parsed while the program runs, and pipelined and
+  // streamed runs scan while parsing, so those count as execution and
+  // parsing.
+  enum Phase {
+    READ("read"), LOAD("load"), SCAN("scan"), PARSE("parse"), RESOLVE("resolve"),
+    OPTIMIZE("optimize"), EXECUTE("execute");
+
+    final String label;
+
+    Phase(String label) {
+      this.label = label;
+    }
+  }
+
+  private static final String NAME = "jlox:type=Metrics";
+
+  final LongAdder calls = new LongAdder();
+  final LongAdder instances = new LongAdder();
+  final LongAdder environments = new LongAdder();
+  final LongAdder fieldReads = new LongAdder();
+  final LongAdder methodReads = new LongAdder();
+  final LongAdder runtimeErrors = new LongAdder();
+  final LongAdder depth = new LongAdder();
+  private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+  private HttpServer server = null;
+
+  private Metrics() {
+    for (int i = 0; i < phaseNanos.length; i++) phaseNanos[i] = new LongAdder();
+  }
+
+  // Starts counting and registers the MXBean. A port of 0 or more also
+  // serves /metrics on the loopback interface, 0 on any free port.
+  static void start(int port) throws IOException {
+    active = Bean.register(port);
+  }
+
+  // Stops the endpoint, whose thread would otherwise keep the process
+  // alive.
+  static void stop() {
+    Metrics metrics = active;
+    if (metrics != null && metrics.server != null) metrics.server.stop(0);
+  }
+
+  static void time(Phase phase, long nanos) {
+    Metrics metrics = active;
+    if (metrics != null) metrics.phaseNanos[phase.ordinal()].add(nanos);
+  }
+
+  void enter() {
+    calls.increment();
+    depth.increment();
+  }
+
+  void exit() {
+    depth.decrement();
+  }
+
+  void serve(int port) throws IOException {
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", exchange -> {
+      byte[] body = exposition().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type",
+          "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+    System.err.println("Serving metrics on http://" +
+        InetAddress.getLoopbackAddress().getHostAddress() + ":" +
+        server.getAddress().getPort() + "/metrics");
+  }
+
+  // The Prometheus text format.
+  String exposition() {
+    StringBuilder text = new StringBuilder();
+    metric(text, "jlox_calls_total", "counter", "Lox calls executed.", calls.sum());
+    metric(text, "jlox_instances_created_total", "counter",
+        "Instances created by calling a class.", instances.sum());
+    metric(text, "jlox_environments_allocated_total", "counter",
+        "Environments allocated for blocks, calls and bound methods.",
+        environments.sum());
+    header(text, "jlox_property_reads_total", "counter",
+        "Property reads, by whether a field or a method answered them.");
+    text.append("jlox_property_reads_total{result=\"field\"} ")
+        .append(fieldReads.sum()).append('\n');
+    text.append("jlox_property_reads_total{result=\"method\"} ")
+        .append(methodReads.sum()).append('\n');
+    metric(text, "jlox_runtime_errors_total", "counter",
+        "Runtime errors reported.", runtimeErrors.sum());
+    header(text, "jlox_phase_seconds_total", "counter",
+        "Time spent in each phase of running programs.");
+    for (Phase phase : Phase.values()) {
+      text.append("jlox_phase_seconds_total{phase=\"").append(phase.label)
+          .append("\"} ").append(String.format(Locale.ROOT, "%.9f", nanos(phase) / 1e9))
+          .append('\n');
+    }
+    metric(text, "jlox_call_depth", "gauge", "Lox calls in progress.", depth.sum());
+    return text.toString();
+  }
+
+  private static void metric(StringBuilder text, String name, String type,
+                             String help, long value) {
+    header(text, name, type, help);
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void header(StringBuilder text, String name, String type,
+                             String help) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  long nanos(Phase phase) {
+    return phaseNanos[phase.ordinal()].sum();
+  }
+
+  private static final class Bean extends Metrics implements MetricsMXBean {
+    static Metrics register(int port) throws IOException {
+      Bean metrics = new Bean();
+      try {
+        ManagementFactory.getPlatformMBeanServer()
+            .registerMBean(metrics, new ObjectName(NAME));
+      } catch (JMException e) {
+        throw new IOException("Could not register " + NAME + ".", e);
+      }
+      if (port >= 0) metrics.serve(port);
+      return metrics;
+    }
+
+    @Override
+    public long getCalls() { return calls.sum(); }
+    @Override
+    public long getInstancesCreated() { return instances.sum(); }
+    @Override
+    public long getEnvironmentsAllocated() { return environments.sum(); }
+    @Override
+    public long getPropertyFieldReads() { return fieldReads.sum(); }
+    @Override
+    public long getPropertyMethodReads() { return methodReads.sum(); }
+    @Override
+    public long getRuntimeErrors() { return runtimeErrors.sum(); }
+    @Override
+    public long getCallDepth() { return depth.sum(); }
+
+    @Override
+    public double getPropertyHitRate() {
+      long fields = fieldReads.sum();
+      long total = fields + methodReads.sum();
+      return total == 0 ? 0 : (double)fields / total;
+    }
+
+    @Override
+    public long getFrontEndNanos() {
+      long total = 0;
+      for (Phase phase : Phase.values()) {
+        if (phase != Phase.EXECUTE) total += nanos(phase);
+      }
+      return total;
+    }
+
+    @Override
+    public long getExecutionNanos() { return nanos(Phase.EXECUTE); }
+    @Override
+    public long getReadNanos() { return nanos(Phase.READ); }
+    @Override
+    public long getLoadNanos() { return nanos(Phase.LOAD); }
+    @Override
+    public long getScanNanos() { return nanos(Phase.SCAN); }
+    @Override
+    public long getParseNanos() { return nanos(Phase.PARSE); }
+    @Override
+    public long getResolveNanos() { return nanos(Phase.RESOLVE); }
+    @Override
+    public long getOptimizeNanos() { return nanos(Phase.OPTIMIZE); }
+
+    @Override
+    public void requestHeapCensus() {
+      HeapCensus.requested = true;
+    }
+  }
+}
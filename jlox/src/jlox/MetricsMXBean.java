@@ -0,0 +1,27 @@
+package jlox;
+
+// What Metrics publishes over JMX. Times are in nanoseconds, summed over
+// the programs run so far.
+public interface MetricsMXBean {
+  long getCalls();
+  long getInstancesCreated();
+  long getEnvironmentsAllocated();
+  long getPropertyFieldReads();
+  long getPropertyMethodReads();
+  // The share of property reads a field answered, from 0 to 1.
+  double getPropertyHitRate();
+  long getRuntimeErrors();
+  long getCallDepth();
+  long getFrontEndNanos();
+  long getExecutionNanos();
+  long getReadNanos();
+  long getLoadNanos();
+  long getScanNanos();
+  long getParseNanos();
+  long getResolveNanos();
+  long getOptimizeNanos();
+
+  // Prints a HeapCensus to stderr at the interpreter's next call or loop
+  // iteration.
+  void requestHeapCensus();
+}
@@ -0,0 +1,11 @@
+package jlox;
+
+// Thrown by natives, which don't know where they were called from. The
+// interpreter reports it as a RuntimeError at the call.
+class NativeError extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  NativeError(String message) {
+    super(message);
+  }
+}
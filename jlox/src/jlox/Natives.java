@@ -0,0 +1,154 @@
+package jlox;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The native functions defined in every program's globals:
+//
+// * clock() is the wall clock time in seconds,
+// * monotonicClock() the time in seconds on a clock that never goes back,
+// * nanoClock() the same time in nanoseconds, for timing short code,
+// * bench(fn, iterations) calls fn, which takes no arguments, iterations
+//   times to warm up and then iterations times more while timing each
+//   call. It returns a BenchResult instance whose fields are the mean,
+//   p50 and p99 time of a call in nanoseconds, the bytes it allocated
+//   on average ("allocated", nil where the JVM can't tell) and the
+//   iterations.
+// * heapCensus() counts the values reachable now and returns them as a
+//   HeapCensus instance, see HeapCensus.
+class Natives {
+  // The monotonic clocks count from here, so their values stay exact
+  // doubles for over a hundred days.
+  private static final long ORIGIN = System.nanoTime();
+  private static final LoxClass BENCH_RESULT =
+      new LoxClass("BenchResult", null, new HashMap<>(), null);
+
+  // Set up by the first bench() rather than at startup, as
+  // java.lang.management loads some hundred classes.
+  private static class Threads {
+    static final com.sun.management.ThreadMXBean BEAN = threads();
+  }
+
+  private abstract static class Native implements LoxCallable {
+    private final int arity;
+
+    Native(int arity) {
+      this.arity = arity;
+    }
+
+    @Override
+    public int arity() { return arity; }
+
+    @Override
+    public String toString() { return "<native fn>"; }
+  }
+
+  static void define(Map<String, Object> globals) {
+    globals.put("clock", new Native(0) {
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        return (double)System.currentTimeMillis() / 1000.0;
+      }
+    });
+    globals.put("monotonicClock", new Native(0) {
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        return (System.nanoTime() - ORIGIN) / 1e9;
+      }
+    });
+    globals.put("nanoClock", new Native(0) {
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        return (double)(System.nanoTime() - ORIGIN);
+      }
+    });
+    globals.put("bench", new Native(2) {
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        return bench(interpreter, arguments.get(0), arguments.get(1));
+      }
+    });
+    globals.put("heapCensus", new Native(0) {
+      @Override
+      public Object call(Interpreter interpreter, List<Object> arguments) {
+        return HeapCensus.take(interpreter).toInstance();
+      }
+    });
+  }
+
+  private static Object bench(Interpreter interpreter, Object callee,
+                              Object count) {
+    if (!(callee instanceof LoxCallable) ||
+        ((LoxCallable)callee).arity() != 0) {
+      throw new NativeError(
+          "bench() expects a function that takes no arguments.");
+    }
+    if (!(count instanceof Double) || (double)count < 1 ||
+        (double)count > Integer.MAX_VALUE ||
+        (double)count != Math.floor((double)count)) {
+      throw new NativeError(
+          "bench() expects a positive whole number of iterations.");
+    }
+
+    LoxCallable function = (LoxCallable)callee;
+    int iterations = (int)(double)count;
+    List<Object> arguments = Collections.emptyList();
+    long[] nanos = new long[iterations];
+    long allocated;
+    HeapCensus.hold(function);
+    try {
+      for (int i = 0; i < iterations; i++) {
+        function.call(interpreter, arguments);
+      }
+
+      long allocatedBefore = allocatedBytes();
+      for (int i = 0; i < iterations; i++) {
+        long start = System.nanoTime();
+        function.call(interpreter, arguments);
+        nanos[i] = System.nanoTime() - start;
+      }
+      allocated = allocatedBytes() - allocatedBefore;
+    } finally {
+      HeapCensus.release();
+    }
+
+    long total = 0;
+    for (long time : nanos) total += time;
+    Arrays.sort(nanos);
+
+    LoxInstance result = new LoxInstance(BENCH_RESULT);
+    result.set("mean", (double)total / iterations);
+    result.set("p50", (double)percentile(nanos, 50));
+    result.set("p99", (double)percentile(nanos, 99));
+    result.set("allocated",
+        Threads.BEAN != null ? (double)allocated / iterations : null);
+    result.set("iterations", (double)iterations);
+    return result;
+  }
+
+  // Nearest rank, of sorted times.
+  private static long percentile(long[] sorted, int percent) {
+    int rank = (int)Math.ceil(percent / 100.0 * sorted.length);
+    return sorted[Math.max(rank, 1) - 1];
+  }
+
+  private static long allocatedBytes() {
+    if (Threads.BEAN == null) return 0;
+    return Threads.BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static com.sun.management.ThreadMXBean threads() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean)bean;
+    if (!threads.isThreadAllocatedMemorySupported()) return null;
+    threads.setThreadAllocatedMemoryEnabled(true);
+    return threads;
+  }
+}
@@ -0,0 +1,157 @@
+package jlox;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+// Replaces small shapes that are common in loops and methods with fused
+// nodes the interpreters run in one step, run last:
+//
+// * `name = name + constant` and `name = name - constant` become
+//   IncrementLocal,
+// * `name < constant`, the other orderings, and the same with the
+//   operands swapped become CompareLocal, so `while (i < n)` tests its
+//   condition in one step,
+// * `this.name` becomes GetThis,
+//
+// where name is a local and constant a number literal. Fused nodes fall
+// back on the generic operation when the local doesn't hold a number, so
+// they fail with the same errors. They take over the resolution of the
+// node naming the local.
+class NodeFuser extends SharedBodyRewriter implements Pass {
+  NodeFuser(Interpreter interpreter, Set<Expr> inlinedBodies) {
+    super(interpreter, inlinedBodies);
+  }
+
+  @Override
+  public String name() {
+    return "fuse";
+  }
+
+  @Override
+  public List<String> dependencies() {
+    return Collections.singletonList("specialize");
+  }
+
+  @Override
+  public List<Stmt> run(List<Stmt> statements) {
+    return rewrite(statements);
+  }
+
+  @Override
+  public Stmt run(Stmt statement) {
+    return rewrite(statement);
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr rewritten = super.visitAssignExpr(expr);
+    if (!interpreter.isResolvedLocal(expr)) return rewritten;
+
+    // Numeric nodes are Binary nodes whose operands are numbers.
+    Expr left, right;
+    TokenType operator;
+    long position;
+    if (expr.value instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr.value;
+      left = binary.left;
+      operator = binary.operator;
+      position = binary.position;
+      right = binary.right;
+    } else if (expr.value instanceof Expr.Numeric &&
+               ((Expr.Numeric)expr.value).left != null) {
+      Expr.Numeric numeric = (Expr.Numeric)expr.value;
+      left = numeric.left;
+      operator = numeric.operator;
+      position = numeric.position;
+      right = numeric.right;
+    } else {
+      return rewritten;
+    }
+
+    if (operator != TokenType.PLUS && operator != TokenType.MINUS) {
+      return rewritten;
+    }
+    if (!isLocal(left, expr.name) || !isNumber(right)) return rewritten;
+
+    Expr fused = new Expr.IncrementLocal(expr.name, position, operator,
+        (double)((Expr.Literal)right).value);
+    interpreter.copyResolution(expr, fused);
+    return fused;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr fused = compareLocal(expr.left, expr.operator, expr.position,
+        expr.right);
+    return fused != null ? fused : super.visitBinaryExpr(expr);
+  }
+
+  @Override
+  public Expr visitNumericExpr(Expr.Numeric expr) {
+    Expr fused = expr.left == null ? null : compareLocal(expr.left,
+        expr.operator, expr.position, expr.right);
+    return fused != null ? fused : super.visitNumericExpr(expr);
+  }
+
+  private Expr compareLocal(Expr left, TokenType operator, long position,
+                            Expr right) {
+    switch (operator) {
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        break;
+      default:
+        return null;
+    }
+
+    if (isNumber(left) && !isNumber(right)) {
+      Expr swapped = left;
+      left = right;
+      right = swapped;
+      operator = mirror(operator);
+    }
+    if (!isLocal(left, null) || !isNumber(right)) return null;
+
+    Expr.Variable variable = (Expr.Variable)left;
+    Expr fused = new Expr.CompareLocal(variable.name, position, operator,
+        (double)((Expr.Literal)right).value);
+    interpreter.copyResolution(variable, fused);
+    return fused;
+  }
+
+  private static TokenType mirror(TokenType operator) {
+    switch (operator) {
+      case GREATER: return TokenType.LESS;
+      case GREATER_EQUAL: return TokenType.LESS_EQUAL;
+      case LESS: return TokenType.GREATER;
+      default: return TokenType.GREATER_EQUAL;
+    }
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    if (!(expr.object instanceof Expr.This) ||
+        !interpreter.isResolvedLocal(expr.object)) {
+      return super.visitGetExpr(expr);
+    }
+
+    Expr fused = new Expr.GetThis(expr.name, expr.position);
+    interpreter.copyResolution(expr.object, fused);
+    return fused;
+  }
+
+  // A local variable, with the given name unless that is null.
+  private boolean isLocal(Expr expr, String name) {
+    if (!(expr instanceof Expr.Variable)) return false;
+    Expr.Variable variable = (Expr.Variable)expr;
+    if (name != null && !variable.name.equals(name)) return false;
+    return interpreter.isResolvedLocal(variable);
+  }
+
+  private static boolean isNumber(Expr expr) {
+    return expr instanceof Expr.Literal &&
+        ((Expr.Literal)expr).value instanceof Double;
+  }
+}
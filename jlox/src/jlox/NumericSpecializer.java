@@ -0,0 +1,75 @@
+package jlox;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+// Rewrites the Binary and Unary nodes TypeInference proved to only ever
+// see numbers into Numeric nodes, run after the SSA passes. The
+// interpreters evaluate these without checking their operands, and keep
+// the results of nested Numeric nodes unboxed. Values stored in variables
+// stay boxed.
+class NumericSpecializer extends SharedBodyRewriter implements Pass {
+  private final Set<String> assignedGlobals;
+  private Set<Expr> numeric = Collections.emptySet();
+
+  NumericSpecializer(Interpreter interpreter, Set<String> assignedGlobals,
+                     Set<Expr> inlinedBodies) {
+    super(interpreter, inlinedBodies);
+    this.assignedGlobals = assignedGlobals;
+  }
+
+  @Override
+  public String name() {
+    return "specialize";
+  }
+
+  @Override
+  public List<String> dependencies() {
+    return Collections.singletonList("ssa");
+  }
+
+  @Override
+  public List<Stmt> run(List<Stmt> statements) {
+    return specialize(statements);
+  }
+
+  @Override
+  public Stmt run(Stmt statement) {
+    return specialize(statement);
+  }
+
+  List<Stmt> specialize(List<Stmt> statements) {
+    TypeInference inference = new TypeInference(interpreter);
+    inference.inferProgram(statements, assignedGlobals);
+    numeric = inference.numeric;
+    return rewrite(statements);
+  }
+
+  Stmt specialize(Stmt statement) {
+    TypeInference inference = new TypeInference(interpreter);
+    inference.inferStatement(statement);
+    numeric = inference.numeric;
+    return rewrite(statement);
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr rewritten = super.visitBinaryExpr(expr);
+    if (!numeric.contains(expr)) return rewritten;
+
+    Expr.Binary binary = (Expr.Binary)rewritten;
+    return new Expr.Numeric(binary.left, binary.operator, binary.position,
+        binary.right);
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr rewritten = super.visitUnaryExpr(expr);
+    if (!numeric.contains(expr)) return rewritten;
+
+    Expr.Unary unary = (Expr.Unary)rewritten;
+    return new Expr.Numeric(null, unary.operator, unary.position,
+        unary.right);
+  }
+}
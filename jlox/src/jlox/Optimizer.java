@@ -0,0 +1,472 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+// Constant folding and propagation, run between the Resolver and the
+// Interpreter. Operations on literals are evaluated with the
+// Interpreter's own semantics, except where they would fail at runtime
+// (e.g. division by zero or mismatched operands), which are left for the
+// Interpreter to report. Reads of locals that are initialized with a
+// literal and never assigned are replaced with the literal, and if
+// statements and loops with a literal condition are pruned.
+//
+// Declarations are never removed, as the Resolver's environment indexes
+// depend on them. Nodes are rewritten only when a child changed, and a
+// rewritten Assign keeps the resolution of the node it replaces.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt>, Pass {
+  private final Interpreter interpreter;
+  private final Set<Stmt.Var> unassignedLocals;
+  // Mirrors the Resolver's scopes. A name maps to its constant value, or
+  // to null when its value isn't known.
+  private final Stack<Map<String, Expr.Literal>> scopes = new Stack<>();
+
+  Optimizer(Interpreter interpreter, Set<Stmt.Var> unassignedLocals) {
+    this.interpreter = interpreter;
+    this.unassignedLocals = unassignedLocals;
+  }
+
+  @Override
+  public String name() {
+    return "fold";
+  }
+
+  @Override
+  public List<Stmt> run(List<Stmt> statements) {
+    return optimize(statements);
+  }
+
+  @Override
+  public Stmt run(Stmt statement) {
+    return optimize(statement);
+  }
+
+  List<Stmt> optimize(List<Stmt> statements) {
+    List<Stmt> optimized = new ArrayList<>(statements.size());
+    boolean changed = false;
+    for (Stmt statement : statements) {
+      Stmt result = optimize(statement);
+      if (result != null) optimized.add(result);
+      changed |= result != statement;
+    }
+    return changed ? optimized : statements;
+  }
+
+  // Returns null if the statement does nothing.
+  Stmt optimize(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Expr optimize(Expr expr) {
+    return expr == null ? null : expr.accept(this);
+  }
+
+  // For statements that must be kept in place, like a loop body.
+  private Stmt optimizeNested(Stmt stmt) {
+    Stmt result = optimize(stmt);
+    return result != null ? result : new Stmt.Block(Position.NONE, new ArrayList<>());
+  }
+
+  private void beginScope() {
+    scopes.push(new HashMap<>());
+  }
+
+  private void endScope() {
+    scopes.pop();
+  }
+
+  private void declare(String name, Expr.Literal value) {
+    if (scopes.isEmpty()) return;
+    scopes.peek().put(name, value);
+  }
+
+  private List<Stmt> optimizeFunction(List<String> params, List<Stmt> body) {
+    // Left for the Resolver to see once parsed.
+    if (body instanceof LazyBody) return body;
+
+    beginScope();
+    for (String param : params) {
+      declare(param, null);
+    }
+    List<Stmt> optimized = optimize(body);
+    endScope();
+    return optimized;
+  }
+
+  private static boolean isLiteral(Expr expr) {
+    return expr instanceof Expr.Literal;
+  }
+
+  private static Expr.Literal literal(Object value) {
+    return new Expr.Literal(value);
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    List<Stmt> statements = optimize(stmt.statements);
+    endScope();
+    return statements == stmt.statements ? stmt : new Stmt.Block(stmt.position, statements);
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    declare(stmt.name, null);
+    if (stmt.superclass != null) {
+      beginScope();
+      declare("super", null);
+    }
+    beginScope();
+    declare("this", null);
+
+    List<Stmt.Function> methods = optimizeMethods(stmt.methods);
+    List<Stmt.Function> staticMethods = optimizeMethods(stmt.staticMethods);
+
+    endScope();
+    if (stmt.superclass != null) endScope();
+
+    if (methods == stmt.methods && staticMethods == stmt.staticMethods) {
+      return stmt;
+    }
+    return new Stmt.Class(stmt.name, stmt.position, stmt.superclass,
+        methods, staticMethods);
+  }
+
+  private List<Stmt.Function> optimizeMethods(List<Stmt.Function> methods) {
+    List<Stmt.Function> optimized = new ArrayList<>(methods.size());
+    boolean changed = false;
+    for (Stmt.Function method : methods) {
+      List<Stmt> body = optimizeFunction(method.params, method.body);
+      if (body == method.body) {
+        optimized.add(method);
+      } else {
+        optimized.add(new Stmt.Function(method.name, method.position,
+            method.params, method.paramPositions, body));
+        changed = true;
+      }
+    }
+    return changed ? optimized : methods;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    // Nothing to evaluate.
+    if (isLiteral(expression)) return null;
+    return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    declare(stmt.name, null);
+    List<Stmt> body = optimizeFunction(stmt.params, stmt.body);
+    if (body == stmt.body) return stmt;
+    return new Stmt.Function(stmt.name, stmt.position, stmt.params,
+        stmt.paramPositions, body);
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (isLiteral(condition)) {
+      if (interpreter.isTruthy(((Expr.Literal)condition).value)) {
+        return optimize(stmt.thenBranch);
+      }
+      return stmt.elseBranch != null ? optimize(stmt.elseBranch) : null;
+    }
+
+    Stmt thenBranch = optimizeNested(stmt.thenBranch);
+    Stmt elseBranch = stmt.elseBranch != null ? optimize(stmt.elseBranch) : null;
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+        elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = optimize(stmt.expression);
+    return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Expr initializer = optimize(stmt.initializer);
+    if (isLiteral(initializer) && unassignedLocals.contains(stmt)) {
+      declare(stmt.name, (Expr.Literal)initializer);
+    } else {
+      declare(stmt.name, null);
+    }
+    return initializer == stmt.initializer
+        ? stmt : new Stmt.Var(stmt.name, stmt.position, initializer);
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (isLiteral(condition) &&
+        !interpreter.isTruthy(((Expr.Literal)condition).value)) {
+      return null;
+    }
+
+    Stmt body = optimizeNested(stmt.body);
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(condition, body);
+  }
+
+  @Override
+  public Stmt visitForStmt(Stmt.For stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (isLiteral(condition) &&
+        !interpreter.isTruthy(((Expr.Literal)condition).value)) {
+      return null;
+    }
+
+    Stmt body = optimizeNested(stmt.body);
+    Expr increment = optimize(stmt.increment);
+    if (condition == stmt.condition && body == stmt.body &&
+        increment == stmt.increment) {
+      return stmt;
+    }
+    return new Stmt.For(condition, body, increment);
+  }
+
+  @Override
+  public Stmt visitJumpStmt(Stmt.Jump stmt) {
+    Expr value = optimize(stmt.value);
+    if (value == stmt.value) return stmt;
+    return new Stmt.Jump(stmt.keyword, stmt.position, value);
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = optimize(expr.value);
+    if (value == expr.value) return expr;
+
+    Expr.Assign assign = new Expr.Assign(expr.name, expr.position, value);
+    interpreter.copyResolution(expr, assign);
+    return assign;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    if (isLiteral(left) && isLiteral(right)) {
+      Expr folded = fold(expr.operator,
+          ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+      if (folded != null) return folded;
+    } else if (expr.operator == TokenType.COMMA && isLiteral(left)) {
+      return right;
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, expr.position, right);
+  }
+
+  // Returns null where the Interpreter would throw a RuntimeError.
+  private Expr fold(TokenType operator, Object left, Object right) {
+    boolean numbers = left instanceof Double && right instanceof Double;
+    switch (operator) {
+      case COMMA: return literal(right);
+      case BANG_EQUAL: return literal(!interpreter.isEqual(left, right));
+      case EQUAL_EQUAL: return literal(interpreter.isEqual(left, right));
+      case GREATER:
+        return numbers ? literal((double)left > (double)right) : null;
+      case GREATER_EQUAL:
+        return numbers ? literal((double)left >= (double)right) : null;
+      case LESS:
+        return numbers ? literal((double)left < (double)right) : null;
+      case LESS_EQUAL:
+        return numbers ? literal((double)left <= (double)right) : null;
+      case MINUS:
+        return numbers ? literal((double)left - (double)right) : null;
+      case SLASH:
+        if (!numbers || (double)right == 0.0) return null;
+        return literal((double)left / (double)right);
+      case STAR:
+        return numbers ? literal((double)left * (double)right) : null;
+      case PLUS:
+        if (numbers) return literal((double)left + (double)right);
+        if (left instanceof String && right instanceof String) {
+          return literal((String)left + (String)right);
+        }
+        if (left instanceof String) {
+          return literal((String)left + interpreter.stringify(right));
+        }
+        if (right instanceof String) {
+          return literal(interpreter.stringify(left) + (String)right);
+        }
+        return null;
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public Expr visitTernaryExpr(Expr.Ternary expr) {
+    Expr cond = optimize(expr.cond);
+    if (isLiteral(cond)) {
+      return interpreter.isTruthy(((Expr.Literal)cond).value)
+          ? optimize(expr.ifTrue) : optimize(expr.ifFalse);
+    }
+
+    Expr ifTrue = optimize(expr.ifTrue);
+    Expr ifFalse = optimize(expr.ifFalse);
+    if (cond == expr.cond && ifTrue == expr.ifTrue && ifFalse == expr.ifFalse) {
+      return expr;
+    }
+    return new Expr.Ternary(cond, ifTrue, ifFalse);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    // Only the parser cares about grouping.
+    return optimize(expr.expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+    if (isLiteral(left)) {
+      boolean truthy = interpreter.isTruthy(((Expr.Literal)left).value);
+      boolean shortCircuits = expr.operator == TokenType.OR ? truthy : !truthy;
+      return shortCircuits ? left : optimize(expr.right);
+    }
+
+    Expr right = optimize(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, expr.position, right);
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+    if (isLiteral(right)) {
+      Object value = ((Expr.Literal)right).value;
+      if (expr.operator == TokenType.BANG) {
+        return literal(!interpreter.isTruthy(value));
+      }
+      if (expr.operator == TokenType.MINUS && value instanceof Double) {
+        return literal(-(double)value);
+      }
+    }
+
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, expr.position, right);
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = optimize(expr.callee);
+    List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+    boolean changed = callee != expr.callee;
+    for (Expr argument : expr.arguments) {
+      Expr optimized = optimize(argument);
+      arguments.add(optimized);
+      changed |= optimized != argument;
+    }
+
+    if (!changed) return expr;
+    return new Expr.Call(callee, expr.position, arguments);
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = optimize(expr.object);
+    if (object == expr.object) return expr;
+    return new Expr.Get(object, expr.name, expr.position);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = optimize(expr.object);
+    Expr value = optimize(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+    return new Expr.Set(object, expr.name, expr.position, value);
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitErroneousExpr(Expr.Erroneous expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Map<String, Expr.Literal> scope = scopes.get(i);
+      if (scope.containsKey(expr.name)) {
+        Expr.Literal value = scope.get(expr.name);
+        return value != null ? value : expr;
+      }
+    }
+    return expr;
+  }
+
+  @Override
+  public Expr visitLambdaExpr(Expr.Lambda expr) {
+    List<Stmt> body = optimizeFunction(expr.params, expr.body);
+    if (body == expr.body) return expr;
+    return new Expr.Lambda(expr.position, expr.params, expr.paramPositions, body);
+  }
+
+  @Override
+  public Expr visitInlineExpr(Expr.Inline expr) {
+    // Inlining runs after this pass.
+    return expr;
+  }
+
+  @Override
+  public Expr visitNumericExpr(Expr.Numeric expr) {
+    // So does numeric specialization.
+    return expr;
+  }
+
+  // And fusion.
+  @Override
+  public Expr visitIncrementLocalExpr(Expr.IncrementLocal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitCompareLocalExpr(Expr.CompareLocal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitGetThisExpr(Expr.GetThis expr) {
+    return expr;
+  }
+
+  // Instrumented programs are not optimized.
+  @Override
+  public Expr visitCountedExpr(Expr.Counted expr) {
+    return expr;
+  }
+
+  @Override
+  public Stmt visitCountedStmt(Stmt.Counted stmt) {
+    return stmt;
+  }
+}
@@ -8,38 +8,45 @@ import static jlox.TokenType.*;
 class Parser {
   private static class ParseError extends RuntimeException {}
   
-  private final List<Token> tokens;
-  private int current = 0;
+  // The parser only ever looks at the current token and the one before
+  // it, so tokens can be streamed in instead of scanned up front.
+  private final TokenStream tokens;
+  private final boolean lazyFunctionBodies;
+  private Token previousToken = null;
+  private Token currentToken;
+  private int blockDepth = 0;
+  // File ID packed into the positions of the nodes built, see Position.
+  private int file = Position.SCRIPT;
+  // Statements and calls are wrapped in Counted nodes while one is active.
+  // Only --heatmap makes one, so other runs don't load the class.
+  private final Heatmap heatmap = Lox.heatmap ? Heatmap.active : null;
   
   Parser(List<Token> tokens) {
-    this.tokens = tokens;
+    this(tokens, false);
   }
   
-  // program -> (expression | declaration) EOF ;
-  Object parseFromInteractive() {
-    if (check(VAR, PRINT, LEFT_BRACE)) {
-      Stmt stmt = declaration();
-      if (!isAtEnd()) {
-        error(peek(), "Single statement expected in interactive mode");
-      }
-      return stmt;
-    }
-    
-    Expr expression = expression();
-    
-    if (match(SEMICOLON)) {
-      Stmt stmt = new Stmt.Expression(expression);
-      if (!isAtEnd()) {
-        error(peek(), "Single statement expected in interactive mode");
+  Parser(List<Token> tokens, boolean lazyFunctionBodies) {
+    this(stream(tokens), lazyFunctionBodies);
+  }
+  
+  private static TokenStream stream(List<Token> tokens) {
+    return new TokenStream() {
+      private int current = 0;
+      
+      @Override
+      public Token next() {
+        return tokens.get(current++);
       }
-      return stmt;
-    }
-    
-    if (!isAtEnd()) {
-      error(peek(), "Single expression expected in interactive mode");
-    }
-     
-    return expression;
+    };
+  }
+  
+  // With lazyFunctionBodies set, bodies of top-level functions and of
+  // methods of top-level classes are only bracket matched here and parsed
+  // on first call, see LazyBody.
+  Parser(TokenStream tokens, boolean lazyFunctionBodies) {
+    this.tokens = tokens;
+    this.lazyFunctionBodies = lazyFunctionBodies;
+    this.currentToken = nextToken();
   }
   
   // program -> declaration* EOF ;
@@ -51,13 +58,40 @@ class Parser {
     return statements;
   }
   
+  // Top-level declarations one at a time, for executing a program while
+  // the rest of it is still being parsed.
+  boolean hasMoreDeclarations() {
+    return !isAtEnd();
+  }
+  
+  void useFile(int file) {
+    this.file = file;
+  }
+  
+  // Returns null if the declaration had a syntax error.
+  Stmt parseDeclaration() {
+    return declaration();
+  }
+  
+  // Parses the tokens captured by a LazyBody, up to and including the
+  // closing '}'.
+  List<Stmt> parseLazyBody() {
+    blockDepth++;
+    try {
+      return block();
+    } catch (ParseError error) {
+      return new ArrayList<>();
+    }
+  }
+  
   // declaration -> varDecl | funDecl | statement ;
   // varDecl -> "var" IDENTIFIER ( "=" expression )? ";" ;
   private Stmt declaration() {
     try {
-      if (match(CLASS)) return classDeclaration();
-      if (match(FUN)) return function("function");
-      if (match(VAR)) return varDeclaration();
+      int line = peek().line;
+      if (match(CLASS)) return count(classDeclaration(), line);
+      if (match(FUN)) return count(function("function"), line);
+      if (match(VAR)) return count(varDeclaration(), line);
       return statement();
     } catch (ParseError error) { 
       synchronize();
@@ -72,7 +106,7 @@ class Parser {
     Expr.Variable superclass = null;
     if (match(LESS)) {
       consume(IDENTIFIER, "Expected superclass name after '<'.");
-      superclass = new Expr.Variable(previous());
+      superclass = variable();
     }
     
     consume(LEFT_BRACE, "Expected '{' before class body.");
@@ -88,7 +122,8 @@ class Parser {
     }
     
     consume(RIGHT_BRACE, "Expected '}' after the class body");
-    return new Stmt.Class(name, superclass, methods, staticMethods);
+    return new Stmt.Class(symbol(name), position(name), superclass,
+        methods, staticMethods);
   }
   
   //  funDecl -> "fun" function ;
@@ -102,8 +137,14 @@ class Parser {
     consume(RIGHT_PAREN, "Expect ')' after parameters");
     
     consume(LEFT_BRACE, "Expected '{' before " + kind + " body.");
-    List<Stmt> body = block();
-    return new Stmt.Function(name,  parameters, body);
+    List<Stmt> body;
+    if (lazyFunctionBodies && blockDepth == 0) {
+      body = lazyBlock(name);
+    } else {
+      body = block();
+    }
+    return new Stmt.Function(symbol(name), position(name),
+        symbols(parameters), positions(parameters), body);
   }
   
   
@@ -116,7 +157,7 @@ class Parser {
     }
     
     consume(SEMICOLON, "Expected ';' after variable declaration.");
-    return new Stmt.Var(name, initializer);
+    return new Stmt.Var(symbol(name), position(name), initializer);
   }
   
   //  statement -> exprStmt | ifStmt | printStmt | whileStmt | jumpStmt | block ;
@@ -130,16 +171,26 @@ class Parser {
   //  continueStmt -> "continue" ";" ;
   //  block -> "{" declaration* "}" ;
   private Stmt statement() {
+    int line = peek().line;
+    return count(uncountedStatement(), line);
+  }
+  
+  private Stmt uncountedStatement() {
     if (match(IF)) return ifStatement();
     if (match(PRINT)) return printStatement();
     if (match(WHILE)) return whileStatement();
     if (match(FOR)) return forStatement();
-    if (match(LEFT_BRACE)) return new Stmt.Block(block());
+    if (match(LEFT_BRACE)) return new Stmt.Block(position(previous()), block());
     if (match(CONTINUE, BREAK, RETURN)) return jumpStatement();
     
     return expressionStatement();
   }
   
+  private Stmt count(Stmt statement, int line) {
+    if (heatmap == null) return statement;
+    return new Stmt.Counted(heatmap.slot(line, false), statement);
+  }
+  
   private Stmt printStatement() {
     Expr value = expression();
     consume(SEMICOLON, "Expected ';' after expression");
@@ -162,10 +213,11 @@ class Parser {
     }
     
     consume(SEMICOLON, "Expected ';' after " + keyword.lexeme + " statement");
-    return new Stmt.Jump(keyword, value);
+    return new Stmt.Jump(keyword.type, position(keyword), value);
   }
   
   private Stmt forStatement() {
+    long position = position(previous());
     consume(LEFT_PAREN, "Expected '(' after 'for'.");
     
     Stmt initializer;
@@ -193,7 +245,7 @@ class Parser {
     Stmt loop = new Stmt.For(condition, body, increment);
     
     if (initializer != null) {
-      loop = new Stmt.Block(Arrays.asList(initializer, loop));
+      loop = new Stmt.Block(position, Arrays.asList(initializer, loop));
     }
     
     return loop;
@@ -226,244 +278,281 @@ class Parser {
   private List<Stmt> block() {
     List<Stmt> statements = new ArrayList<>();
     
-    while (!check(RIGHT_BRACE) && !isAtEnd()) {
-      statements.add(declaration());
+    blockDepth++;
+    try {
+      while (!check(RIGHT_BRACE) && !isAtEnd()) {
+        statements.add(declaration());
+      }
+    } finally {
+      blockDepth--;
     }
     
     consume(RIGHT_BRACE, "Expected '}' after block.");
     return statements;
   }
   
-  //  expression -> assignment ( "," assignment )* | errExprNoLeftOperand;
-  //  errExprNoLeftOperand -> ( "," assignment )* ;
-  private Expr expression() {
-    if (check(COMMA)) {
-      error(peek(), "Expected expression before ','");
-      while (match(COMMA)) {
-        assignment();
-      }
-      return new Expr.Erroneous(ExprErrType.NO_LEFT_OPERAND_FOR_BINARY_OPERATOR);
-    }
-    
-    Expr expr = assignment();
+  // Captures a function body's tokens, with its braces and parentheses
+  // matched, for the LazyBody to parse on first call. Only bracket errors
+  // are reported here; any other syntax error in the body is reported
+  // when it is called, and never if it isn't. Parsing the body here as
+  // well would make --lazy cost an eager parse plus a second one.
+  private List<Stmt> lazyBlock(Token name) {
+    List<Token> body = new ArrayList<>();
+    List<Token> open = new ArrayList<>();
+    open.add(previous());
     
-    while(match(COMMA)) {
-      Token operator = previous();
-      Expr right = assignment();
-      expr = new Expr.Binary(expr, operator, right);
+    while (!open.isEmpty()) {
+      if (isAtEnd()) throw error(peek(), "Expected '}' after block.");
+      
+      Token token = advance();
+      body.add(token);
+      switch (token.type) {
+        case LEFT_BRACE:
+        case LEFT_PAREN:
+          open.add(token);
+          break;
+        case RIGHT_BRACE:
+        case RIGHT_PAREN:
+          TokenType expected = token.type == RIGHT_BRACE ? LEFT_BRACE : LEFT_PAREN;
+          Token opening = open.remove(open.size() - 1);
+          if (opening.type != expected) {
+            throw error(token, "Unmatched '" + token.lexeme + "'.");
+          }
+          break;
+        default:
+          break;
+      }
     }
     
-    return expr;
+    Token closing = previous();
+    body.add(new Token(EOF, "", null, closing.line, closing.column));
+    return new LazyBody(symbol(name), position(name), body);
   }
   
+  //  Expressions are parsed with a table-driven Pratt parser. The grammar
+  //  levels below map to the Precedence enum, lowest first:
+  //
+  //  expression -> assignment ( "," assignment )* | errExprNoLeftOperand ;
   //  assignment -> ( call "." )? IDENTIFIER "=" assignment | ternary | errAssignNoLeftOperand ;
-  //  errAssignNoLeftOperand -> "=" assignment;
-  private Expr assignment() {
-    if (check(EQUAL)) {
-      error(peek(), "Expected expression before '='");
-      while (match(EQUAL)) {
-        assignment();
-      }
-      return new Expr.Erroneous(ExprErrType.NO_LEFT_OPERAND_FOR_BINARY_OPERATOR);
+  //  ternary -> logic_or ( "?" logic_or ":" ternary )? ;
+  //  logic_or -> logic_and ( "or" logic_and )* | errLogic_orNoLeftOperand ;
+  //  logic_and -> equality ( "and" equality )* | errLogic_andNoLeftOperand ;
+  //  equality -> comparison ( ( "!=" | "==" ) comparison )* | errEqualityNoLeftOperand ;
+  //  comparison -> term ( ( ">" | ">=" | "<" | "<=") term )* | errComparisonNoLeftOperand ;
+  //  term -> factor ( ( "-" | "+" ) factor )* | errTermNoLeftOperand ;
+  //  factor -> unary ( ( "/" | "*" ) unary )* | errFactorNoLeftOperand ;
+  //  unary -> ( "!" | "-" ) unary | call ;
+  //  call -> primary ( "(" arguments? ")" | "." IDENTIFIER )* ;
+  //
+  //  Each errXNoLeftOperand production is "operator operand" for the
+  //  operators of that level, e.g. errEqualityNoLeftOperand -> ( ( "!=" | "==" ) comparison )* ;
+  private enum Precedence {
+    NONE,
+    COMMA,       // ,
+    ASSIGNMENT,  // =
+    TERNARY,     // ?:
+    OR,          // or
+    AND,         // and
+    EQUALITY,    // == !=
+    COMPARISON,  // < > <= >=
+    TERM,        // + -
+    FACTOR,      // * /
+    UNARY,       // ! -
+    CALL,        // . ()
+    PRIMARY;
+    
+    // values() copies the array each call.
+    private static final Precedence[] VALUES = values();
+    
+    Precedence next() {
+      return VALUES[ordinal() + 1];
+    }
+  }
+  
+  // Parselets are dispatched with a switch rather than stored as method
+  // references, which would load the lambda machinery on every start.
+  private enum Prefix {
+    UNARY, GROUPING, LITERAL, THIS, SUPER, VARIABLE, LAMBDA
+  }
+  
+  private enum Infix {
+    BINARY, LOGICAL, ASSIGNMENT, TERNARY, CALL, GET
+  }
+  
+  private static class ParseRule {
+    final Prefix prefix;
+    final Infix infix;
+    final Precedence precedence;
+    // Whether a missing left operand is reported and recovered from
+    // instead of failing with "Expected expression."
+    final boolean recoversMissingOperand;
+    
+    ParseRule(Prefix prefix, Infix infix,
+              Precedence precedence, boolean recoversMissingOperand) {
+      this.prefix = prefix;
+      this.infix = infix;
+      this.precedence = precedence;
+      this.recoversMissingOperand = recoversMissingOperand;
+    }
+  }
+  
+  private static final ParseRule[] rules = new ParseRule[TokenType.values().length];
+  
+  static {
+    for (TokenType type : TokenType.values()) {
+      rule(type, null, null, Precedence.NONE, false);
+    }
+    
+    rule(COMMA,         null,            Infix.BINARY,     Precedence.COMMA,      true);
+    rule(EQUAL,         null,            Infix.ASSIGNMENT, Precedence.ASSIGNMENT, true);
+    rule(QUESTION_MARK, null,            Infix.TERNARY,    Precedence.TERNARY,    false);
+    rule(OR,            null,            Infix.LOGICAL,    Precedence.OR,         true);
+    rule(AND,           null,            Infix.LOGICAL,    Precedence.AND,        true);
+    rule(BANG_EQUAL,    null,            Infix.BINARY,     Precedence.EQUALITY,   true);
+    rule(EQUAL_EQUAL,   null,            Infix.BINARY,     Precedence.EQUALITY,   true);
+    rule(GREATER,       null,            Infix.BINARY,     Precedence.COMPARISON, true);
+    rule(GREATER_EQUAL, null,            Infix.BINARY,     Precedence.COMPARISON, true);
+    rule(LESS,          null,            Infix.BINARY,     Precedence.COMPARISON, true);
+    rule(LESS_EQUAL,    null,            Infix.BINARY,     Precedence.COMPARISON, true);
+    rule(PLUS,          null,            Infix.BINARY,     Precedence.TERM,       true);
+    rule(MINUS,         Prefix.UNARY,    Infix.BINARY,     Precedence.TERM,       true);
+    rule(SLASH,         null,            Infix.BINARY,     Precedence.FACTOR,     true);
+    rule(STAR,          null,            Infix.BINARY,     Precedence.FACTOR,     true);
+    rule(BANG,          Prefix.UNARY,    null,             Precedence.NONE,       false);
+    rule(LEFT_PAREN,    Prefix.GROUPING, Infix.CALL,       Precedence.CALL,       false);
+    rule(DOT,           null,            Infix.GET,        Precedence.CALL,       false);
+    rule(NUMBER,        Prefix.LITERAL,  null,             Precedence.NONE,       false);
+    rule(STRING,        Prefix.LITERAL,  null,             Precedence.NONE,       false);
+    rule(TRUE,          Prefix.LITERAL,  null,             Precedence.NONE,       false);
+    rule(FALSE,         Prefix.LITERAL,  null,             Precedence.NONE,       false);
+    rule(NIL,           Prefix.LITERAL,  null,             Precedence.NONE,       false);
+    rule(THIS,          Prefix.THIS,     null,             Precedence.NONE,       false);
+    rule(SUPER,         Prefix.SUPER,    null,             Precedence.NONE,       false);
+    rule(IDENTIFIER,    Prefix.VARIABLE, null,             Precedence.NONE,       false);
+    rule(FUN,           Prefix.LAMBDA,   null,             Precedence.NONE,       false);
+  }
+  
+  private static void rule(TokenType type, Prefix prefix, Infix infix,
+                           Precedence precedence, boolean recoversMissingOperand) {
+    rules[type.ordinal()] = new ParseRule(prefix, infix, precedence, recoversMissingOperand);
+  }
+  
+  private static ParseRule getRule(TokenType type) {
+    return rules[type.ordinal()];
+  }
+  
+  private Expr expression() {
+    return parsePrecedence(Precedence.COMMA);
+  }
+  
+  private Expr parsePrecedence(Precedence precedence) {
+    ParseRule prefixRule = getRule(peek().type);
+    Expr expr;
+    if (prefixRule.prefix != null) {
+      advance();
+      expr = prefix(prefixRule.prefix);
+    } else if (prefixRule.recoversMissingOperand
+               && prefixRule.precedence.compareTo(precedence) >= 0) {
+      expr = missingLeftOperand(prefixRule.precedence);
+    } else {
+      throw error(peek(), "Expected expression.");
     }
     
-    Expr expr = ternary();
-    
-    if (match(EQUAL)) {
-      Token equals = previous();
-      Expr value = assignment();
-      
-      if (expr instanceof Expr.Variable) {
-        Token name = ((Expr.Variable)expr).name;
-        return new Expr.Assign(name, value);
-      } else if (expr instanceof Expr.Get) {
-        Expr.Get get = (Expr.Get) expr;
-        return new Expr.Set(get.object, get.name, value);
-      }
+    while (true) {
+      ParseRule rule = getRule(peek().type);
+      if (rule.infix == null || rule.precedence.compareTo(precedence) < 0) break;
       
-      error(equals, "Invalid assignment target.");
+      advance();
+      expr = infix(rule.infix, expr);
     }
     
     return expr;
   }
   
-  //  ternary -> logic_or ( "?" logic_or ":" ternary )? ;
-  private Expr ternary() {
-    Expr expr = logic_or();
-    if (match(QUESTION_MARK)) {
-      Expr ifTrue = logic_or();
-      consume(COLON, "Expected ':' for ternary operator");
-      Expr ifFalse = ternary();
-      
-      return new Expr.Ternary(expr, ifTrue, ifFalse);
+  private Expr prefix(Prefix prefix) {
+    switch (prefix) {
+      case UNARY: return unary();
+      case GROUPING: return grouping();
+      case LITERAL: return literal();
+      case THIS: return thisExpr();
+      case SUPER: return superExpr();
+      case VARIABLE: return variable();
+      default: return lambda();
     }
-    
-    return expr;
-    
   }
   
-  //  logic_or -> logic_and ( "or" logic_and )* | errLogic_orNoLeftOperand ;
-  //  errLogic_orNoLeftOperand -> ("or" logic_and)* ;
-  private Expr logic_or() {
-    if (check(OR)) {
-      error(peek(), "Expected expression before '" + peek().lexeme +"'");
-      while (match(OR)) {
-        logic_and();
-      }
-      return new Expr.Erroneous(ExprErrType.NO_LEFT_OPERAND_FOR_BINARY_OPERATOR);
+  private Expr infix(Infix infix, Expr left) {
+    switch (infix) {
+      case BINARY: return binary(left);
+      case LOGICAL: return logical(left);
+      case ASSIGNMENT: return assignment(left);
+      case TERNARY: return ternary(left);
+      case CALL: return finishCall(left);
+      default: return get(left);
     }
-    
-    Expr expr = logic_and();
-    
-    while (match(OR)) {
-      Token operator = previous();
-      Expr right = logic_and();
-      expr = new Expr.Logical(expr, operator, right);
-    }
-    
-    return expr;
   }
   
-  //  logic_and -> equality ( "and" equality )* | errLogic_andNoLetOperand;
-  //  errLogic_andNoLeftOperand -> ( "and" equality )* ;
-  private Expr logic_and() {
-    if (check(AND)) {
-      error(peek(), "Expected expression before '" + peek().lexeme + "'");
-      while (match(AND)) {
-        equality();
-      }
-      return new Expr.Erroneous(ExprErrType.NO_LEFT_OPERAND_FOR_BINARY_OPERATOR);
-    }
-    
-    Expr expr = equality();
+  private Expr missingLeftOperand(Precedence precedence) {
+    error(peek(), "Expected expression before '" + peek().lexeme + "'");
     
-    while (match(AND)) {
-      Token operator = previous();
-      Expr right = equality();
-      expr = new Expr.Logical(expr, operator, right);
+    // Assignment is right-associative and errTermNoLeftOperand recovers
+    // whole terms, so both parse their operands at their own level.
+    Precedence operand = precedence;
+    if (precedence != Precedence.ASSIGNMENT && precedence != Precedence.TERM) {
+      operand = precedence.next();
     }
     
-    return expr;
+    while (getRule(peek().type).recoversMissingOperand
+           && getRule(peek().type).precedence == precedence) {
+      advance();
+      parsePrecedence(operand);
+    }
+    return new Expr.Erroneous(ExprErrType.NO_LEFT_OPERAND_FOR_BINARY_OPERATOR);
   }
   
-  // equality -> errEqualityNoLeftOperand | comparison ( ( "!=" | "==" ) comparison )*;
-  // errEqualityNoLeftOperand -> ( ( "!=" | "==" ) comparison )* ;
-  private Expr equality() {
-    if (check(BANG_EQUAL, EQUAL_EQUAL)) {
-      error(peek(), "Expected expression before '" + peek().lexeme +"'");
-      while(match(BANG_EQUAL, EQUAL_EQUAL)) {
-        comparison();
-      }
-      return new Expr.Erroneous(ExprErrType.NO_LEFT_OPERAND_FOR_BINARY_OPERATOR);
-    }
-    
-    Expr expr = comparison();
-    
-    while(match(BANG_EQUAL, EQUAL_EQUAL)) {
-      Token operator = previous();
-      Expr right = comparison();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    
-    return expr;
+  private Expr binary(Expr left) {
+    Token operator = previous();
+    Expr right = parsePrecedence(getRule(operator.type).precedence.next());
+    return new Expr.Binary(left, operator.type, position(operator), right);
   }
   
-  //  comparison -> errComparisonNoLeftOperand | term ( ( ">" | ">=" | "<" | "<=") term )* ; 
-  //  errComparisonNoLeftOperand -> ( ( ">" | ">=" | "<" | "<=") term )* ; 
-  private Expr comparison() {
-    if (check(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-      error(peek(), "Expected expression before '" + peek().lexeme + "'");
-      while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-        term();
-      }
-      return new Expr.Erroneous(ExprErrType.NO_LEFT_OPERAND_FOR_BINARY_OPERATOR);
-    }
-    
-    Expr expr = term();
-    
-    while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-      Token operator = previous();
-      Expr right = term();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    
-    return expr;
+  private Expr logical(Expr left) {
+    Token operator = previous();
+    Expr right = parsePrecedence(getRule(operator.type).precedence.next());
+    return new Expr.Logical(left, operator.type, position(operator), right);
   }
   
-  //  term -> errTermNoLeftOperand | factor ( ( "+" | "-" ) factor )*;
-  //  errTermNoLeftOperand -> ( ( "+" | "-" ) factor )* ;
-  private Expr term() {
-    if (check(PLUS, MINUS)) {
-      error(peek(), "Expected expression before '" + peek().lexeme + "'");
-      while (match(PLUS, MINUS)) {
-        term();
-      }
-      return new Expr.Erroneous(ExprErrType.NO_LEFT_OPERAND_FOR_BINARY_OPERATOR);
-    }
+  private Expr assignment(Expr target) {
+    Token equals = previous();
+    Expr value = parsePrecedence(Precedence.ASSIGNMENT);
     
-    Expr expr = factor();
-    
-    while (match(PLUS, MINUS)) {
-      Token operator = previous();
-      Expr right = factor();
-      expr = new Expr.Binary(expr, operator, right);
+    if (target instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable)target;
+      return new Expr.Assign(variable.name, variable.position, value);
+    } else if (target instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) target;
+      return new Expr.Set(get.object, get.name, get.position, value);
     }
     
-    return expr;
+    error(equals, "Invalid assignment target.");
+    return target;
   }
   
-  //  factor -> errFactorNoLeftOperand | unary ( ( "/" | "*" ) unary )* ;
-  //  errFactorNoLeftOperand -> ( ( "/" | "*" ) unary )* ;
-  private Expr factor() {
-    if (check(SLASH, STAR)) {
-      error(peek(), "Expected expression before '" + peek().lexeme + "'");
-      while (match(SLASH, STAR)) {
-        unary();
-      }
-      return new Expr.Erroneous(ExprErrType.NO_LEFT_OPERAND_FOR_BINARY_OPERATOR);
-    }
-    
-    Expr expr = unary();
+  private Expr ternary(Expr cond) {
+    Expr ifTrue = parsePrecedence(Precedence.OR);
+    consume(COLON, "Expected ':' for ternary operator");
+    Expr ifFalse = parsePrecedence(Precedence.TERNARY);
     
-    while (match(SLASH, STAR)) {
-      Token operator = previous();
-      Expr right = unary();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-    
-    return expr;
+    return new Expr.Ternary(cond, ifTrue, ifFalse);
   }
   
-  // unary -> ( "!" | "-" ) unary | call ;
   private Expr unary() {
-    if (match(BANG, MINUS)) {
-      Token operator = previous();
-      Expr right = unary();
-      return new Expr.Unary(operator, right);
-    }
-    
-    return call();
+    Token operator = previous();
+    Expr right = parsePrecedence(Precedence.UNARY);
+    return new Expr.Unary(operator.type, position(operator), right);
   }
   
-  // call -> primary ( "(" arguments? ")" )* ;
   // arguments -> assignment ( "," assignment)* ;
-  private Expr call() {
-    Expr expr = primary();
-    
-    while (true) {
-      if (match(LEFT_PAREN)) {
-        expr = finishCall(expr);
-      } else if (match(DOT)) {
-        Token name = consume(IDENTIFIER, "Expected a property name after '.'.");
-        expr = new Expr.Get(expr, name);
-      } else {
-        break;
-      }
-    }
-    
-    return expr;
-  }
-  
   private Expr finishCall(Expr callee) {
     List<Expr> arguments = new ArrayList<>();
     if (!check(RIGHT_PAREN)) {
@@ -471,51 +560,59 @@ class Parser {
         if (arguments.size() >= 255) {
           error(peek(), "Can't have more than 255 arguments.");
         }
-        arguments.add(assignment());
+        arguments.add(parsePrecedence(Precedence.ASSIGNMENT));
       } while (match(COMMA));
     }
     
     Token paren = consume(RIGHT_PAREN, "Expected ')' after arguments.");
     
-    return new Expr.Call(callee, paren, arguments);
+    Expr call = new Expr.Call(callee, position(paren), arguments);
+    if (heatmap == null) return call;
+    return new Expr.Counted(heatmap.slot(paren.line, true), call);
   }
   
-  // primary -> NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" | IDENTIFIER | lambdaExpr;
-  private Expr primary() {
-    if (match(FALSE)) return new Expr.Literal(false);
-    if (match(TRUE)) return new Expr.Literal(true);
-    if (match(NIL)) return new Expr.Literal(null);
-    
-    if (match(NUMBER, STRING)) return new Expr.Literal(previous().literal);
-    
-    if (match(THIS)) return new Expr.This(previous());
-    
-    if (match(SUPER)) {
-      Token keyword = previous();
-      consume(DOT, "Expect '.' after 'super'.");
-      Token method = consume(IDENTIFIER,
-          "Expected superclass method name.");
-      return new Expr.Super(keyword, method);
-    }
-    
-    if (match(IDENTIFIER)) return new Expr.Variable(previous());
-    
-    
-    if (match(FUN)) return lambda();
-    
-    
-    if (match(LEFT_PAREN)) {
-      Expr expr = expression();
-      consume(RIGHT_PAREN, "Expect ')' after expression.");
-      return new Expr.Grouping(expr);
+  private Expr get(Expr object) {
+    Token name = consume(IDENTIFIER, "Expected a property name after '.'.");
+    return new Expr.Get(object, symbol(name), position(name));
+  }
+  
+  // primary -> NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" 
+  //            | "super" "." IDENTIFIER | IDENTIFIER | lambdaExpr;
+  private Expr literal() {
+    switch (previous().type) {
+      case FALSE: return new Expr.Literal(false);
+      case TRUE: return new Expr.Literal(true);
+      case NIL: return new Expr.Literal(null);
+      default: return new Expr.Literal(previous().literal);
     }
-    
-    throw error(peek(), "Expected expression.");
+  }
+  
+  private Expr thisExpr() {
+    return new Expr.This(position(previous()));
+  }
+  
+  private Expr superExpr() {
+    Token keyword = previous();
+    consume(DOT, "Expect '.' after 'super'.");
+    Token method = consume(IDENTIFIER,
+        "Expected superclass method name.");
+    return new Expr.Super(position(keyword), symbol(method), position(method));
+  }
+  
+  private Expr.Variable variable() {
+    return new Expr.Variable(symbol(previous()), position(previous()));
+  }
+  
+  private Expr grouping() {
+    Expr expr = expression();
+    consume(RIGHT_PAREN, "Expect ')' after expression.");
+    return new Expr.Grouping(expr);
   }
   
   //  lambdaExpr -> "fun" "(" parameters? ")" block
   //  parameters -> IDENTIFIER ( "," IDENTIFIER )* ;
   private Expr.Lambda lambda() {
+    long position = position(previous());
     consume(LEFT_PAREN, "Expected '(' after 'fun' in lambda expression.");
     List<Token> parameters = parameters();
     
@@ -523,7 +620,7 @@ class Parser {
     
     consume(LEFT_BRACE, "Expected '{' before function body.");
     List<Stmt> body = block();
-    return new Expr.Lambda(parameters, body);
+    return new Expr.Lambda(position, symbols(parameters), positions(parameters), body);
   }
   
   private List<Token> parameters() {
@@ -541,6 +638,32 @@ class Parser {
     return parameters;
   }
   
+  // Nodes keep identifier names, shared between all their uses, and
+  // packed positions rather than Tokens.
+  private String symbol(Token identifier) {
+    return identifier.lexeme.intern();
+  }
+  
+  private List<String> symbols(List<Token> identifiers) {
+    List<String> symbols = new ArrayList<>(identifiers.size());
+    for (Token identifier : identifiers) {
+      symbols.add(symbol(identifier));
+    }
+    return symbols;
+  }
+  
+  private long position(Token token) {
+    return Position.of(file, token.line, token.column);
+  }
+  
+  private long[] positions(List<Token> tokens) {
+    long[] positions = new long[tokens.size()];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = position(tokens.get(i));
+    }
+    return positions;
+  }
+  
   private boolean match(TokenType... types) {
     for (TokenType type : types) {
       if (check(type)) {
@@ -569,20 +692,32 @@ class Parser {
   }
   
   private Token advance() {
-    if (!isAtEnd()) current++;
+    if (!isAtEnd()) {
+      previousToken = currentToken;
+      currentToken = nextToken();
+    }
     return previous();
   }
   
+  private Token nextToken() {
+    Token token = tokens.next();
+    while (token.type == ERROR) {
+      Lox.error(token.line, token.column, token.lexeme);
+      token = tokens.next();
+    }
+    return token;
+  }
+  
   private boolean isAtEnd() {
     return peek().type == EOF;
   }
   
   private Token peek() {
-    return tokens.get(current);
+    return currentToken;
   }
   
   private Token previous() {
-    return tokens.get(current - 1);
+    return previousToken;
   }
   
   private ParseError error(Token token, String message) {
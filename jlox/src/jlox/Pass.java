@@ -0,0 +1,28 @@
+package jlox;
+
+import java.util.Collections;
+import java.util.List;
+
+// An optimization pass over the resolved tree, run by the PassManager.
+interface Pass {
+  String name();
+
+  // Names of the passes that must run before this one.
+  default List<String> dependencies() {
+    return Collections.emptyList();
+  }
+
+  List<Stmt> run(List<Stmt> statements);
+
+  // Streamed top-level statements are handed over one at a time. Passes
+  // that need the whole program leave them as they are.
+  default Stmt run(Stmt statement) {
+    return statement;
+  }
+
+  // Whether the Interpreter must resolve the tree again once this pass
+  // has changed it.
+  default boolean invalidatesResolution() {
+    return false;
+  }
+}
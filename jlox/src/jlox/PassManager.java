@@ -0,0 +1,173 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs the optimization passes registered at or below the optimization
+// level, each after the passes it depends on, which are run even if
+// registered at a higher level. Passes run in the order they were
+// registered otherwise.
+//
+// With timing on, the wall time each pass took and the number of tree
+// nodes before and after it are summed over every run, for report().
+class PassManager {
+  static final int MAX_LEVEL = 2;
+
+  private static class Stats {
+    long nanos = 0;
+    long nodesBefore = 0;
+    long nodesAfter = 0;
+  }
+
+  private final Interpreter interpreter;
+  private final int level;
+  private final boolean timing;
+  private final Map<String, Pass> passes = new LinkedHashMap<>();
+  private final Map<String, Integer> levels = new HashMap<>();
+  private final Map<Pass, Stats> stats = new LinkedHashMap<>();
+  private List<Pass> schedule = null;
+
+  // Trees a pass invalidates the resolution of are resolved again in the
+  // interpreter, unless it is null.
+  PassManager(Interpreter interpreter, int level, boolean timing) {
+    this.interpreter = interpreter;
+    this.level = level;
+    this.timing = timing;
+  }
+
+  void register(Pass pass, int level) {
+    passes.put(pass.name(), pass);
+    levels.put(pass.name(), level);
+    schedule = null;
+  }
+
+  List<Stmt> run(List<Stmt> statements) {
+    for (Pass pass : schedule()) {
+      long before = timing ? NodeCounter.count(statements) : 0;
+      long start = System.nanoTime();
+      List<Stmt> result = pass.run(statements);
+      if (result != statements && pass.invalidatesResolution() &&
+          interpreter != null) {
+        new Resolver(interpreter, false).resolve(result);
+      }
+      if (timing) record(pass, start, before, NodeCounter.count(result));
+      statements = result;
+    }
+    return statements;
+  }
+
+  // Returns null once a pass has removed the statement.
+  Stmt run(Stmt statement) {
+    for (Pass pass : schedule()) {
+      long before = timing ? NodeCounter.count(statement) : 0;
+      long start = System.nanoTime();
+      Stmt result = pass.run(statement);
+      if (result != statement && result != null &&
+          pass.invalidatesResolution() && interpreter != null) {
+        new Resolver(interpreter, false).resolve(result);
+      }
+      if (timing) record(pass, start, before, NodeCounter.count(result));
+      statement = result;
+      if (statement == null) break;
+    }
+    return statement;
+  }
+
+  private void record(Pass pass, long start, long before, long after) {
+    Stats entry = stats.computeIfAbsent(pass, p -> new Stats());
+    entry.nanos += System.nanoTime() - start;
+    entry.nodesBefore += before;
+    entry.nodesAfter += after;
+  }
+
+  void report() {
+    if (!timing) return;
+
+    System.err.println(String.format("%-12s %10s %12s %12s",
+        "pass", "time (ms)", "nodes before", "nodes after"));
+    long total = 0;
+    for (Map.Entry<Pass, Stats> entry : stats.entrySet()) {
+      Stats pass = entry.getValue();
+      total += pass.nanos;
+      System.err.println(String.format("%-12s %10.3f %12d %12d",
+          entry.getKey().name(), pass.nanos / 1e6,
+          pass.nodesBefore, pass.nodesAfter));
+    }
+    System.err.println(String.format("%-12s %10.3f", "total", total / 1e6));
+  }
+
+  private List<Pass> schedule() {
+    if (schedule != null) return schedule;
+
+    schedule = new ArrayList<>();
+    Map<Pass, Boolean> visiting = new HashMap<>();
+    for (Pass pass : passes.values()) {
+      if (levels.get(pass.name()) <= level) schedule(pass, visiting);
+    }
+    return schedule;
+  }
+
+  private void schedule(Pass pass, Map<Pass, Boolean> visiting) {
+    Boolean done = visiting.get(pass);
+    if (done == Boolean.TRUE) return;
+    if (done == Boolean.FALSE) {
+      throw new IllegalStateException(
+          "Pass '" + pass.name() + "' depends on itself.");
+    }
+
+    visiting.put(pass, false);
+    for (String name : pass.dependencies()) {
+      Pass dependency = passes.get(name);
+      if (dependency == null) {
+        throw new IllegalStateException("Pass '" + pass.name() +
+            "' depends on unregistered pass '" + name + "'.");
+      }
+      schedule(dependency, visiting);
+    }
+    visiting.put(pass, true);
+    schedule.add(pass);
+  }
+
+  // Counts the statements and expressions in a tree, nested bodies
+  // included. The bodies of Inline nodes belong to their function.
+  private static class NodeCounter extends TreeRewriter {
+    private long count = 0;
+
+    private NodeCounter() {
+      super(null);
+    }
+
+    static long count(List<Stmt> statements) {
+      NodeCounter counter = new NodeCounter();
+      counter.rewrite(statements);
+      return counter.count;
+    }
+
+    static long count(Stmt statement) {
+      NodeCounter counter = new NodeCounter();
+      counter.rewrite(statement);
+      return counter.count;
+    }
+
+    @Override
+    Stmt rewrite(Stmt stmt) {
+      if (stmt != null) count++;
+      return super.rewrite(stmt);
+    }
+
+    @Override
+    Expr rewrite(Expr expr) {
+      if (expr != null) count++;
+      return super.rewrite(expr);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+      count += stmt.methods.size() + stmt.staticMethods.size();
+      return super.visitClassStmt(stmt);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package jlox;
+
+import java.util.Arrays;
+
+// Source positions packed into a long so AST nodes need not keep their
+// Tokens: a 24-bit file ID, a 24-bit line and a 16-bit column. Columns
+// past the last one a position holds are reported as that one.
+//
+// Lines are stored relative to a per-file offset. Document gives every
+// declaration its own file ID, so moving a declaration down the source
+// is one offset update rather than a walk over its tree. Each Document
+// keeps the offsets of its files in its own Files table, which lines are
+// looked up in on the thread that last used it.
+class Position {
+  static final int SCRIPT = 0;
+  // Of nodes passes create that have no place in the source. Lines count
+  // from 1, so its line is 0.
+  static final long NONE = 0;
+
+  private static final int LINE_BITS = 24;
+  private static final int COLUMN_BITS = 16;
+  private static final long LINE_MASK = (1L << LINE_BITS) - 1;
+  private static final long COLUMN_MASK = (1L << COLUMN_BITS) - 1;
+  // Documents take one per declaration they hold.
+  private static final int MAX_FILES = 1 << 24;
+
+  private static final ThreadLocal<Files> files = new ThreadLocal<>();
+
+  // The line offsets of one Document's files. The IDs of declarations an
+  // edit replaces are freed and handed out again, so the table only grows
+  // with the number of declarations the Document holds at once. A
+  // position kept from a replaced declaration may take the lines of the
+  // one that reuses its ID.
+  static final class Files {
+    private int[] lineOffsets = new int[16];
+    private int count = 1;
+    private int[] freed = new int[16];
+    private int freedCount = 0;
+
+    int newFile() {
+      if (freedCount > 0) {
+        int file = freed[--freedCount];
+        lineOffsets[file] = 0;
+        return file;
+      }
+      if (count == MAX_FILES) {
+        throw new IllegalStateException("Too many source files.");
+      }
+      if (count == lineOffsets.length) {
+        lineOffsets = Arrays.copyOf(lineOffsets, count * 2);
+      }
+      return count++;
+    }
+
+    void freeFile(int file) {
+      if (freedCount == freed.length) {
+        freed = Arrays.copyOf(freed, freedCount * 2);
+      }
+      freed[freedCount++] = file;
+    }
+
+    void shiftLines(int file, int delta) {
+      lineOffsets[file] += delta;
+    }
+  }
+
+  private Position() {}
+
+  static long of(int file, int line, int column) {
+    return ((long)file << (LINE_BITS + COLUMN_BITS)) |
+        ((Math.max(line, 0) & LINE_MASK) << COLUMN_BITS) |
+        Math.min(Math.max(column, 0), COLUMN_MASK);
+  }
+
+  static int file(long position) {
+    return (int)(position >>> (LINE_BITS + COLUMN_BITS));
+  }
+
+  static int line(long position) {
+    int line = (int)((position >>> COLUMN_BITS) & LINE_MASK);
+    int file = file(position);
+    if (file == SCRIPT) return line;
+
+    Files table = files.get();
+    if (table == null || file >= table.count) return line;
+    return line + table.lineOffsets[file];
+  }
+
+  static int column(long position) {
+    return (int)(position & COLUMN_MASK);
+  }
+
+  // Positions in files other than SCRIPT are looked up in this table on
+  // the calling thread until another one is used.
+  static void useFiles(Files table) {
+    files.set(table);
+  }
+}
@@ -0,0 +1,187 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+// Samples the Lox functions running, for --profile. The interpreter keeps
+// a shadow stack of the calls in progress, each frame a function's name
+// and the line it was called from, and a background thread records it
+// at a fixed rate. Inlined calls get frames like any other.
+//
+// At exit the stacks are written in the collapsed format flame graph
+// tools read, one "frame;frame;frame count" line per distinct stack, and
+// the functions with the most samples are listed on stderr with the time
+// spent in them (self) and in them or their callees (total).
+class Profiler {
+  // The running profiler, or null. Calls check it, so with profiling off
+  // they pay for a field read.
+  static Profiler active = null;
+
+  static final int DEFAULT_HERTZ = 1000;
+  private static final String SCRIPT = "<script>";
+  private static final int TOP = 20;
+
+  // The shadow stack, written by the interpreter's thread only. Frames
+  // are published to the sampler by the write to depth. The sampler may
+  // still see a frame being replaced, which only blurs one sample.
+  private String[] names = new String[64];
+  private int[] lines = new int[64];
+  private volatile int depth = 0;
+
+  private final long intervalNanos;
+  private final Path output;
+  private final Thread sampler;
+  private volatile boolean running = true;
+  // Only touched by the sampler until it has stopped.
+  private final Map<String, Long> stacks = new HashMap<>();
+  private long samples = 0;
+  private long startNanos;
+  private long elapsedNanos;
+
+  private Profiler(int hertz, Path output) {
+    this.intervalNanos = 1_000_000_000L / hertz;
+    this.output = output;
+    this.sampler = new Thread(this::sample, "jlox-profiler");
+    sampler.setDaemon(true);
+  }
+
+  // Profiles until the process exits.
+  static void start(int hertz, Path output) {
+    Profiler profiler = new Profiler(hertz, output);
+    profiler.startNanos = System.nanoTime();
+    profiler.sampler.start();
+    Runtime.getRuntime().addShutdownHook(
+        new Thread(profiler::stop, "jlox-profiler-report"));
+    active = profiler;
+  }
+
+  Object call(LoxCallable function, long position, Interpreter interpreter,
+              List<Object> arguments) {
+    enter(name(function), position);
+    try {
+      return function.call(interpreter, arguments);
+    } finally {
+      exit();
+    }
+  }
+
+  void enter(String name, long position) {
+    int top = depth;
+    if (top == names.length) {
+      names = Arrays.copyOf(names, top * 2);
+      lines = Arrays.copyOf(lines, top * 2);
+    }
+    names[top] = name;
+    lines[top] = Position.line(position);
+    depth = top + 1;
+  }
+
+  void exit() {
+    depth--;
+  }
+
+  static String name(LoxCallable function) {
+    if (function instanceof LoxFunction) return ((LoxFunction)function).name();
+    if (function instanceof LoxClass) return ((LoxClass)function).name;
+    return "<native>";
+  }
+
+  private void sample() {
+    StringBuilder stack = new StringBuilder();
+    while (running) {
+      LockSupport.parkNanos(intervalNanos);
+
+      int top = depth;
+      String[] names = this.names;
+      int[] lines = this.lines;
+      top = Math.min(top, Math.min(names.length, lines.length));
+
+      stack.setLength(0);
+      stack.append(SCRIPT);
+      for (int i = 0; i < top; i++) {
+        stack.append(';').append(names[i]).append(':').append(lines[i]);
+      }
+      stacks.merge(stack.toString(), 1L, Long::sum);
+      samples++;
+    }
+  }
+
+  private void stop() {
+    active = null;
+    running = false;
+    try {
+      sampler.join();
+    } catch (InterruptedException e) {
+      return;
+    }
+    elapsedNanos = System.nanoTime() - startNanos;
+
+    try (PrintWriter out = new PrintWriter(
+             Files.newBufferedWriter(output, StandardCharsets.UTF_8))) {
+      for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+        out.println(entry.getKey() + " " + entry.getValue());
+      }
+    } catch (IOException e) {
+      System.err.println("Could not write the profile to " + output + ".");
+    }
+    report();
+  }
+
+  private void report() {
+    Map<String, Long> self = new HashMap<>();
+    Map<String, Long> total = new HashMap<>();
+    for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+      String[] frames = entry.getKey().split(";");
+      long count = entry.getValue();
+      self.merge(function(frames[frames.length - 1]), count, Long::sum);
+
+      // Recursive functions count once per sample.
+      Set<String> seen = new HashSet<>();
+      for (String frame : frames) {
+        if (seen.add(function(frame))) total.merge(function(frame), count, Long::sum);
+      }
+    }
+
+    List<String> functions = new ArrayList<>(total.keySet());
+    functions.sort((a, b) -> {
+      int bySelf = Long.compare(self.getOrDefault(b, 0L), self.getOrDefault(a, 0L));
+      return bySelf != 0 ? bySelf : Long.compare(total.get(b), total.get(a));
+    });
+
+    double millisPerSample = samples == 0 ? 0 : elapsedNanos / 1e6 / samples;
+    System.err.println(String.format(
+        "Profile: %d samples over %.0f ms, stacks written to %s",
+        samples, elapsedNanos / 1e6, output));
+    System.err.println(String.format("%-24s %10s %7s %10s %7s",
+        "function", "self (ms)", "self", "total (ms)", "total"));
+    for (String function : functions.subList(0, Math.min(TOP, functions.size()))) {
+      long selfSamples = self.getOrDefault(function, 0L);
+      long totalSamples = total.get(function);
+      System.err.println(String.format("%-24s %10.1f %6.1f%% %10.1f %6.1f%%",
+          function,
+          selfSamples * millisPerSample, percent(selfSamples),
+          totalSamples * millisPerSample, percent(totalSamples)));
+    }
+  }
+
+  private double percent(long count) {
+    return samples == 0 ? 0 : count * 100.0 / samples;
+  }
+
+  // The function a frame is in, without the line it was called from.
+  private static String function(String frame) {
+    int colon = frame.lastIndexOf(':');
+    return colon < 0 ? frame : frame.substring(0, colon);
+  }
+}
@@ -0,0 +1,317 @@
+package jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+// On-disk cache of resolved programs, for --cache, named by a CRC of their source and
+// the options they were optimized with. An entry is a FlatAst, whose nodes
+// already carry the resolver's slots, so a hit skips the Scanner, Parser
+// and Resolver altogether. The entry holds the options and source too,
+// and is a hit only if both match exactly; a cryptographic digest would
+// load more classes than a short script takes to parse.
+//
+// Entries are kept in $JLOX_CACHE_DIR (default ~/.cache/jlox). Once they
+// take more than $JLOX_CACHE_MAX_BYTES (default 64 MB), the least
+// recently used are deleted. The cache is best effort: entries that can't
+// be read, or fail their checksum, are deleted and treated as misses, and
+// failed writes are ignored.
+class ProgramCache {
+  static class Program {
+    final FlatAst ast;
+    final int statements;
+
+    Program(FlatAst ast, int statements) {
+      this.ast = ast;
+      this.statements = statements;
+    }
+  }
+
+  private static final int MAGIC = 0x4a4c4f58; // "JLOX"
+  // Bump whenever FlatAst's layout, this format, the output of the
+  // optimization passes or Position's packing changes.
+  private static final int VERSION = 12;
+  private static final String SUFFIX = ".jloxc";
+  private static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+  // Constant tags.
+  private static final byte NIL = 0;
+  private static final byte NUMBER = 1;
+  private static final byte STRING = 2;
+  private static final byte BOOLEAN = 3;
+  private static final byte NAMES = 4;
+  private static final byte POSITIONS = 5;
+
+  private final Path directory;
+  private final long maxBytes;
+
+  ProgramCache(Path directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  static ProgramCache fromEnvironment() {
+    String directory = System.getenv("JLOX_CACHE_DIR");
+    Path path = directory != null
+        ? Paths.get(directory)
+        : Paths.get(System.getProperty("user.home"), ".cache", "jlox");
+
+    long maxBytes = DEFAULT_MAX_BYTES;
+    String max = System.getenv("JLOX_CACHE_MAX_BYTES");
+    if (max != null) {
+      try {
+        maxBytes = Long.parseLong(max);
+      } catch (NumberFormatException e) {
+        // Keep the default.
+      }
+    }
+    return new ProgramCache(path, maxBytes);
+  }
+
+  // Returns null on a miss.
+  Program load(String options, String source) {
+    byte[] key = key(options, source);
+    Path file = entry(key);
+    if (!Files.isRegularFile(file)) return null;
+
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new IOException("Stale cache entry.");
+      }
+      int keyLength = buffer.getInt();
+      if (keyLength != key.length || !Arrays.equals(
+          buffer.array(), buffer.position(), buffer.position() + keyLength,
+          key, 0, key.length)) {
+        throw new IOException("Cache entry for other source.");
+      }
+      buffer.position(buffer.position() + keyLength);
+      int checksum = buffer.getInt();
+      if (checksum != checksum(buffer.slice())) {
+        throw new IOException("Corrupt cache entry.");
+      }
+
+      int statements = buffer.getInt();
+      int[] data = new int[buffer.getInt()];
+      buffer.asIntBuffer().get(data);
+      buffer.position(buffer.position() + data.length * Integer.BYTES);
+
+      int count = buffer.getInt();
+      List<Object> constants = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        constants.add(readConstant(buffer));
+      }
+
+      // Mark as recently used.
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      return new Program(new FlatAst(data, constants), statements);
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException |
+             IndexOutOfBoundsException e) {
+      delete(file);
+      return null;
+    }
+  }
+
+  void store(String options, String source, Program program) {
+    byte[] key = key(options, source);
+    Path temporary = null;
+    try {
+      ByteArrayOutputStream constantBytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(constantBytes);
+      List<Object> constants = program.ast.constants();
+      out.writeInt(constants.size());
+      for (Object constant : constants) {
+        writeConstant(out, constant);
+      }
+      out.flush();
+
+      int[] data = program.ast.data();
+      int headerLength = 4 * Integer.BYTES + key.length;
+      ByteBuffer buffer = ByteBuffer.allocate(headerLength +
+          (2 + data.length) * Integer.BYTES + constantBytes.size());
+      buffer.position(headerLength);
+      buffer.putInt(program.statements);
+      buffer.putInt(data.length);
+      buffer.asIntBuffer().put(data);
+      buffer.position(buffer.position() + data.length * Integer.BYTES);
+      buffer.put(constantBytes.toByteArray());
+
+      buffer.position(headerLength);
+      int checksum = checksum(buffer.slice());
+      buffer.rewind();
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(key.length);
+      buffer.put(key);
+      buffer.putInt(checksum);
+
+      // Written aside and moved in place, so a concurrent run never reads
+      // a partial entry. Files.createTempFile would load SecureRandom, which
+      // costs more than a short script takes to run; if two runs pick the
+      // same name, the second doesn't store its entry.
+      Files.createDirectories(directory);
+      Path name = directory.resolve(new StringBuilder("entry")
+          .append(Long.toHexString(System.nanoTime())).append(".tmp").toString());
+      Files.write(name, buffer.array(), StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE);
+      temporary = name;
+      Files.move(temporary, entry(key),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      temporary = null;
+
+      evict();
+    } catch (IOException | IllegalArgumentException e) {
+      if (temporary != null) delete(temporary);
+    }
+  }
+
+  // Deletes least recently used entries until the cache fits its bound.
+  private void evict() throws IOException {
+    List<Path> entries = new ArrayList<>();
+    long total = 0;
+    try (DirectoryStream<Path> stream =
+             Files.newDirectoryStream(directory)) {
+      for (Path entry : stream) {
+        // A glob would load the regex engine.
+        if (!entry.getFileName().toString().endsWith(SUFFIX)) continue;
+        entries.add(entry);
+        total += Files.size(entry);
+      }
+    }
+    if (total <= maxBytes) return;
+
+    entries.sort((a, b) -> lastModified(a).compareTo(lastModified(b)));
+    for (Path entry : entries) {
+      if (total <= maxBytes) break;
+      total -= Files.size(entry);
+      delete(entry);
+    }
+  }
+
+  private static void writeConstant(DataOutputStream out, Object constant)
+      throws IOException {
+    if (constant == null) {
+      out.writeByte(NIL);
+    } else if (constant instanceof Double) {
+      out.writeByte(NUMBER);
+      out.writeDouble((Double)constant);
+    } else if (constant instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String)constant);
+    } else if (constant instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean)constant);
+    } else if (constant instanceof List) {
+      out.writeByte(NAMES);
+      List<?> names = (List<?>)constant;
+      out.writeInt(names.size());
+      for (Object name : names) {
+        writeString(out, (String)name);
+      }
+    } else if (constant instanceof long[]) {
+      out.writeByte(POSITIONS);
+      long[] positions = (long[])constant;
+      out.writeInt(positions.length);
+      for (long position : positions) {
+        out.writeLong(position);
+      }
+    } else {
+      throw new IllegalArgumentException(
+          "Can't cache a " + constant.getClass().getSimpleName() + ".");
+    }
+  }
+
+  private static Object readConstant(ByteBuffer buffer) {
+    byte tag = buffer.get();
+    switch (tag) {
+      case NIL: return null;
+      case NUMBER: return buffer.getDouble();
+      case STRING: return readString(buffer);
+      case BOOLEAN: return buffer.get() != 0;
+      case NAMES: {
+        int count = buffer.getInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          // Shared like the Parser's symbols.
+          names.add(readString(buffer).intern());
+        }
+        return names;
+      }
+      case POSITIONS: {
+        long[] positions = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(positions);
+        buffer.position(buffer.position() + positions.length * Long.BYTES);
+        return positions;
+      }
+      default:
+        throw new IllegalArgumentException("Unknown constant tag " + tag + ".");
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string)
+      throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int checksum(ByteBuffer body) {
+    CRC32C crc = new CRC32C();
+    crc.update(body);
+    return (int)crc.getValue();
+  }
+
+  private static byte[] key(String options, String source) {
+    return new StringBuilder(options.length() + 1 + source.length())
+        .append(options).append('\n').append(source)
+        .toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  // Sources whose names collide take turns in the one entry.
+  private Path entry(byte[] key) {
+    CRC32C crc = new CRC32C();
+    crc.update(key);
+    StringBuilder name = new StringBuilder()
+        .append(Long.toHexString(crc.getValue()))
+        .append('-')
+        .append(Integer.toHexString(key.length))
+        .append(SUFFIX);
+    return directory.resolve(name.toString());
+  }
+
+  private static FileTime lastModified(Path path) {
+    try {
+      return Files.getLastModifiedTime(path);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static void delete(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      // Another run got to it first.
+    }
+  }
+}
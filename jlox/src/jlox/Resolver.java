@@ -1,8 +1,12 @@
 package jlox;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Stack;
 
 
@@ -13,24 +17,46 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   private FunctionType currentFunction = FunctionType.NONE;
   private ClassType currentClass = ClassType.NONE;
   private boolean insideLoop = false;
+  // Local var declarations that are never assigned after their
+  // initializer, for the Optimizer.
+  private final Set<Stmt.Var> unassignedLocals =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+  // Names of globals that are assigned anywhere, for the Inliner.
+  private final Set<String> assignedGlobals;
+  private final boolean reportUnused;
   
   Resolver(Interpreter interpreter) {
+    this(interpreter, true);
+  }
+  
+  // Trees rewritten by the SSA passes are resolved again, and may no
+  // longer read every local.
+  Resolver(Interpreter interpreter, boolean reportUnused) {
+    this(interpreter, new HashSet<>(), reportUnused);
+  }
+  
+  private Resolver(Interpreter interpreter, Set<String> assignedGlobals,
+                   boolean reportUnused) {
     this.interpreter = interpreter;
+    this.assignedGlobals = assignedGlobals;
+    this.reportUnused = reportUnused;
   }
   
   private class Variable {
     VariableState state;
-    Token declaredName;
+    long position;
     // order of declaration in scopes is always the same as you can't 
     // conditionally declare a variable in the same scope, e.g.
     // if (a > 5) var b = 5;
     // is not allowed, therefore each variable can have a unique index
     // in it's respective environment
     int environmentIndex; 
+    Stmt.Var declaration; // null for other kinds of declarations
+    boolean assigned = false;
     
-    Variable(Token declaredName, VariableState state, int environmentIndex) {
+    Variable(long position, VariableState state, int environmentIndex) {
       this.state = state;
-      this.declaredName = declaredName;
+      this.position = position;
       this.environmentIndex = environmentIndex;
     }
   }
@@ -54,13 +80,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     SUBCLASS
   }
   
+  Set<Stmt.Var> unassignedLocals() {
+    return unassignedLocals;
+  }
+  
+  Set<String> assignedGlobals() {
+    return assignedGlobals;
+  }
+  
   void resolve(List<Stmt> statements) {
     for (Stmt statement : statements) {
       resolve(statement);
     }
   }
   
-  private void resolve(Stmt stmt) {
+  void resolve(Stmt stmt) {
     stmt.accept(this);
   }
   
@@ -75,58 +109,97 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   private void endScope() {
     Map<String, Variable> scope = scopes.pop();
     for (Map.Entry<String, Variable> entry : scope.entrySet()) {
-      if (entry.getValue().state != VariableState.READ) {
-        Lox.error(entry.getValue().declaredName, "Local variable is never used");
+      Variable variable = entry.getValue();
+      if (reportUnused && variable.state != VariableState.READ) {
+        Lox.error(variable.position, "Local variable is never used");
+      }
+      if (variable.declaration != null && !variable.assigned) {
+        unassignedLocals.add(variable.declaration);
       }
     }
   }
   
-  private void declare(Token name) {
+  private void declare(String name, long position) {
     if (scopes.isEmpty()) return;
     
     Map<String, Variable> scope = scopes.peek();
-    if (scope.containsKey(name.lexeme)) {
-      Lox.error(name, "Variable redeclaration is not allowed.");
+    if (scope.containsKey(name)) {
+      Lox.error(position, "Variable redeclaration is not allowed.");
     }
-    scope.put(name.lexeme, new Variable(name, VariableState.DECLARED, scope.size()));
+    scope.put(name, new Variable(position, VariableState.DECLARED, scope.size()));
   }
  
 
-  private void define(Token name) {
+  private void define(String name) {
     if (scopes.isEmpty()) return;
-    scopes.peek().get(name.lexeme).state = VariableState.DEFINED;
+    scopes.peek().get(name).state = VariableState.DEFINED;
   }
   
-  private void resolveLocal(Expr expr, Token name, boolean isRead) {
+  private void resolveLocal(Expr expr, String name, boolean isRead) {
     for (int i = scopes.size() - 1; i >= 0; i--) {
       Map<String, Variable> scope = scopes.get(i);
-      if (scope.containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i, scope.get(name.lexeme).environmentIndex);
+      if (scope.containsKey(name)) {
+        interpreter.resolve(expr, scopes.size() - 1 - i, scope.get(name).environmentIndex);
         
         if (isRead) {
-          scopes.get(i).get(name.lexeme).state = VariableState.READ;
+          scopes.get(i).get(name).state = VariableState.READ;
+        } else {
+          scopes.get(i).get(name).assigned = true;
         }
         return;
       }
     }
+    
+    if (!isRead) assignedGlobals.add(name);
   }
   
   private void resolveFunction(
-      List<Token> params, List<Stmt> body, FunctionType type) {
+      List<String> params, long[] paramPositions, List<Stmt> body,
+      FunctionType type) {
+    if (body instanceof LazyBody && !((LazyBody)body).isMaterialized()) {
+      deferFunction(params, paramPositions, (LazyBody)body, type);
+      return;
+    }
+    
     FunctionType enclosingFunction = currentFunction;
     currentFunction = type;
+    // A jump in the body can't leave a loop around the declaration.
+    boolean insideEnclosingLoop = insideLoop;
+    insideLoop = false;
     
     beginScope();
-    for (Token param : params) {
-      declare(param);
-      define(param);
+    for (int i = 0; i < params.size(); i++) {
+      declare(params.get(i), paramPositions[i]);
+      define(params.get(i));
     }
     resolve(body);
     endScope();
     
+    insideLoop = insideEnclosingLoop;
     currentFunction = enclosingFunction;
   }
 
+  // Resolves the body later, once it has been parsed, in a copy of the
+  // scopes that are visible at the declaration.
+  private void deferFunction(
+      List<String> params, long[] paramPositions, LazyBody body,
+      FunctionType type) {
+    Resolver deferred = new Resolver(interpreter, assignedGlobals,
+        reportUnused);
+    for (Map<String, Variable> scope : scopes) {
+      deferred.scopes.push(new HashMap<>(scope));
+      // The body may assign them after their scope has ended here.
+      for (Variable variable : scope.values()) {
+        variable.assigned = true;
+      }
+    }
+    deferred.currentClass = currentClass;
+    
+    body.deferResolution(
+        statements -> deferred.resolveFunction(
+            params, paramPositions, statements, type));
+  }
+
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
     beginScope();
@@ -140,12 +213,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
     
-    declare(stmt.name);
+    declare(stmt.name, stmt.position);
     define(stmt.name);
     
     if (stmt.superclass != null &&
-        stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-      Lox.error(stmt.superclass.name, 
+        stmt.name.equals(stmt.superclass.name)) {
+      Lox.error(stmt.superclass.position, 
           "A class can't inherit from itself.");
     }
     
@@ -153,25 +226,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       currentClass = ClassType.SUBCLASS;
       resolve(stmt.superclass);
       beginScope();
-      scopes.peek().put("super", new Variable(stmt.name, VariableState.READ, 0));
+      scopes.peek().put("super", new Variable(stmt.position, VariableState.READ, 0));
     }
     
     beginScope();
     
     for (Stmt.Function method : stmt.staticMethods) {
       FunctionType type = FunctionType.METHOD;
-      resolveFunction(method.params, method.body, type);
+      resolveFunction(method.params, method.paramPositions, method.body, type);
     }
     
-    scopes.peek().put("this", new Variable(stmt.name, VariableState.READ, 0)); // So we don't get unused variable errors
+    scopes.peek().put("this", new Variable(stmt.position, VariableState.READ, 0)); // So we don't get unused variable errors
     
     for (Stmt.Function method : stmt.methods) {
       FunctionType type = FunctionType.METHOD;
       
-      if (method.name.lexeme.equals("init")) {
+      if (method.name.equals("init")) {
         type = FunctionType.INITIALIZER;
       }
-      resolveFunction(method.params, method.body, type);
+      resolveFunction(method.params, method.paramPositions, method.body, type);
     }
     
     endScope();
@@ -185,14 +258,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitSuperExpr(Expr.Super expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, 
+      Lox.error(expr.position, 
           "Can't use 'super' outside of a class.");
     } else if (currentClass != ClassType.SUBCLASS) {
-      Lox.error(expr.keyword, 
+      Lox.error(expr.position, 
           "Can't use 'super' in a class with no superclass");
     }
     
-    resolveLocal(expr, expr.keyword, true);
+    resolveLocal(expr, "super", true);
     return null;
   }
 
@@ -204,10 +277,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    declare(stmt.name);
+    declare(stmt.name, stmt.position);
     define(stmt.name);
     
-    resolveFunction(stmt.params, stmt.body, FunctionType.FUNCTION);
+    resolveFunction(stmt.params, stmt.paramPositions, stmt.body,
+        FunctionType.FUNCTION);
     return null;
   }
 
@@ -227,7 +301,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
+    declare(stmt.name, stmt.position);
+    if (!scopes.isEmpty()) {
+      scopes.peek().get(stmt.name).declaration = stmt;
+    }
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -241,6 +318,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     insideLoop = true;
     resolve(stmt.condition);
     resolve(stmt.body);
+    insideLoop = insideEnclosingLoop;
     return null;
     
   }
@@ -248,6 +326,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitForStmt(Stmt.For stmt) {
     boolean insideEnclosingLoop = insideLoop;
+    insideLoop = true;
     resolve(stmt.condition);
     resolve(stmt.body);
     resolve(stmt.increment);
@@ -257,19 +336,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitJumpStmt(Stmt.Jump stmt) {
-    if (stmt.keyword.type == TokenType.RETURN) {
+    if (stmt.keyword == TokenType.RETURN) {
       if (currentFunction == FunctionType.NONE) {
-        Lox.error(stmt.keyword, "Can't return from outside of a function body.");
+        Lox.error(stmt.position, "Can't return from outside of a function body.");
       } else if (currentFunction == FunctionType.INITIALIZER
                  && stmt.value != null) {
-        Lox.error(stmt.keyword, "Can't return a value from an initializer");
+        Lox.error(stmt.position, "Can't return a value from an initializer");
       }
     } else if (
-        stmt.keyword.type == TokenType.CONTINUE || 
-        stmt.keyword.type == TokenType.BREAK) {
+        stmt.keyword == TokenType.CONTINUE || 
+        stmt.keyword == TokenType.BREAK) {
        if (!insideLoop) {
-         Lox.error(stmt.keyword,
-             "Can't use " + stmt.keyword.lexeme 
+         Lox.error(stmt.position,
+             "Can't use " + stmt.keyword.name().toLowerCase() 
              + " statement outside of loop body");
        }
     }
@@ -353,12 +432,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitThisExpr(Expr.This expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword,
+      Lox.error(expr.position,
           "Can't use 'this' outside of a class body");
       return null;
     }
     
-    resolveLocal(expr, expr.keyword, true);
+    resolveLocal(expr, "this", true);
     return null;
   }
   
@@ -371,9 +450,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
     if (!scopes.isEmpty() && 
-        scopes.peek().containsKey(expr.name.lexeme) &&
-        scopes.peek().get(expr.name.lexeme).state == VariableState.DECLARED) {
-      Lox.error(expr.name, "Can't read local variable in its own initializer");
+        scopes.peek().containsKey(expr.name) &&
+        scopes.peek().get(expr.name).state == VariableState.DECLARED) {
+      Lox.error(expr.position, "Can't read local variable in its own initializer");
     }
     
     resolveLocal(expr, expr.name, true);
@@ -382,8 +461,53 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitLambdaExpr(Expr.Lambda expr) {
-    resolveFunction(expr.params, expr.body, FunctionType.FUNCTION);
+    resolveFunction(expr.params, expr.paramPositions, expr.body,
+        FunctionType.FUNCTION);
+    return null;
+  }
+
+  @Override
+  public Void visitInlineExpr(Expr.Inline expr) {
+    // The body is resolved with the function it was taken from.
+    resolve(expr.call);
+    return null;
+  }
+
+  @Override
+  public Void visitIncrementLocalExpr(Expr.IncrementLocal expr) {
+    resolveLocal(expr, expr.name, true);
+    resolveLocal(expr, expr.name, false);
+    return null;
+  }
+
+  @Override
+  public Void visitCompareLocalExpr(Expr.CompareLocal expr) {
+    resolveLocal(expr, expr.name, true);
+    return null;
+  }
+
+  @Override
+  public Void visitGetThisExpr(Expr.GetThis expr) {
+    resolveLocal(expr, "this", true);
     return null;
   }
 
+  @Override
+  public Void visitNumericExpr(Expr.Numeric expr) {
+    if (expr.left != null) resolve(expr.left);
+    resolve(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitCountedExpr(Expr.Counted expr) {
+    resolve(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitCountedStmt(Stmt.Counted stmt) {
+    resolve(stmt.statement);
+    return null;
+  }
 }
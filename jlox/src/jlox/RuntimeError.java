@@ -1,10 +1,10 @@
 package jlox;
 
 public class RuntimeError extends RuntimeException {
-  final Token token;
+  final long position;
   
-  RuntimeError(Token token, String message) {
+  RuntimeError(long position, String message) {
     super(message);
-    this.token = token;
+    this.position = position;
   }
 }
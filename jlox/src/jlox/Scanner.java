@@ -1,6 +1,8 @@
 package jlox;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,6 +12,12 @@ import static jlox.TokenType.*;
 public class Scanner {
     private final String source;
     private final List<Token> tokens = new ArrayList<>();
+    private TokenRingBuffer pipe = null;
+    // Tokens scanned but not yet taken from stream().
+    private Deque<Token> pending = null;
+    private boolean errorsAsTokens = false;
+    private boolean unterminated = false;
+    // Null while streaming, which keeps nothing of the lines behind it.
     private List<String> linesText = new ArrayList<>();
     private int start = 0;
     private int current = 0;
@@ -43,7 +51,14 @@ public class Scanner {
     }
     
     Scanner(String source) {
+      this(source, 1, 0);
+    }
+    
+    // Scans a fragment of a larger source, starting at the given position.
+    Scanner(String source, int line, int column) {
       this.source = source;
+      this.line = line;
+      this.column = column - 1;
     }
     
     List<String> getLines() {
@@ -51,15 +66,70 @@ public class Scanner {
     }
     
     List<Token> scanTokens() {
-      while (!isAtEnd()) {
-        start = current;
-        scanToken();
-      }
-      linesText.add(source.substring(lineStart, current));
-      tokens.add(new Token(EOF, "", null, line, column));
+      scan();
       return tokens;
     }
     
+    // Like scanTokens, but errors are returned in place as ERROR tokens
+    // instead of being reported.
+    List<Token> scanTokensWithErrors() {
+      errorsAsTokens = true;
+      return scanTokens();
+    }
+    
+    // Whether the source ended inside a string or block comment.
+    boolean isUnterminated() {
+      return unterminated;
+    }
+    
+    // Publishes tokens to the pipe instead of collecting them, so the
+    // scanner can run on its own thread ahead of the parser. Errors are
+    // published as ERROR tokens for the parser to report in order.
+    void scanInto(TokenRingBuffer pipe) {
+      this.pipe = pipe;
+      scan();
+    }
+    
+    // Scans a token at a time as the parser takes them, on its thread,
+    // so only the tokens it holds are kept. Errors are returned as ERROR
+    // tokens, as with scanInto.
+    TokenStream stream() {
+      pending = new ArrayDeque<>();
+      linesText = null;
+      return () -> {
+        while (pending.isEmpty()) {
+          if (isAtEnd()) {
+            end();
+          } else {
+            start = current;
+            scanToken();
+          }
+        }
+        return pending.poll();
+      };
+    }
+    
+    private void scan() {
+      try {
+        while (!isAtEnd()) {
+          start = current;
+          scanToken();
+        }
+      } finally {
+        // Always end with EOF, the parser would wait forever otherwise.
+        end();
+      }
+    }
+    
+    private void end() {
+      addLine(current);
+      emit(new Token(EOF, "", null, line, column));
+    }
+    
+    private void addLine(int end) {
+      if (linesText != null) linesText.add(source.substring(lineStart, end));
+    }
+    
     private void scanToken() {
         char c = advance();
         switch (c) {
@@ -98,7 +168,7 @@ public class Scanner {
             case '\n':
                 line++;
                 column = -1;
-                linesText.add(source.substring(lineStart, current - 1));
+                addLine(current - 1);
                 lineStart = current;
                 break;
                 
@@ -110,7 +180,7 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, column, "Unexpected character: " + c);
+                    error("Unexpected character: " + c);
                 }
                 break;
         }
@@ -144,7 +214,8 @@ public class Scanner {
         }
         
         if (isAtEnd()) {
-            Lox.error(line, column, "Unterminated string.");
+            unterminated = true;
+            error("Unterminated string.");
             return;
         }
         
@@ -166,7 +237,7 @@ public class Scanner {
                 if (peek() == '\n') { 
                     line++;
                     column = -1;
-                    linesText.add(source.substring(lineStart, current - 1));
+                    addLine(current - 1);
                     lineStart = current;
                 } else if (peek() == '/' && peekNext() == '*') {
                     nest_lvl++;
@@ -185,7 +256,8 @@ public class Scanner {
                 }
             }
             
-            Lox.error(line, column, "Unterminated block comment");
+            unterminated = true;
+            error("Unterminated block comment");
         } else {
             addToken(SLASH);
         }
@@ -239,6 +311,24 @@ public class Scanner {
     
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line, column - text.length() + 1));
+        emit(new Token(type, text, literal, line, column - text.length() + 1));
+    }
+    
+    private void emit(Token token) {
+        if (pipe != null) {
+            pipe.put(token);
+        } else if (pending != null) {
+            pending.add(token);
+        } else {
+            tokens.add(token);
+        }
+    }
+    
+    private void error(String message) {
+        if (pipe != null || pending != null || errorsAsTokens) {
+            emit(new Token(ERROR, message, null, line, column));
+        } else {
+            Lox.error(line, column, message);
+        }
     }
 }
@@ -0,0 +1,62 @@
+package jlox;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Base for passes that also rewrite the return expressions Inline nodes
+// share with the functions they inline. A function returning a single
+// expression and the Inline nodes calling it are given the same rewritten
+// expression, which is added to the inlined bodies for the FlatAstWriter
+// to share.
+class SharedBodyRewriter extends TreeRewriter {
+  private final Set<Expr> inlinedBodies;
+  private final Map<Expr, Expr> rewrittenBodies = new IdentityHashMap<>();
+
+  SharedBodyRewriter(Interpreter interpreter, Set<Expr> inlinedBodies) {
+    super(interpreter);
+    this.inlinedBodies = inlinedBodies;
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    if (!isSingleReturn(stmt.body)) return super.visitFunctionStmt(stmt);
+
+    Stmt.Jump jump = (Stmt.Jump)stmt.body.get(0);
+    Expr value = rewriteBody(jump.value);
+    if (value == jump.value) return stmt;
+    List<Stmt> body = Collections.singletonList(
+        new Stmt.Jump(jump.keyword, jump.position, value));
+    return new Stmt.Function(stmt.name, stmt.position, stmt.params,
+        stmt.paramPositions, body);
+  }
+
+  private static boolean isSingleReturn(List<Stmt> body) {
+    if (body instanceof LazyBody || body.size() != 1) return false;
+    if (!(body.get(0) instanceof Stmt.Jump)) return false;
+    Stmt.Jump jump = (Stmt.Jump)body.get(0);
+    return jump.keyword == TokenType.RETURN && jump.value != null;
+  }
+
+  @Override
+  public Expr visitInlineExpr(Expr.Inline expr) {
+    Expr.Call call = (Expr.Call)rewrite(expr.call);
+    Expr body = rewriteBody(expr.body);
+    if (call == expr.call && body == expr.body) return expr;
+    return new Expr.Inline(call, body);
+  }
+
+  // Streamed statements are rewritten one at a time, so the bodies are
+  // kept for Inline nodes in later statements.
+  private Expr rewriteBody(Expr body) {
+    Expr rewritten = rewrittenBodies.get(body);
+    if (rewritten == null) {
+      rewritten = rewrite(body);
+      rewrittenBodies.put(body, rewritten);
+      if (inlinedBodies.contains(body)) inlinedBodies.add(rewritten);
+    }
+    return rewritten;
+  }
+}
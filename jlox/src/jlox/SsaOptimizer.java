@@ -0,0 +1,114 @@
+package jlox;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+// The SSA middle end, run after the DeadCodeEliminator: every function,
+// method and lambda body, innermost first, is built into Ir, optimized by
+// loop-invariant code motion, common subexpression elimination and dead
+// store elimination, in that order, and lowered back into the tree by
+// IrLowering. Bodies the IrBuilder doesn't support are left as they are,
+// and so are the bodies Inline nodes share.
+//
+// Rewritten trees must be resolved again before they are run.
+class SsaOptimizer extends TreeRewriter implements Pass {
+  private final Set<Expr> inlinedBodies;
+  private final boolean dump;
+
+  SsaOptimizer(Interpreter interpreter, Set<Expr> inlinedBodies,
+               boolean dump) {
+    super(interpreter);
+    this.inlinedBodies = inlinedBodies;
+    this.dump = dump;
+  }
+
+  @Override
+  public String name() {
+    return "ssa";
+  }
+
+  @Override
+  public List<String> dependencies() {
+    return Collections.singletonList("dce");
+  }
+
+  @Override
+  public boolean invalidatesResolution() {
+    return true;
+  }
+
+  @Override
+  public List<Stmt> run(List<Stmt> statements) {
+    return optimize(statements);
+  }
+
+  @Override
+  public Stmt run(Stmt statement) {
+    return optimize(statement);
+  }
+
+  List<Stmt> optimize(List<Stmt> statements) {
+    return rewrite(statements);
+  }
+
+  Stmt optimize(Stmt statement) {
+    return rewrite(statement);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Stmt.Function function = (Stmt.Function)super.visitFunctionStmt(stmt);
+    List<Stmt> body = optimizeBody(function.name, function.params,
+        function.body, function.position);
+    if (body == function.body) return function;
+    return new Stmt.Function(function.name, function.position,
+        function.params, function.paramPositions, body);
+  }
+
+  @Override
+  public Expr visitLambdaExpr(Expr.Lambda expr) {
+    Expr.Lambda lambda = (Expr.Lambda)super.visitLambdaExpr(expr);
+    long position = lambda.paramPositions.length > 0
+        ? lambda.paramPositions[0] : 0;
+    List<Stmt> body = optimizeBody("lambda", lambda.params, lambda.body,
+        position);
+    if (body == lambda.body) return lambda;
+    return new Expr.Lambda(lambda.position, lambda.params, lambda.paramPositions, body);
+  }
+
+  private List<Stmt> optimizeBody(String name, List<String> params,
+                                  List<Stmt> body, long position) {
+    if (isInlined(body)) return body;
+
+    IrBuilder builder;
+    try {
+      builder = IrBuilder.build(name, params, body);
+    } catch (IrBuilder.Unsupported unsupported) {
+      return body;
+    }
+
+    Ir.Function function = builder.function();
+    LoopInvariantCodeMotion licm = new LoopInvariantCodeMotion(function);
+    licm.run();
+    CommonSubexpressionElimination cse =
+        new CommonSubexpressionElimination(function);
+    cse.run();
+    DeadStoreElimination dse = new DeadStoreElimination(function);
+    dse.run();
+    if (dump) System.err.print(function);
+
+    if (licm.hoisted.isEmpty() && cse.replacements.isEmpty() &&
+        dse.deadStores.isEmpty()) {
+      return body;
+    }
+    return new IrLowering(interpreter, function, builder.values,
+        licm.hoisted, cse.replacements, dse.deadStores).lower(body, position);
+  }
+
+  private boolean isInlined(List<Stmt> body) {
+    if (body instanceof LazyBody || body.size() != 1) return false;
+    if (!(body.get(0) instanceof Stmt.Jump)) return false;
+    return inlinedBodies.contains(((Stmt.Jump)body.get(0)).value);
+  }
+}
@@ -14,9 +14,11 @@ abstract class Stmt {
     R visitWhileStmt(While stmt);
     R visitForStmt(For stmt);
     R visitJumpStmt(Jump stmt);
+    R visitCountedStmt(Counted stmt);
   }
   static class Block extends Stmt {
-    Block(List<Stmt> statements) {
+    Block(long position, List<Stmt> statements) {
+      this.position = position;
       this.statements = statements;
     }
 
@@ -25,11 +27,13 @@ abstract class Stmt {
       return visitor.visitBlockStmt(this);
     }
 
+    final long position;
     final List<Stmt> statements;
   }
   static class Class extends Stmt {
-    Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods) {
+    Class(String name, long position, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods) {
       this.name = name;
+      this.position = position;
       this.superclass = superclass;
       this.methods = methods;
       this.staticMethods = staticMethods;
@@ -40,7 +44,8 @@ abstract class Stmt {
       return visitor.visitClassStmt(this);
     }
 
-    final Token name;
+    final String name;
+    final long position;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
     final List<Stmt.Function> staticMethods;
@@ -58,9 +63,11 @@ abstract class Stmt {
     final Expr expression;
   }
   static class Function extends Stmt {
-    Function(Token name, List<Token> params, List<Stmt> body) {
+    Function(String name, long position, List<String> params, long[] paramPositions, List<Stmt> body) {
       this.name = name;
+      this.position = position;
       this.params = params;
+      this.paramPositions = paramPositions;
       this.body = body;
     }
 
@@ -69,8 +76,10 @@ abstract class Stmt {
       return visitor.visitFunctionStmt(this);
     }
 
-    final Token name;
-    final List<Token> params;
+    final String name;
+    final long position;
+    final List<String> params;
+    final long[] paramPositions;
     final List<Stmt> body;
   }
   static class If extends Stmt {
@@ -102,8 +111,9 @@ abstract class Stmt {
     final Expr expression;
   }
   static class Var extends Stmt {
-    Var(Token name, Expr initializer) {
+    Var(String name, long position, Expr initializer) {
       this.name = name;
+      this.position = position;
       this.initializer = initializer;
     }
 
@@ -112,7 +122,8 @@ abstract class Stmt {
       return visitor.visitVarStmt(this);
     }
 
-    final Token name;
+    final String name;
+    final long position;
     final Expr initializer;
   }
   static class While extends Stmt {
@@ -146,8 +157,9 @@ abstract class Stmt {
     final Expr increment;
   }
   static class Jump extends Stmt {
-    Jump(Token keyword, Expr value) {
+    Jump(TokenType keyword, long position, Expr value) {
       this.keyword = keyword;
+      this.position = position;
       this.value = value;
     }
 
@@ -156,9 +168,24 @@ abstract class Stmt {
       return visitor.visitJumpStmt(this);
     }
 
-    final Token keyword;
+    final TokenType keyword;
+    final long position;
     final Expr value;
   }
+  static class Counted extends Stmt {
+    Counted(int slot, Stmt statement) {
+      this.slot = slot;
+      this.statement = statement;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCountedStmt(this);
+    }
+
+    final int slot;
+    final Stmt statement;
+  }
 
   abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,68 @@
+package jlox;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded single-producer/single-consumer queue handing tokens from a
+// scanner thread to the parser without locks. Each side only writes its
+// own counter and caches the other's, so the shared counters are read only
+// when the buffer looks full (producer) or empty (consumer).
+class TokenRingBuffer implements TokenStream {
+  private static final int SPINS_BEFORE_PARKING = 100;
+
+  private final Token[] buffer;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong(); // next slot to take
+  private final AtomicLong tail = new AtomicLong(); // next slot to put
+  private long cachedHead = 0; // producer's view of head
+  private long cachedTail = 0; // consumer's view of tail
+
+  TokenRingBuffer(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of two.");
+    }
+    buffer = new Token[capacity];
+    mask = capacity - 1;
+  }
+
+  // Producer side.
+  void put(Token token) {
+    long position = tail.get();
+    int spins = 0;
+    while (position - cachedHead >= buffer.length) {
+      cachedHead = head.get();
+      if (position - cachedHead < buffer.length) break;
+      spins = idle(spins);
+    }
+
+    buffer[(int)position & mask] = token;
+    tail.lazySet(position + 1);
+  }
+
+  // Consumer side.
+  @Override
+  public Token next() {
+    long position = head.get();
+    int spins = 0;
+    while (position >= cachedTail) {
+      cachedTail = tail.get();
+      if (position < cachedTail) break;
+      spins = idle(spins);
+    }
+
+    int index = (int)position & mask;
+    Token token = buffer[index];
+    buffer[index] = null;
+    head.lazySet(position + 1);
+    return token;
+  }
+
+  private static int idle(int spins) {
+    if (spins < SPINS_BEFORE_PARKING) {
+      Thread.onSpinWait();
+    } else {
+      LockSupport.parkNanos(1000);
+    }
+    return spins + 1;
+  }
+}
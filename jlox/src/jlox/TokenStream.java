@@ -0,0 +1,6 @@
+package jlox;
+
+interface TokenStream {
+  // Never called again after it has returned the EOF token.
+  Token next();
+}
@@ -20,5 +20,9 @@ enum TokenType {
     PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
     BREAK, CONTINUE,
     
+    // Scanner error, lexeme is the message. Only produced when errors are
+    // not reported right away, see Scanner.scanInto.
+    ERROR,
+    
     EOF
 }
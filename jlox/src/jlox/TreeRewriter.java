@@ -0,0 +1,295 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Base for passes that rewrite parts of a resolved tree. By default every
+// node is returned as is. A node is copied only when one of its children
+// was rewritten, and a copied Assign keeps the resolution of the node it
+// replaces. Statements rewritten to null are dropped from their list, or
+// replaced with an empty block where a statement is required.
+class TreeRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  protected final Interpreter interpreter;
+
+  TreeRewriter(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  List<Stmt> rewrite(List<Stmt> statements) {
+    List<Stmt> rewritten = new ArrayList<>(statements.size());
+    boolean changed = false;
+    for (Stmt statement : statements) {
+      Stmt result = rewrite(statement);
+      if (result != null) rewritten.add(result);
+      changed |= result != statement;
+    }
+    return changed ? rewritten : statements;
+  }
+
+  Stmt rewrite(Stmt stmt) {
+    return stmt == null ? null : stmt.accept(this);
+  }
+
+  Expr rewrite(Expr expr) {
+    return expr == null ? null : expr.accept(this);
+  }
+
+  // Lazy bodies are left for the Resolver to see once parsed.
+  List<Stmt> rewriteBody(List<Stmt> body) {
+    return body instanceof LazyBody ? body : rewrite(body);
+  }
+
+  private Stmt rewriteNested(Stmt stmt) {
+    Stmt result = rewrite(stmt);
+    return result != null ? result : new Stmt.Block(Position.NONE, new ArrayList<>());
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    List<Stmt> statements = rewrite(stmt.statements);
+    return statements == stmt.statements ? stmt : new Stmt.Block(stmt.position, statements);
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = rewriteMethods(stmt.methods);
+    List<Stmt.Function> staticMethods = rewriteMethods(stmt.staticMethods);
+    if (methods == stmt.methods && staticMethods == stmt.staticMethods) {
+      return stmt;
+    }
+    return new Stmt.Class(stmt.name, stmt.position, stmt.superclass,
+        methods, staticMethods);
+  }
+
+  List<Stmt.Function> rewriteMethods(List<Stmt.Function> methods) {
+    List<Stmt.Function> rewritten = new ArrayList<>(methods.size());
+    boolean changed = false;
+    for (Stmt.Function method : methods) {
+      Stmt.Function result = (Stmt.Function)visitFunctionStmt(method);
+      rewritten.add(result);
+      changed |= result != method;
+    }
+    return changed ? rewritten : methods;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = rewrite(stmt.expression);
+    return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    List<Stmt> body = rewriteBody(stmt.body);
+    if (body == stmt.body) return stmt;
+    return new Stmt.Function(stmt.name, stmt.position, stmt.params,
+        stmt.paramPositions, body);
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = rewrite(stmt.condition);
+    Stmt thenBranch = rewriteNested(stmt.thenBranch);
+    Stmt elseBranch = rewrite(stmt.elseBranch);
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+        elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = rewrite(stmt.expression);
+    return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Expr initializer = rewrite(stmt.initializer);
+    if (initializer == stmt.initializer) return stmt;
+    return new Stmt.Var(stmt.name, stmt.position, initializer);
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = rewrite(stmt.condition);
+    Stmt body = rewriteNested(stmt.body);
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(condition, body);
+  }
+
+  @Override
+  public Stmt visitForStmt(Stmt.For stmt) {
+    Expr condition = rewrite(stmt.condition);
+    Stmt body = rewriteNested(stmt.body);
+    Expr increment = rewrite(stmt.increment);
+    if (condition == stmt.condition && body == stmt.body &&
+        increment == stmt.increment) {
+      return stmt;
+    }
+    return new Stmt.For(condition, body, increment);
+  }
+
+  @Override
+  public Stmt visitJumpStmt(Stmt.Jump stmt) {
+    Expr value = rewrite(stmt.value);
+    if (value == stmt.value) return stmt;
+    return new Stmt.Jump(stmt.keyword, stmt.position, value);
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = rewrite(expr.value);
+    if (value == expr.value) return expr;
+
+    Expr.Assign assign = new Expr.Assign(expr.name, expr.position, value);
+    interpreter.copyResolution(expr, assign);
+    return assign;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = rewrite(expr.left);
+    Expr right = rewrite(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, expr.position, right);
+  }
+
+  @Override
+  public Expr visitTernaryExpr(Expr.Ternary expr) {
+    Expr cond = rewrite(expr.cond);
+    Expr ifTrue = rewrite(expr.ifTrue);
+    Expr ifFalse = rewrite(expr.ifFalse);
+    if (cond == expr.cond && ifTrue == expr.ifTrue && ifFalse == expr.ifFalse) {
+      return expr;
+    }
+    return new Expr.Ternary(cond, ifTrue, ifFalse);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = rewrite(expr.expression);
+    return expression == expr.expression ? expr : new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = rewrite(expr.left);
+    Expr right = rewrite(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, expr.position, right);
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = rewrite(expr.right);
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, expr.position, right);
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = rewrite(expr.callee);
+    List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+    boolean changed = callee != expr.callee;
+    for (Expr argument : expr.arguments) {
+      Expr rewritten = rewrite(argument);
+      arguments.add(rewritten);
+      changed |= rewritten != argument;
+    }
+    return changed ? new Expr.Call(callee, expr.position, arguments) : expr;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = rewrite(expr.object);
+    if (object == expr.object) return expr;
+    return new Expr.Get(object, expr.name, expr.position);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = rewrite(expr.object);
+    Expr value = rewrite(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+    return new Expr.Set(object, expr.name, expr.position, value);
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitErroneousExpr(Expr.Erroneous expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLambdaExpr(Expr.Lambda expr) {
+    List<Stmt> body = rewriteBody(expr.body);
+    if (body == expr.body) return expr;
+    return new Expr.Lambda(expr.position, expr.params, expr.paramPositions, body);
+  }
+
+  @Override
+  public Expr visitInlineExpr(Expr.Inline expr) {
+    // The body belongs to the inlined function.
+    Expr call = rewrite(expr.call);
+    if (call == expr.call) return expr;
+    return new Expr.Inline((Expr.Call)call, expr.body);
+  }
+
+  @Override
+  public Expr visitIncrementLocalExpr(Expr.IncrementLocal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitCompareLocalExpr(Expr.CompareLocal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitGetThisExpr(Expr.GetThis expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitNumericExpr(Expr.Numeric expr) {
+    Expr left = rewrite(expr.left);
+    Expr right = rewrite(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Numeric(left, expr.operator, expr.position, right);
+  }
+
+  @Override
+  public Expr visitCountedExpr(Expr.Counted expr) {
+    Expr expression = rewrite(expr.expression);
+    if (expression == expr.expression) return expr;
+    return new Expr.Counted(expr.slot, expression);
+  }
+
+  @Override
+  public Stmt visitCountedStmt(Stmt.Counted stmt) {
+    Stmt statement = rewrite(stmt.statement);
+    if (statement == stmt.statement) return stmt;
+    return statement == null ? null : new Stmt.Counted(stmt.slot, statement);
+  }
+}
@@ -0,0 +1,423 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Flow-sensitive type inference over the Ir of every body in a program,
+// the top-level code included, for the NumericSpecializer. Each value is
+// typed optimistically and the types are widened until nothing changes,
+// so loop-carried locals keep their type when every assignment agrees.
+//
+// When the whole program is known, top-level functions that are declared
+// once, never assigned and only ever called by name, with the right
+// number of arguments, get their parameter types from the arguments at
+// their call sites, and calls to them the type of what they return. The
+// bodies of all functions are analyzed again until no signature changes.
+// Parameters of any other function are unknown.
+final class TypeInference {
+  enum Type {
+    NONE, // nothing seen yet
+    NUMBER,
+    STRING,
+    BOOL,
+    INSTANCE,
+    UNKNOWN;
+
+    Type join(Type other) {
+      if (this == NONE || this == other) return other;
+      return other == NONE ? this : UNKNOWN;
+    }
+  }
+
+  private static class Signature {
+    final Stmt.Function function;
+    final Type[] params;
+    Type returns = Type.NONE;
+
+    Signature(Stmt.Function function) {
+      this.function = function;
+      this.params = new Type[function.params.size()];
+      Arrays.fill(params, Type.NONE);
+    }
+
+    void escape() {
+      Arrays.fill(params, Type.UNKNOWN);
+    }
+  }
+
+  private static class Body {
+    final IrBuilder builder;
+    final Signature signature;
+    final Map<Ir.Value, Type> types = new IdentityHashMap<>();
+
+    Body(IrBuilder builder, Signature signature) {
+      this.builder = builder;
+      this.signature = signature;
+    }
+  }
+
+  private final Interpreter interpreter;
+  private final Map<String, Signature> signatures = new HashMap<>();
+  private final Set<String> classes = new HashSet<>();
+  private final List<Body> bodies = new ArrayList<>();
+  private boolean changed;
+
+  // Binary and Unary nodes whose operands are always numbers.
+  final Set<Expr> numeric = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  TypeInference(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  void inferProgram(List<Stmt> statements, Set<String> assignedGlobals) {
+    declare(statements, assignedGlobals);
+    new Escapes().rewrite(statements);
+    analyze(statements);
+  }
+
+  // A streamed statement may be followed by any other, so nothing is
+  // known about the globals it calls.
+  void inferStatement(Stmt statement) {
+    analyze(Collections.singletonList(statement));
+  }
+
+  private void declare(List<Stmt> statements, Set<String> assignedGlobals) {
+    Map<String, Integer> declarations = new HashMap<>();
+    for (Stmt statement : statements) {
+      String name = declaredName(statement);
+      if (name != null) declarations.merge(name, 1, Integer::sum);
+    }
+
+    for (Stmt statement : statements) {
+      String name = declaredName(statement);
+      if (name == null || declarations.get(name) != 1) continue;
+      // Natives may be called before the declaration runs.
+      if (assignedGlobals.contains(name) ||
+          interpreter.globals.containsKey(name)) {
+        continue;
+      }
+
+      if (statement instanceof Stmt.Class) {
+        classes.add(name);
+      } else if (statement instanceof Stmt.Function &&
+                 !(((Stmt.Function)statement).body instanceof LazyBody)) {
+        signatures.put(name, new Signature((Stmt.Function)statement));
+      }
+    }
+  }
+
+  private static String declaredName(Stmt statement) {
+    if (statement instanceof Stmt.Function) {
+      return ((Stmt.Function)statement).name;
+    } else if (statement instanceof Stmt.Var) {
+      return ((Stmt.Var)statement).name;
+    } else if (statement instanceof Stmt.Class) {
+      return ((Stmt.Class)statement).name;
+    }
+    return null;
+  }
+
+  private void analyze(List<Stmt> statements) {
+    build("script", Collections.emptyList(), statements, null);
+    new Bodies().rewrite(statements);
+
+    changed = true;
+    while (changed) {
+      changed = false;
+      for (Body body : bodies) {
+        infer(body);
+      }
+    }
+
+    for (Body body : bodies) {
+      collectNumeric(body);
+    }
+  }
+
+  private void build(String name, List<String> params, List<Stmt> statements,
+                     Signature signature) {
+    try {
+      bodies.add(new Body(IrBuilder.build(name, params, statements),
+          signature));
+    } catch (IrBuilder.Unsupported unsupported) {
+      // Nothing is known about what the body passes or returns.
+      if (signature != null) signature.returns = Type.UNKNOWN;
+      new DirectCalls().rewriteBody(statements);
+    }
+  }
+
+  private Signature calledFunction(Expr.Call call) {
+    if (!(call.callee instanceof Expr.Variable)) return null;
+    Expr.Variable callee = (Expr.Variable)call.callee;
+    return isGlobal(callee) ? signatures.get(callee.name) : null;
+  }
+
+  private boolean isGlobal(Expr.Variable variable) {
+    return !interpreter.isResolvedLocal(variable);
+  }
+
+  private void infer(Body body) {
+    Ir.Function function = body.builder.function();
+    boolean changedTypes = true;
+    while (changedTypes) {
+      changedTypes = false;
+      for (Ir.Block block : function.blocks) {
+        // Values in unreachable blocks are never computed.
+        if (!block.isReachable()) continue;
+        for (Ir.Value phi : block.phis) {
+          changedTypes |= update(body, phi);
+        }
+        for (Ir.Value value : block.instructions) {
+          changedTypes |= update(body, value);
+        }
+      }
+    }
+  }
+
+  private boolean update(Body body, Ir.Value value) {
+    if (value.kind == Ir.Kind.RETURN) {
+      if (body.signature != null) {
+        Type type = value.operands.isEmpty()
+            ? Type.UNKNOWN : typeOf(body, value.operands.get(0));
+        widenReturn(body.signature, type);
+      }
+      return false;
+    }
+    if (value.kind == Ir.Kind.EFFECT && value.source != null) {
+      passArguments(body, value);
+    }
+
+    Type type = typeOf(body, value).join(transfer(body, value));
+    if (type == typeOf(body, value)) return false;
+    body.types.put(value, type);
+    return true;
+  }
+
+  private void widenReturn(Signature signature, Type type) {
+    Type returns = signature.returns.join(type);
+    if (returns == signature.returns) return;
+    signature.returns = returns;
+    changed = true;
+  }
+
+  private void passArguments(Body body, Ir.Value call) {
+    Expr.Call source = (Expr.Call)call.source;
+    Signature callee = calledFunction(source);
+    // Calls with the wrong number of arguments fail before the body runs.
+    if (callee == null || source.arguments.size() != callee.params.length) {
+      return;
+    }
+
+    // A call has its callee as its first operand, an inlined call not.
+    int first = call.label.equals("call") ? 1 : 0;
+    for (int i = 0; i < callee.params.length; i++) {
+      Type type = callee.params[i].join(
+          typeOf(body, call.operands.get(first + i)));
+      if (type == callee.params[i]) continue;
+      callee.params[i] = type;
+      changed = true;
+    }
+  }
+
+  private Type typeOf(Body body, Ir.Value value) {
+    switch (value.kind) {
+      case CONST: return typeOfConstant(value.constant);
+      case PARAM:
+        return body.signature == null
+            ? Type.UNKNOWN : body.signature.params[value.index];
+      default:
+        return body.types.getOrDefault(value, Type.NONE);
+    }
+  }
+
+  private static Type typeOfConstant(Object constant) {
+    if (constant instanceof Double) return Type.NUMBER;
+    if (constant instanceof String) return Type.STRING;
+    if (constant instanceof Boolean) return Type.BOOL;
+    return Type.UNKNOWN;
+  }
+
+  private Type transfer(Body body, Ir.Value value) {
+    switch (value.kind) {
+      case PHI: {
+        Type type = Type.NONE;
+        for (Ir.Value operand : value.operands) {
+          type = type.join(typeOf(body, operand));
+        }
+        return type;
+      }
+      case COPY:
+        return typeOf(body, value.operands.get(0));
+      case UNARY:
+        // A negation only completes on a number.
+        return value.operator == TokenType.MINUS ? Type.NUMBER : Type.BOOL;
+      case BINARY:
+        return typeOfBinary(value.operator,
+            typeOf(body, value.operands.get(0)),
+            typeOf(body, value.operands.get(1)));
+      case EFFECT:
+        return typeOfEffect(body, value);
+      default:
+        return Type.NONE;
+    }
+  }
+
+  private static Type typeOfBinary(TokenType operator, Type left, Type right) {
+    switch (operator) {
+      case MINUS:
+      case STAR:
+      case SLASH:
+        return Type.NUMBER;
+      case PLUS:
+        if (left == Type.STRING || right == Type.STRING) return Type.STRING;
+        if (left == Type.NONE || right == Type.NONE) return Type.NONE;
+        if (left == Type.NUMBER && right == Type.NUMBER) return Type.NUMBER;
+        return Type.UNKNOWN;
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+        return Type.BOOL;
+      default:
+        return Type.UNKNOWN;
+    }
+  }
+
+  private Type typeOfEffect(Body body, Ir.Value value) {
+    if (value.source instanceof Expr.Call) {
+      Expr.Call call = (Expr.Call)value.source;
+      Signature callee = calledFunction(call);
+      if (callee != null) return callee.returns;
+      if (call.callee instanceof Expr.Variable &&
+          isGlobal((Expr.Variable)call.callee) &&
+          classes.contains(((Expr.Variable)call.callee).name)) {
+        return Type.INSTANCE;
+      }
+      return Type.UNKNOWN;
+    }
+
+    if (value.label.equals("this")) return Type.INSTANCE;
+    // Assignments and setters evaluate to the value stored.
+    if (value.label.startsWith("store ") || value.label.startsWith("set ")) {
+      return typeOf(body, value.operands.get(value.operands.size() - 1));
+    }
+    return Type.UNKNOWN;
+  }
+
+  private void collectNumeric(Body body) {
+    for (Map.Entry<Expr, Ir.Value> entry : body.builder.values.entrySet()) {
+      Expr expr = entry.getKey();
+      Ir.Value value = entry.getValue();
+      if (expr instanceof Expr.Binary) {
+        if (!isNumericOperator(value.operator)) continue;
+        if (typeOf(body, value.operands.get(0)) != Type.NUMBER) continue;
+        if (typeOf(body, value.operands.get(1)) != Type.NUMBER) continue;
+        numeric.add(expr);
+      } else if (expr instanceof Expr.Unary) {
+        if (value.operator != TokenType.MINUS) continue;
+        if (typeOf(body, value.operands.get(0)) != Type.NUMBER) continue;
+        numeric.add(expr);
+      }
+    }
+  }
+
+  private static boolean isNumericOperator(TokenType operator) {
+    switch (operator) {
+      case MINUS:
+      case PLUS:
+      case STAR:
+      case SLASH:
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // Builds the Ir of every function, method and lambda body.
+  private class Bodies extends TreeRewriter {
+    Bodies() {
+      super(null);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+      Signature signature = signatures.get(stmt.name);
+      if (signature != null && signature.function != stmt) signature = null;
+      build(stmt.name, stmt.params, stmt.body, signature);
+      return super.visitFunctionStmt(stmt);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+      build("lambda", expr.params, expr.body, null);
+      return super.visitLambdaExpr(expr);
+    }
+  }
+
+  // Gives up on the parameters of functions called from a body that
+  // can't be analyzed. Nested bodies are analyzed on their own.
+  private class DirectCalls extends TreeRewriter {
+    DirectCalls() {
+      super(null);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+      return stmt;
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+      Signature callee = calledFunction(expr);
+      if (callee != null) callee.escape();
+      return super.visitCallExpr(expr);
+    }
+  }
+
+  // Gives up on the parameters of functions used other than as the
+  // callee of a call with the right number of arguments.
+  private class Escapes extends TreeRewriter {
+    Escapes() {
+      super(null);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+      Signature callee = calledFunction(expr);
+      if (callee == null) return super.visitCallExpr(expr);
+
+      if (callee.params.length != expr.arguments.size()) callee.escape();
+      for (Expr argument : expr.arguments) {
+        rewrite(argument);
+      }
+      return expr;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+      Signature signature = signatures.get(expr.name);
+      if (signature != null && isGlobal(expr)) {
+        signature.escape();
+      }
+      return expr;
+    }
+  }
+}
@@ -6,4 +6,10 @@
  *
  */
 module jlox {
-}
\ No newline at end of file
+	requires jdk.management;
+	requires jdk.httpserver;
+	requires jdk.jfr;
+
+	// For JMX to read the Metrics MXBean.
+	exports jlox to java.management;
+}
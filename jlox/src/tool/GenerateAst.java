@@ -2,8 +2,11 @@ package tool;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class GenerateAst {
   public static void main(String[] args) throws IOException {
@@ -12,37 +15,62 @@ public class GenerateAst {
       System.exit(64);
     }
     String outputDir = args[0];
-    defineAst(outputDir, "Expr",
-        Arrays.asList(
-            "Assign : Token name, Expr value",
-            "Binary : Expr left, Token operator, Expr right",
-            "Ternary : Expr cond, Expr ifTrue, Expr ifFalse",
-            "Grouping : Expr expression",
-            "Literal : Object value",
-            "Logical : Expr left, Token operator, Expr right",
-            "Unary: Token operator, Expr right",
-            "Call : Expr callee, Token paren, List<Expr> arguments",
-            "Get : Expr object, Token name",
-            "Set : Expr object, Token name, Expr value",
-            "Super : Token keyword, Token method",
-            "This : Token keyword",
-            "Erroneous: ExprErrType error_type",
-            "Variable: Token name",
-            "Lambda : List<Token> params, List<Stmt> body"
-            ));
-    defineAst(outputDir, "Stmt", Arrays.asList(
-        "Block : List<Stmt> statements",
-        "Class : Token name, Expr.Variable superclass," + 
+    List<String> exprTypes = Arrays.asList(
+        "Assign : String name, long position, Expr value",
+        "Binary : Expr left, TokenType operator, long position, Expr right",
+        "Ternary : Expr cond, Expr ifTrue, Expr ifFalse",
+        "Grouping : Expr expression",
+        "Literal : Object value",
+        "Logical : Expr left, TokenType operator, long position, Expr right",
+        "Unary: TokenType operator, long position, Expr right",
+        "Call : Expr callee, long position, List<Expr> arguments",
+        "Get : Expr object, String name, long position",
+        "Set : Expr object, String name, long position, Expr value",
+        "Super : long position, String method, long methodPosition",
+        "This : long position",
+        "Erroneous: ExprErrType error_type",
+        "Variable: String name, long position",
+        "Lambda : long position, List<String> params, long[] paramPositions, List<Stmt> body",
+        "Inline : Expr.Call call, Expr body", // body shared with the inlined function
+        // Operands proven to be numbers, so unchecked. left is null for negation.
+        "Numeric : Expr left, TokenType operator, long position, Expr right",
+        // Fused forms of common shapes, for locals only: name = name op
+        // constant, name op constant, and this.name.
+        "IncrementLocal : String name, long position, TokenType operator, double constant",
+        "CompareLocal : String name, long position, TokenType operator, double constant",
+        "GetThis : String name, long position",
+        // A call counted in a Heatmap slot.
+        "Counted : int slot, Expr expression"
+        );
+    List<String> stmtTypes = Arrays.asList(
+        "Block : long position, List<Stmt> statements",
+        "Class : String name, long position, Expr.Variable superclass," + 
         " List<Stmt.Function> methods, List<Stmt.Function> staticMethods",
         "Expression : Expr expression",
-        "Function : Token name, List<Token> params, List<Stmt> body",
+        "Function : String name, long position, List<String> params, long[] paramPositions, List<Stmt> body",
         "If : Expr condition, Stmt thenBranch, Stmt elseBranch",
         "Print : Expr expression",
-        "Var : Token name, Expr initializer",
+        "Var : String name, long position, Expr initializer",
         "While : Expr condition, Stmt body",
         "For : Expr condition, Stmt body, Expr increment", // increment needs to be run after "continue"
-        "Jump : Token keyword, Expr value"  // value for return stmt
-        ));
+        "Jump : TokenType keyword, long position, Expr value",  // value for return stmt
+        // A statement counted in a Heatmap slot.
+        "Counted : int slot, Stmt statement"
+        );
+    defineAst(outputDir, "Expr", exprTypes);
+    defineAst(outputDir, "Stmt", stmtTypes);
+    
+    // Fields only the flat AST has, filled in by FlatResolver.
+    Map<String, String> flatFields = new HashMap<>();
+    flatFields.put("Assign", "int depth, int index");
+    flatFields.put("Super", "int depth, int index");
+    flatFields.put("This", "int depth, int index");
+    flatFields.put("Variable", "int depth, int index");
+    flatFields.put("IncrementLocal", "int depth, int index");
+    flatFields.put("CompareLocal", "int depth, int index");
+    flatFields.put("GetThis", "int depth, int index");
+    defineFlatAst(outputDir, exprTypes, stmtTypes, flatFields);
+    defineFlatAstWriter(outputDir, exprTypes, stmtTypes);
   }
 
   private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
@@ -120,4 +148,372 @@ public class GenerateAst {
     writer.println("  }");
     
   }
+  
+  // Struct-of-arrays variant of the AST: every node is an int handle into
+  // one int arena holding its kind followed by its fields. Child nodes and
+  // lists are handles too, enums are ordinals, longs take two slots and
+  // other values are indexes into a constant table.
+  private static void defineFlatAst(
+      String outputDir, List<String> exprTypes, List<String> stmtTypes,
+      Map<String, String> flatFields) throws IOException {
+    String path = outputDir + "/FlatAst.java";
+    PrintWriter writer = new PrintWriter(path, "UTF-8");
+    
+    List<String[]> types = new ArrayList<>();
+    for (String type : exprTypes) types.add(new String[] {"Expr", type});
+    for (String type : stmtTypes) types.add(new String[] {"Stmt", type});
+    
+    writer.println("package jlox;");
+    writer.println();
+    writer.println("import java.util.ArrayList;");
+    writer.println("import java.util.Arrays;");
+    writer.println("import java.util.List;");
+    writer.println();
+    writer.println("class FlatAst {");
+    writer.println("  static final int NONE = -1;");
+    writer.println();
+    
+    // Node kinds.
+    for (int i = 0; i < types.size(); i++) {
+      String className = types.get(i)[1].split(":")[0].trim();
+      writer.println("  static final int " + kindName(className, types.get(i)[0]) +
+          " = " + i + ";");
+    }
+    
+    writer.println();
+    for (String enumType : ENUM_TYPES) {
+      writer.println("  private static final " + enumType + "[] " +
+          enumValues(enumType) + " = " + enumType + ".values();");
+    }
+    writer.println();
+    writer.println("  private int[] data = new int[256];");
+    writer.println("  private int size = 0;");
+    writer.println("  private final List<Object> constants = new ArrayList<>();");
+    writer.println();
+    writer.println("  FlatAst() {}");
+    writer.println();
+    writer.println("  // An arena and constant table saved earlier, see ProgramCache.");
+    writer.println("  FlatAst(int[] data, List<Object> constants) {");
+    writer.println("    this.data = data;");
+    writer.println("    this.size = data.length;");
+    writer.println("    this.constants.addAll(constants);");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int[] data() {");
+    writer.println("    return Arrays.copyOf(data, size);");
+    writer.println("  }");
+    writer.println();
+    writer.println("  List<Object> constants() {");
+    writer.println("    return constants;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int kind(int node) {");
+    writer.println("    return data[node];");
+    writer.println("  }");
+    writer.println();
+    writer.println("  // Number of ints in the arena.");
+    writer.println("  int size() {");
+    writer.println("    return size;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int constantCount() {");
+    writer.println("    return constants.size();");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int count(int list) {");
+    writer.println("    return data[list];");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int element(int list, int index) {");
+    writer.println("    return data[list + 1 + index];");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int addList(int[] elements) {");
+    writer.println("    int list = reserve(1 + elements.length);");
+    writer.println("    data[list] = elements.length;");
+    writer.println("    System.arraycopy(elements, 0, data, list + 1, elements.length);");
+    writer.println("    return list;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  // Drops the arena's spare capacity once the tree is complete.");
+    writer.println("  void trimToSize() {");
+    writer.println("    data = Arrays.copyOf(data, size);");
+    writer.println("  }");
+    writer.println();
+    writer.println("  private int reserve(int length) {");
+    writer.println("    if (size + length > data.length) {");
+    writer.println("      data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));");
+    writer.println("    }");
+    writer.println("    int start = size;");
+    writer.println("    size += length;");
+    writer.println("    return start;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  private int addConstant(Object value) {");
+    writer.println("    constants.add(value);");
+    writer.println("    return constants.size() - 1;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  private long longAt(int slot) {");
+    writer.println("    return ((long)data[slot] << 32) | (data[slot + 1] & 0xffffffffL);");
+    writer.println("  }");
+    writer.println();
+    writer.println("  private void putLong(int slot, long value) {");
+    writer.println("    data[slot] = (int)(value >>> 32);");
+    writer.println("    data[slot + 1] = (int)value;");
+    writer.println("  }");
+    
+    for (String[] type : types) {
+      String baseName = type[0];
+      String className = type[1].split(":")[0].trim();
+      String fieldList = type[1].split(":")[1].trim();
+      defineFlatType(writer, baseName, className, fieldList,
+          flatFields.get(className));
+    }
+    
+    writer.println("}");
+    writer.close();
+  }
+  
+  private static void defineFlatType(
+      PrintWriter writer, String baseName, String className,
+      String fieldList, String extraFieldList) {
+    String[] fields = fieldList.split(", ");
+    String[] extraFields = extraFieldList == null
+        ? new String[0] : extraFieldList.split(", ");
+    String prefix = Character.toLowerCase(className.charAt(0)) +
+        className.substring(1) + baseName;
+    
+    // Slot of each field, counting from the node's kind.
+    int[] slots = new int[fields.length];
+    int width = 1;
+    for (int i = 0; i < fields.length; i++) {
+      slots[i] = width;
+      width += fields[i].startsWith("long ") ? 2 : 1;
+    }
+    int extraStart = width;
+    width += extraFields.length;
+    
+    // Builder.
+    writer.println();
+    writer.println("  // " + className + " : " + fieldList);
+    List<String> parameters = new ArrayList<>();
+    for (String field : fields) {
+      String fieldType = field.split(" ")[0];
+      String name = field.split(" ")[1];
+      String parameterType = isHandle(fieldType) ? "int" : fieldType;
+      parameters.add(parameterType + " " + name);
+    }
+    writer.println("  int add" + className + baseName + "(" +
+        String.join(", ", parameters) + ") {");
+    writer.println("    int node = reserve(" + width + ");");
+    writer.println("    data[node] = " + kindName(className, baseName) + ";");
+    for (int i = 0; i < fields.length; i++) {
+      String fieldType = fields[i].split(" ")[0];
+      String name = fields[i].split(" ")[1];
+      if (fieldType.equals("long")) {
+        writer.println("    putLong(node + " + slots[i] + ", " + name + ");");
+      } else {
+        writer.println("    data[node + " + slots[i] + "] = " +
+            encode(fieldType, name) + ";");
+      }
+    }
+    for (int i = 0; i < extraFields.length; i++) {
+      writer.println("    data[node + " + (extraStart + i) + "] = NONE;");
+    }
+    writer.println("    return node;");
+    writer.println("  }");
+    
+    // Accessors.
+    for (int i = 0; i < fields.length; i++) {
+      String fieldType = fields[i].split(" ")[0];
+      String name = fields[i].split(" ")[1];
+      String slot = "node + " + slots[i];
+      String resultType = isHandle(fieldType) ? "int" : fieldType;
+      writer.println();
+      if (isConstant(fieldType) && fieldType.contains("<")) {
+        writer.println("  @SuppressWarnings(\"unchecked\")");
+      }
+      writer.println("  " + resultType + " " + prefix + capitalize(name) +
+          "(int node) {");
+      writer.println("    return " + decode(fieldType, slot) + ";");
+      writer.println("  }");
+    }
+    for (int i = 0; i < extraFields.length; i++) {
+      String name = extraFields[i].split(" ")[1];
+      String slot = "data[node + " + (extraStart + i) + "]";
+      writer.println();
+      writer.println("  int " + prefix + capitalize(name) + "(int node) {");
+      writer.println("    return " + slot + ";");
+      writer.println("  }");
+      writer.println();
+      writer.println("  void set" + capitalize(prefix) + capitalize(name) +
+          "(int node, int value) {");
+      writer.println("    " + slot + " = value;");
+      writer.println("  }");
+    }
+  }
+  
+  // Generates the visitor that copies an object AST into a FlatAst.
+  private static void defineFlatAstWriter(
+      String outputDir, List<String> exprTypes, List<String> stmtTypes)
+      throws IOException {
+    String path = outputDir + "/FlatAstWriter.java";
+    PrintWriter writer = new PrintWriter(path, "UTF-8");
+    
+    writer.println("package jlox;");
+    writer.println();
+    writer.println("import java.util.IdentityHashMap;");
+    writer.println("import java.util.List;");
+    writer.println("import java.util.Map;");
+    writer.println();
+    writer.println("class FlatAstWriter implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {");
+    writer.println("  private final FlatAst ast;");
+    writer.println("  // Nodes that occur more than once in the tree, with their handle once");
+    writer.println("  // written.");
+    writer.println("  private final Map<Expr, Integer> shared = new IdentityHashMap<>();");
+    writer.println();
+    writer.println("  FlatAstWriter(FlatAst ast) {");
+    writer.println("    this.ast = ast;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  // Writes the node only once, wherever it occurs.");
+    writer.println("  void share(Expr expr) {");
+    writer.println("    shared.putIfAbsent(expr, FlatAst.NONE);");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int write(Expr expr) {");
+    writer.println("    if (expr == null) return FlatAst.NONE;");
+    writer.println("    if (shared.isEmpty()) return expr.accept(this);");
+    writer.println();
+    writer.println("    Integer handle = shared.get(expr);");
+    writer.println("    if (handle == null) return expr.accept(this);");
+    writer.println("    if (handle == FlatAst.NONE) {");
+    writer.println("      handle = expr.accept(this);");
+    writer.println("      shared.put(expr, handle);");
+    writer.println("    }");
+    writer.println("    return handle;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int write(Stmt stmt) {");
+    writer.println("    return stmt == null ? FlatAst.NONE : stmt.accept(this);");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int writeExprs(List<? extends Expr> exprs) {");
+    writer.println("    int[] elements = new int[exprs.size()];");
+    writer.println("    for (int i = 0; i < elements.length; i++) {");
+    writer.println("      elements[i] = write(exprs.get(i));");
+    writer.println("    }");
+    writer.println("    return ast.addList(elements);");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int writeStmts(List<? extends Stmt> stmts) {");
+    writer.println("    int[] elements = new int[stmts.size()];");
+    writer.println("    for (int i = 0; i < elements.length; i++) {");
+    writer.println("      elements[i] = write(stmts.get(i));");
+    writer.println("    }");
+    writer.println("    return ast.addList(elements);");
+    writer.println("  }");
+    writer.println();
+    writer.println("  // Writes a program's top-level statements, taking each out of the");
+    writer.println("  // list once written so its tree can be collected while the rest");
+    writer.println("  // are.");
+    writer.println("  int writeProgram(List<Stmt> stmts) {");
+    writer.println("    int[] elements = new int[stmts.size()];");
+    writer.println("    for (int i = 0; i < elements.length; i++) {");
+    writer.println("      elements[i] = write(stmts.get(i));");
+    writer.println("      stmts.set(i, null);");
+    writer.println("    }");
+    writer.println("    return ast.addList(elements);");
+    writer.println("  }");
+    
+    List<String[]> types = new ArrayList<>();
+    for (String type : exprTypes) types.add(new String[] {"Expr", type});
+    for (String type : stmtTypes) types.add(new String[] {"Stmt", type});
+    for (String[] type : types) {
+      String baseName = type[0];
+      String className = type[1].split(":")[0].trim();
+      String[] fields = type[1].split(":")[1].trim().split(", ");
+      String variable = baseName.toLowerCase();
+      
+      List<String> arguments = new ArrayList<>();
+      for (String field : fields) {
+        String fieldType = field.split(" ")[0];
+        String value = variable + "." + field.split(" ")[1];
+        if (fieldType.startsWith("List<Expr")) {
+          arguments.add("writeExprs(" + value + ")");
+        } else if (fieldType.startsWith("List<Stmt")) {
+          arguments.add("writeStmts(" + value + ")");
+        } else if (isHandle(fieldType)) {
+          arguments.add("write(" + value + ")");
+        } else {
+          arguments.add(value);
+        }
+      }
+      
+      writer.println();
+      writer.println("  @Override");
+      writer.println("  public Integer visit" + className + baseName + "(" +
+          baseName + "." + className + " " + variable + ") {");
+      writer.println("    return ast.add" + className + baseName + "(" +
+          String.join(", ", arguments) + ");");
+      writer.println("  }");
+    }
+    
+    writer.println("}");
+    writer.close();
+  }
+  
+  private static final List<String> ENUM_TYPES =
+      Arrays.asList("TokenType", "ExprErrType");
+  
+  private static boolean isHandle(String fieldType) {
+    return fieldType.equals("Expr") || fieldType.equals("Stmt") ||
+        fieldType.startsWith("Expr.") || fieldType.startsWith("Stmt.") ||
+        fieldType.startsWith("List<Expr") || fieldType.startsWith("List<Stmt");
+  }
+  
+  private static boolean isConstant(String fieldType) {
+    return !isHandle(fieldType) && !fieldType.equals("long") &&
+        !fieldType.equals("int") && !ENUM_TYPES.contains(fieldType);
+  }
+  
+  private static String encode(String fieldType, String name) {
+    if (isHandle(fieldType) || fieldType.equals("int")) return name;
+    if (ENUM_TYPES.contains(fieldType)) return name + ".ordinal()";
+    return "addConstant(" + name + ")";
+  }
+  
+  private static String decode(String fieldType, String slot) {
+    if (isHandle(fieldType) || fieldType.equals("int")) {
+      return "data[" + slot + "]";
+    }
+    if (fieldType.equals("long")) return "longAt(" + slot + ")";
+    if (ENUM_TYPES.contains(fieldType)) {
+      return enumValues(fieldType) + "[data[" + slot + "]]";
+    }
+    if (fieldType.equals("Object")) return "constants.get(data[" + slot + "])";
+    return "(" + fieldType + ")constants.get(data[" + slot + "])";
+  }
+  
+  // TokenType -> TOKEN_TYPE_VALUES
+  private static String enumValues(String enumType) {
+    return enumType.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase() +
+        "_VALUES";
+  }
+  
+  // Binary, Expr -> BINARY_EXPR
+  private static String kindName(String className, String baseName) {
+    return className.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase() +
+        "_" + baseName.toUpperCase();
+  }
+  
+  // error_type -> ErrorType
+  private static String capitalize(String name) {
+    StringBuilder result = new StringBuilder();
+    for (String part : name.split("_")) {
+      result.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+    }
+    return result.toString();
+  }
 }